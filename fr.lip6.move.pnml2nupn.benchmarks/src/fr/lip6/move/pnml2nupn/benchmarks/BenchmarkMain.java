@@ -0,0 +1,43 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation per
+ * conversion is always reported. It accepts the usual JMH command-line
+ * options, e.g. <code>-p places=10000 ExporterBenchmark.naive</code>.
+ */
+public final class BenchmarkMain {
+
+	private BenchmarkMain() {
+		super();
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(cmdOptions);
+		if (cmdOptions.getIncludes().isEmpty()) {
+			builder.include(ExporterBenchmark.class.getSimpleName());
+		}
+		builder.addProfiler(GCProfiler.class);
+		new Runner(builder.build()).run();
+	}
+}
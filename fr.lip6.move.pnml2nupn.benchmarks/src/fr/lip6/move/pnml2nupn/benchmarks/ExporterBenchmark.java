@@ -0,0 +1,154 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import fr.lip6.move.pnml2nupn.export.ConversionOptions;
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
+import fr.lip6.move.pnml2nupn.export.impl.NUPNConstants;
+import fr.lip6.move.pnml2nupn.export.impl.PNML2NUPNExporterImpl;
+import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
+
+/**
+ * Benchmarks of the conversion of generated nets by
+ * {@link PNML2NUPNExporterImpl}, in naive, mixed and native modes, and of the
+ * check for unsafe arcs.
+ * <p>
+ * Each operation is a whole conversion. The <code>nodes</code> counter gives
+ * the throughput in nodes (places and transitions) per second, and the
+ * <code>gc.alloc.rate.norm</code> metric of the GC profiler, enabled by
+ * {@link BenchmarkMain}, gives the allocation per conversion.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ExporterBenchmark {
+
+	private static final Logger JOURNAL = NOPLogger.NOP_LOGGER;
+
+	@Param({ "1000", "100000" })
+	private int places;
+
+	/**
+	 * Number of transitions, relative to the number of places.
+	 */
+	@Param({ "1.0" })
+	private double transitionRatio;
+
+	@Param({ "4.0" })
+	private double arcDensity;
+
+	@Param({ "0.2" })
+	private double markedRatio;
+
+	@Param({ "0.1" })
+	private double unsafeRatio;
+
+	private File plainNet;
+	private File nupnNet;
+	private File outFile;
+	private File unsafeArcsFile;
+	private long nodes;
+	private ConversionOptions naiveOptions;
+	private ConversionOptions mixedOptions;
+	private ConversionOptions nativeOptions;
+
+	/**
+	 * Counts the nodes of the converted nets, reported per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Nodes {
+		public long nodes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			nodes = 0L;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		NetGenerator gen = new NetGenerator().places(places).transitions((int) (places * transitionRatio))
+				.arcDensity(arcDensity).markedRatio(markedRatio).unsafeRatio(unsafeRatio);
+		plainNet = gen.nupnSection(false).writeTemp();
+		nupnNet = gen.nupnSection(true).writeTemp();
+		outFile = Files.createTempFile("pnml2nupn-bench-", ".nupn").toFile();
+		outFile.deleteOnExit();
+		// Written next to the output file by the check for unsafe arcs
+		unsafeArcsFile = new File(
+				PNML2NUPNUtils.extractBaseName(outFile.getCanonicalPath()) + NUPNConstants.UNSAFE_ARC);
+		unsafeArcsFile.deleteOnExit();
+		nodes = (long) gen.getPlaces() + gen.getTransitions();
+		naiveOptions = ConversionOptions.defaults();
+		mixedOptions = naiveOptions.toBuilder().preserveNupnMix(true).build();
+		nativeOptions = naiveOptions.toBuilder().preserveNupnNative(true).build();
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() {
+		plainNet.delete();
+		nupnNet.delete();
+		outFile.delete();
+		unsafeArcsFile.delete();
+	}
+
+	@Benchmark
+	public ConversionReport naive(Nodes counter) throws Exception {
+		counter.nodes += nodes;
+		return new PNML2NUPNExporterImpl().export2NUPN(plainNet, outFile, naiveOptions, JOURNAL);
+	}
+
+	@Benchmark
+	public ConversionReport mixed(Nodes counter) throws Exception {
+		counter.nodes += nodes;
+		return new PNML2NUPNExporterImpl().export2NUPN(nupnNet, outFile, mixedOptions, JOURNAL);
+	}
+
+	@Benchmark
+	public ConversionReport nativeMode(Nodes counter) throws Exception {
+		counter.nodes += nodes;
+		return new PNML2NUPNExporterImpl().export2NUPN(nupnNet, outFile, nativeOptions, JOURNAL);
+	}
+
+	@Benchmark
+	public ConversionReport unsafeArcs(Nodes counter) throws Exception {
+		counter.nodes += nodes;
+		return new PNML2NUPNExporterImpl().hasUnsafeArcs(plainNet, outFile, naiveOptions, JOURNAL);
+	}
+}
@@ -0,0 +1,242 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic generator of PNML P/T nets. The same parameters and seed
+ * always produce the same document.
+ * <p>
+ * Each transition gets on average <code>arcDensity</code> arcs, half of them
+ * incoming, to places drawn uniformly. A ratio of the places is marked, and a
+ * ratio of the arcs and markings are unsafe (greater than 1). The NUPN
+ * toolspecific section, when requested, describes a root unit whose leaves
+ * each hold 1 to 4 consecutive places.
+ * </p>
+ */
+public final class NetGenerator {
+
+	private static final String PNML_NS = "http://www.pnml.org/version-2009/grammar/pnml";
+	private static final String PTNET_TYPE = "http://www.pnml.org/version-2009/grammar/ptnet";
+	private static final int MAX_LEAF_PLACES = 4;
+
+	private int places = 1000;
+	private int transitions = 1000;
+	private double arcDensity = 4.0;
+	private double markedRatio = 0.2;
+	private double unsafeRatio = 0.1;
+	private boolean nupnSection;
+	private long seed = 42L;
+
+	public NetGenerator places(int nb) {
+		this.places = nb;
+		return this;
+	}
+
+	public NetGenerator transitions(int nb) {
+		this.transitions = nb;
+		return this;
+	}
+
+	/**
+	 * @param density
+	 *            average number of arcs per transition
+	 */
+	public NetGenerator arcDensity(double density) {
+		this.arcDensity = density;
+		return this;
+	}
+
+	/**
+	 * @param ratio
+	 *            ratio of initially marked places
+	 */
+	public NetGenerator markedRatio(double ratio) {
+		this.markedRatio = ratio;
+		return this;
+	}
+
+	/**
+	 * @param ratio
+	 *            ratio of the arcs and markings with a value greater than 1
+	 */
+	public NetGenerator unsafeRatio(double ratio) {
+		this.unsafeRatio = ratio;
+		return this;
+	}
+
+	/**
+	 * @param withSection
+	 *            whether the NUPN toolspecific section is generated
+	 */
+	public NetGenerator nupnSection(boolean withSection) {
+		this.nupnSection = withSection;
+		return this;
+	}
+
+	public NetGenerator seed(long s) {
+		this.seed = s;
+		return this;
+	}
+
+	public int getPlaces() {
+		return places;
+	}
+
+	public int getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * Writes the net into a new temporary file.
+	 * 
+	 * @return the PNML file, deleted on exit
+	 * @throws IOException
+	 */
+	public File writeTemp() throws IOException {
+		File f = Files.createTempFile("pnml2nupn-bench-", ".pnml").toFile();
+		f.deleteOnExit();
+		write(f);
+		return f;
+	}
+
+	/**
+	 * Writes the net into a file.
+	 * 
+	 * @param pnml
+	 *            the PNML file
+	 * @throws IOException
+	 */
+	public void write(File pnml) throws IOException {
+		final SplittableRandom rand = new SplittableRandom(seed);
+		try (BufferedWriter out = new BufferedWriter(
+				new OutputStreamWriter(Files.newOutputStream(pnml.toPath()), StandardCharsets.UTF_8), 1 << 16)) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<pnml xmlns=\"" + PNML_NS + "\">\n");
+			out.write("<net id=\"net\" type=\"" + PTNET_TYPE + "\">\n<name><text>bench</text></name>\n");
+			out.write("<page id=\"page\">\n");
+			for (int i = 0; i < places; i++) {
+				out.write("<place id=\"p" + i + "\"><name><text>P_" + i + "</text></name>");
+				if (rand.nextDouble() < markedRatio) {
+					out.write("<initialMarking><text>" + value(rand) + "</text></initialMarking>");
+				}
+				out.write("</place>\n");
+			}
+			for (int j = 0; j < transitions; j++) {
+				out.write("<transition id=\"t" + j + "\"><name><text>T_" + j + "</text></name></transition>\n");
+			}
+			long nbArcs = 0L;
+			if (places > 0) {
+				int nb;
+				for (int j = 0; j < transitions; j++) {
+					nb = Math.max(1, (int) (rand.nextDouble() * arcDensity * 2));
+					for (int k = 0; k < nb; k++) {
+						writeArc(out, nbArcs++, j, rand.nextInt(places), rand);
+					}
+				}
+			}
+			if (nupnSection) {
+				writeNUPNSection(out, nbArcs, rand);
+			}
+			out.write("</page>\n</net>\n</pnml>\n");
+		}
+	}
+
+	private void writeArc(BufferedWriter out, long id, int tr, int pl, SplittableRandom rand) throws IOException {
+		boolean incoming = rand.nextBoolean();
+		out.write("<arc id=\"a" + id + "\" source=\"" + (incoming ? "p" + pl : "t" + tr) + "\" target=\""
+				+ (incoming ? "t" + tr : "p" + pl) + "\">");
+		long val = value(rand);
+		if (val > 1L) {
+			out.write("<inscription><text>" + val + "</text></inscription>");
+		}
+		out.write("</arc>\n");
+	}
+
+	/**
+	 * Root unit u0 with an empty unit u1, whose subunits are the leaves.
+	 */
+	private void writeNUPNSection(BufferedWriter out, long nbArcs, SplittableRandom rand) throws IOException {
+		int nbLeaves = 0;
+		StringBuilder leaves = new StringBuilder();
+		StringBuilder leafIds = new StringBuilder();
+		int p = 0, size;
+		while (p < places) {
+			size = Math.min(places - p, 1 + rand.nextInt(MAX_LEAF_PLACES));
+			leafIds.append(nbLeaves == 0 ? "" : " ").append('u').append(nbLeaves + 2);
+			leaves.append("<unit id=\"u").append(nbLeaves + 2).append("\"><places>");
+			for (int i = 0; i < size; i++, p++) {
+				leaves.append(i == 0 ? "" : " ").append('p').append(p);
+			}
+			leaves.append("</places><subunits/></unit>\n");
+			nbLeaves++;
+		}
+		out.write("<toolspecific tool=\"nupn\" version=\"1.1\">\n<size places=\"" + places + "\" transitions=\""
+				+ transitions + "\" arcs=\"" + nbArcs + "\"/>\n");
+		out.write("<structure units=\"" + (nbLeaves + 2) + "\" root=\"u0\" safe=\"" + (unsafeRatio == 0.0)
+				+ "\">\n");
+		out.write("<unit id=\"u0\"><places/><subunits>u1</subunits></unit>\n");
+		out.write("<unit id=\"u1\"><places/><subunits>" + leafIds + "</subunits></unit>\n");
+		out.write(leaves.toString());
+		out.write("</structure>\n</toolspecific>\n");
+	}
+
+	private long value(SplittableRandom rand) {
+		return rand.nextDouble() < unsafeRatio ? 2L + rand.nextInt(4) : 1L;
+	}
+
+	/**
+	 * Writes a net from the command line, for inspection or manual runs.
+	 * 
+	 * @param args
+	 *            output file, places, transitions, arc density, marked ratio,
+	 *            unsafe ratio, with NUPN section (true/false), seed
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: NetGenerator <out.pnml> [places [transitions [arcDensity [markedRatio "
+					+ "[unsafeRatio [nupnSection [seed]]]]]]]");
+			System.exit(2);
+		}
+		NetGenerator gen = new NetGenerator();
+		if (args.length > 1) {
+			gen.places(Integer.parseInt(args[1]));
+		}
+		if (args.length > 2) {
+			gen.transitions(Integer.parseInt(args[2]));
+		}
+		if (args.length > 3) {
+			gen.arcDensity(Double.parseDouble(args[3]));
+		}
+		if (args.length > 4) {
+			gen.markedRatio(Double.parseDouble(args[4]));
+		}
+		if (args.length > 5) {
+			gen.unsafeRatio(Double.parseDouble(args[5]));
+		}
+		if (args.length > 6) {
+			gen.nupnSection(Boolean.parseBoolean(args[6]));
+		}
+		if (args.length > 7) {
+			gen.seed(Long.parseLong(args[7]));
+		}
+		gen.write(new File(args[0]));
+	}
+}
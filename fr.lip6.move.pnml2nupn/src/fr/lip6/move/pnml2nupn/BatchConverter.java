@@ -0,0 +1,223 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							 CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ *
+ */
+package fr.lip6.move.pnml2nupn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.lip6.move.pnml2nupn.exceptions.EarlyStopException;
+import fr.lip6.move.pnml2nupn.exceptions.InvalidPNMLTypeException;
+import fr.lip6.move.pnml2nupn.exceptions.PNMLImportExportException;
+import fr.lip6.move.pnml2nupn.export.ConversionOptions;
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
+import fr.lip6.move.pnml2nupn.export.PNML2NUPNExporter;
+import fr.lip6.move.pnml2nupn.export.PNML2NUPNFactory;
+import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
+
+/**
+ * Converts a batch of PNML files concurrently, on a fixed pool of workers.
+ * Each file is converted by its own exporter. The results are returned in the
+ * order of the source files, whatever the order in which the conversions
+ * finish.
+ */
+public final class BatchConverter {
+
+	private final int workers;
+	private final ConversionOptions options;
+	private final boolean unsafeArcsOnly;
+	private final ConversionCache cache;
+	private final Logger log;
+
+	/**
+	 * @param workers
+	 *            number of files converted at the same time
+	 * @param options
+	 *            the options of all the conversions
+	 * @param unsafeArcsOnly
+	 *            only check for unsafe arcs instead of converting, as with
+	 *            option {@link MainPNML2NUPN#HAS_UNSAFE_ARCS}
+	 * @param cache
+	 *            the conversion cache, null for none
+	 * @param log
+	 *            where failures are reported as soon as they happen
+	 */
+	public BatchConverter(int workers, ConversionOptions options, boolean unsafeArcsOnly, ConversionCache cache,
+			Logger log) {
+		this.workers = workers;
+		this.options = options;
+		this.unsafeArcsOnly = unsafeArcsOnly;
+		this.cache = cache;
+		this.log = log;
+	}
+
+	/**
+	 * Converts each source file into the destination file at the same index.
+	 * 
+	 * @param pathSrc
+	 *            the PNML files
+	 * @param pathDest
+	 *            the NUPN files
+	 * @return the result of each conversion, in the order of the source files
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the conversions, which are
+	 *             then cancelled
+	 */
+	public List<Result> convert(List<String> pathSrc, List<String> pathDest) throws InterruptedException {
+		List<Callable<Result>> tasks = new ArrayList<>(pathSrc.size());
+		for (int i = 0; i < pathSrc.size(); i++) {
+			final String src = pathSrc.get(i);
+			final String dest = pathDest.get(i);
+			tasks.add(() -> convert(src, dest));
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(workers, new WorkerFactory());
+		try {
+			List<Future<Result>> futures = pool.invokeAll(tasks);
+			List<Result> results = new ArrayList<>(futures.size());
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					// convert(String, String) reports its own failures
+					results.add(new Result(pathSrc.get(i), String.valueOf(e.getCause()), false, null, 0L));
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Result convert(String src, String dest) {
+		PNML2NUPNExporter pe = PNML2NUPNFactory.instance().createExporter();
+		Logger jr = LoggerFactory.getLogger(pe.getClass().getCanonicalName());
+		ConversionReport report = null;
+		String error = null;
+		boolean notPTNet = false;
+		long startTime = System.nanoTime();
+		try {
+			if (unsafeArcsOnly) {
+				report = pe.hasUnsafeArcs(new File(src), new File(dest), options, jr);
+			} else if (cache != null) {
+				report = cache.export2NUPN(pe, new File(src), new File(dest), options, jr);
+			} else {
+				report = pe.export2NUPN(new File(src), new File(dest), options, jr);
+			}
+		} catch (PNMLImportExportException | InterruptedException | IOException | InvalidPNMLTypeException
+				| EarlyStopException | RuntimeException e) {
+			error = String.valueOf(e.getMessage());
+			notPTNet = isNotPTNet(e);
+			log.error("{}: {}", src, error);
+			PNML2NUPNUtils.printStackTrace(e);
+		}
+		return new Result(src, error, notPTNet, report, System.nanoTime() - startTime);
+	}
+
+	private static boolean isNotPTNet(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof InvalidPNMLTypeException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Outcome of the conversion of a file.
+	 */
+	public static final class Result {
+		private final String source;
+		private final String error;
+		private final boolean notPTNet;
+		private final ConversionReport report;
+		private final long duration;
+
+		Result(String source, String error, boolean notPTNet, ConversionReport report, long duration) {
+			this.source = source;
+			this.error = error;
+			this.notPTNet = notPTNet;
+			this.report = report;
+			this.duration = duration;
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * @return the message of the error the conversion failed with, null if it
+		 *         succeeded
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * @return true if the conversion failed because the document is not a
+		 *         P/T net
+		 */
+		public boolean isNotPTNet() {
+			return notPTNet;
+		}
+
+		/**
+		 * @return the report of the conversion, null if it failed
+		 */
+		public ConversionReport getReport() {
+			return report;
+		}
+
+		/**
+		 * @return the lines the conversion added to the signature message, none
+		 *         if it failed
+		 */
+		public List<String> getSignatureLines() {
+			return report != null ? report.getSignatureLines() : Collections.emptyList();
+		}
+
+		/**
+		 * @return the duration of the conversion, in nanoseconds
+		 */
+		public long getDuration() {
+			return duration;
+		}
+	}
+
+	private static final class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pnml2nupn-worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+
+import fr.lip6.move.pnml2nupn.exceptions.EarlyStopException;
+import fr.lip6.move.pnml2nupn.exceptions.PNMLImportExportException;
+import fr.lip6.move.pnml2nupn.export.ConversionOptions;
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
+import fr.lip6.move.pnml2nupn.export.PNML2NUPNExporter;
+import fr.lip6.move.pnml2nupn.export.impl.StreamingNetExtractor;
+
+/**
+ * On-disk cache of NUPN files, shared by the conversions of a run and by the
+ * runs of other processes.
+ * <p>
+ * An entry is keyed by a 128-bit MurmurHash3 of the bytes of the PNML file,
+ * and by a hash of the options which change the NUPN file and of the version
+ * of the tool. It holds the NUPN file and the signature lines of its
+ * conversion. On a hit, the NUPN file is copied from the cache instead of
+ * converting the PNML file.
+ * </p>
+ * <p>
+ * Entries are written to temporary files, then renamed, so that other
+ * processes never see incomplete entries. Reading an entry refreshes its
+ * modification time. After each new entry, the least recently used entries
+ * are evicted until the cache fits its size cap. An entry which cannot be
+ * read, e.g. because another process evicted it, is a miss.
+ * </p>
+ */
+public final class ConversionCache {
+
+	public static final String ENTRY_EXT = ".nupn";
+	public static final String SIGNATURE_EXT = ".sig";
+	private static final String TMP_EXT = ".tmp";
+	/* Temporary files left by crashed runs are deleted after a day */
+	private static final long TMP_MAX_AGE = 24L * 3600L * 1000L;
+	private static final int HASH_BUFFER_SIZE = 1 << 20;
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final File dir;
+	private final long maxBytes;
+	private final String tool;
+	private final Logger log;
+
+	/**
+	 * @param dir
+	 *            the directory of the cache, created if needed
+	 * @param maxBytes
+	 *            size cap of the cache, in bytes
+	 * @param tool
+	 *            name and version of the tool, part of the keys
+	 * @param log
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	public ConversionCache(File dir, long maxBytes, String tool, Logger log) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		this.tool = tool;
+		this.log = log;
+		Files.createDirectories(dir.toPath());
+	}
+
+	/**
+	 * Copies the NUPN file of a PNML file from the cache, or converts it with
+	 * the exporter and caches the result.
+	 * 
+	 * @see PNML2NUPNExporter#export2NUPN(File, File, ConversionOptions, Logger)
+	 */
+	public ConversionReport export2NUPN(PNML2NUPNExporter pe, File inFile, File outFile, ConversionOptions options,
+			Logger journal) throws PNMLImportExportException, InterruptedException, IOException, EarlyStopException {
+		if (!StreamingNetExtractor.maybePTNet(StreamingNetExtractor.sniffNetType(inFile))) {
+			// rejected by the exporter from the head of the document: not hashed whole
+			return pe.export2NUPN(inFile, outFile, options, journal);
+		}
+		String key = key(inFile, options);
+		ConversionReport report = fetch(key, inFile, outFile, options);
+		if (report == null) {
+			report = pe.export2NUPN(inFile, outFile, options, journal);
+			store(key, outFile, report);
+		}
+		return report;
+	}
+
+	private String key(File inFile, ConversionOptions options) throws IOException {
+		return hash(inFile) + '-' + fingerprint(options, tool);
+	}
+
+	/**
+	 * Hashes the options which change the NUPN file, and the tool which writes
+	 * it.
+	 * 
+	 * @param options
+	 *            the options of a conversion
+	 * @param tool
+	 *            name and version of the tool
+	 * @return the hash, as 16 hexadecimal digits
+	 * @throws IOException
+	 */
+	static String fingerprint(ConversionOptions options, String tool) throws IOException {
+		String settings = tool + ';' + MainPNML2NUPN.USE_PLACE_NAMES + '=' + options.isUsePlaceNames() + ';'
+				+ MainPNML2NUPN.USE_TRANSITION_NAMES + '=' + options.isUseTransitionNames() + ';'
+				+ MainPNML2NUPN.PRESERVE_NUPN_MIX + '=' + options.isPreserveNupnMix() + ';'
+				+ MainPNML2NUPN.PRESERVE_NUPN_NATIVE + '=' + options.isPreserveNupnNative() + ';'
+				+ MainPNML2NUPN.FIRST_PLACE_NUMBER + '=' + options.getFirstPlaceNumber() + ';'
+				+ MainPNML2NUPN.FIRST_TRANSITION_NUMBER + '=' + options.getFirstTransitionNumber();
+		return hash(Channels.newChannel(new ByteArrayInputStream(settings.getBytes(StandardCharsets.UTF_8))))
+				.substring(0, 16);
+	}
+
+	/**
+	 * @see #hash(ReadableByteChannel)
+	 */
+	static String hash(File file) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return hash(in);
+		}
+	}
+
+	/**
+	 * @return the report of the cached conversion, or null on a miss
+	 */
+	private ConversionReport fetch(String key, File inFile, File outFile, ConversionOptions options)
+			throws IOException {
+		Path entry = new File(dir, key + ENTRY_EXT).toPath();
+		if (!Files.isRegularFile(entry)) {
+			return null;
+		}
+		ConversionReport report = new ConversionReport(inFile, outFile);
+		report.beginPhase(ConversionReport.PHASE_CACHE);
+		List<String> signature;
+		try {
+			signature = Files.readAllLines(new File(dir, key + SIGNATURE_EXT).toPath(), StandardCharsets.UTF_8);
+			Files.copy(entry, outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			log.warn("Could not read conversion cache entry {}: {}", key, e.getMessage());
+			return null;
+		}
+		try {
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// evicted in the meantime
+		}
+		signature.forEach(report::addSignatureLine);
+		report.setCounter(ConversionReport.COUNT_INPUT_BYTES, inFile.length());
+		report.setCounter(ConversionReport.COUNT_OUTPUT_BYTES, outFile.length());
+		report.finish();
+		log.info("Copied {} from the conversion cache.", outFile.getCanonicalPath());
+		if (options.isMetricsReport()) {
+			log.info("See metrics file: {}", report.writeJson().getCanonicalPath());
+		}
+		return report;
+	}
+
+	private void store(String key, File outFile, ConversionReport report) {
+		if (report.hasSeveralNets()) {
+			log.info("{} was exported into one NUPN file per net: not cached.", report.getInFile().getName());
+			return;
+		}
+		if (outFile.length() > maxBytes) {
+			log.info("{} is larger than the conversion cache: not cached.", outFile.getName());
+			return;
+		}
+		Path tmpSignature = null, tmpEntry = null;
+		try {
+			tmpSignature = Files.createTempFile(dir.toPath(), key, TMP_EXT);
+			Files.write(tmpSignature, report.getSignatureLines(), StandardCharsets.UTF_8);
+			tmpEntry = Files.createTempFile(dir.toPath(), key, TMP_EXT);
+			Files.copy(outFile.toPath(), tmpEntry, StandardCopyOption.REPLACE_EXISTING);
+			// the signature first: an entry is only looked up by its NUPN file
+			Files.move(tmpSignature, new File(dir, key + SIGNATURE_EXT).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tmpEntry, new File(dir, key + ENTRY_EXT).toPath(), StandardCopyOption.ATOMIC_MOVE);
+			evict();
+		} catch (IOException e) {
+			log.warn("Could not store {} in the conversion cache: {}", outFile.getName(), e.getMessage());
+		} finally {
+			deleteQuietly(tmpSignature);
+			deleteQuietly(tmpEntry);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used entries until the cache fits its size cap.
+	 */
+	private void evict() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> entries = new ArrayList<>();
+		long total = 0L, now = System.currentTimeMillis();
+		for (File f : files) {
+			if (f.getName().endsWith(ENTRY_EXT)) {
+				entries.add(f);
+				total += f.length() + signatureOf(f).length();
+			} else if (f.getName().endsWith(TMP_EXT) && now - f.lastModified() > TMP_MAX_AGE) {
+				deleteQuietly(f.toPath());
+			}
+		}
+		if (total <= maxBytes) {
+			return;
+		}
+		entries.sort(Comparator.comparingLong(File::lastModified));
+		for (File entry : entries) {
+			if (total <= maxBytes) {
+				break;
+			}
+			File signature = signatureOf(entry);
+			total -= entry.length() + signature.length();
+			deleteQuietly(entry.toPath());
+			deleteQuietly(signature.toPath());
+			log.debug("Evicted {} from the conversion cache.", entry.getName());
+		}
+	}
+
+	private static File signatureOf(File entry) {
+		String name = entry.getName();
+		return new File(entry.getParentFile(), name.substring(0, name.length() - ENTRY_EXT.length()) + SIGNATURE_EXT);
+	}
+
+	private static void deleteQuietly(Path p) {
+		if (p != null) {
+			try {
+				Files.deleteIfExists(p);
+			} catch (IOException e) {
+				// another process deleted it, or will
+			}
+		}
+	}
+
+	/**
+	 * Hashes the contents of a channel with the x64 128-bit variant of
+	 * MurmurHash3.
+	 * 
+	 * @return the hash, as 32 hexadecimal digits
+	 */
+	static String hash(ReadableByteChannel in) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		long h1 = 0L, h2 = 0L, k1, k2, length = 0L;
+		while (in.read(buf) != -1) {
+			buf.flip();
+			while (buf.remaining() >= 16) {
+				k1 = buf.getLong();
+				k2 = buf.getLong();
+				h1 ^= mixK1(k1);
+				h1 = Long.rotateLeft(h1, 27) + h2;
+				h1 = h1 * 5 + 0x52dce729;
+				h2 ^= mixK2(k2);
+				h2 = Long.rotateLeft(h2, 31) + h1;
+				h2 = h2 * 5 + 0x38495ab5;
+				length += 16;
+			}
+			buf.compact();
+		}
+		buf.flip();
+		int tail = buf.remaining();
+		length += tail;
+		k1 = 0L;
+		k2 = 0L;
+		for (int i = tail - 1; i >= 8; i--) {
+			k2 = (k2 << 8) | (buf.get(i) & 0xFFL);
+		}
+		for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+			k1 = (k1 << 8) | (buf.get(i) & 0xFFL);
+		}
+		if (tail > 8) {
+			h2 ^= mixK2(k2);
+		}
+		if (tail > 0) {
+			h1 ^= mixK1(k1);
+		}
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		return String.format("%016x%016x", h1, h2);
+	}
+
+	private static long mixK1(long k1) {
+		return Long.rotateLeft(k1 * C1, 31) * C2;
+	}
+
+	private static long mixK2(long k2) {
+		return Long.rotateLeft(k2 * C2, 33) * C1;
+	}
+
+	private static long fmix(long k) {
+		long h = k;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
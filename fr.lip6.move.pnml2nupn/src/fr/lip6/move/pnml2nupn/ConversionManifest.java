@@ -0,0 +1,232 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+
+import fr.lip6.move.pnml2nupn.export.ConversionOptions;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+
+/**
+ * Manifest of the conversions of the previous runs, to convert again only the
+ * PNML files which changed since then.
+ * <p>
+ * For each converted PNML file, it records the size, modification time and
+ * hash of the PNML and NUPN files, and the fingerprint of the options of the
+ * conversion. A PNML file is up to date when it was converted with the same
+ * options and neither file changed. Sizes and modification times are checked
+ * first, so that unchanged files are not read; the hashes are only computed
+ * when a file was touched, with the same size.
+ * </p>
+ * <p>
+ * The manifest is a tab-separated text file, one line per PNML file. It is
+ * replaced atomically when saved.
+ * </p>
+ */
+public final class ConversionManifest {
+
+	public static final String FILE_NAME = "pnml2nupn-manifest.tsv";
+	private static final String HEADER = "# pnml2nupn manifest 1";
+	private static final char SEP = '\t';
+	private static final int NB_FIELDS = 9;
+
+	private final File file;
+	private final String fingerprint;
+	private final Logger log;
+	private final Object2ObjectLinkedOpenHashMap<String, Record> entries;
+
+	/**
+	 * Conversion of a PNML file, as recorded.
+	 */
+	private static final class Record {
+		long srcSize, srcTime, destSize, destTime;
+		String srcHash, fingerprint, dest, destHash;
+	}
+
+	private ConversionManifest(File file, String fingerprint, Logger log) {
+		this.file = file;
+		this.fingerprint = fingerprint;
+		this.log = log;
+		this.entries = new Object2ObjectLinkedOpenHashMap<>();
+	}
+
+	/**
+	 * Loads a manifest. Malformed lines are ignored.
+	 * 
+	 * @param file
+	 *            the manifest, which may not exist yet
+	 * @param options
+	 *            the options of the conversions of this run
+	 * @param tool
+	 *            name and version of the tool
+	 * @param log
+	 * @return the manifest
+	 * @throws IOException
+	 */
+	public static ConversionManifest load(File file, ConversionOptions options, String tool, Logger log)
+			throws IOException {
+		ConversionManifest manifest = new ConversionManifest(file, ConversionCache.fingerprint(options, tool), log);
+		try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.startsWith("#")) {
+					manifest.parse(line);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			log.info("No manifest {} yet: converting all the files.", file.getPath());
+		}
+		return manifest;
+	}
+
+	private void parse(String line) {
+		String[] f = line.split(String.valueOf(SEP), -1);
+		if (f.length != NB_FIELDS) {
+			return;
+		}
+		Record e = new Record();
+		try {
+			e.srcSize = Long.parseLong(f[1]);
+			e.srcTime = Long.parseLong(f[2]);
+			e.srcHash = f[3];
+			e.fingerprint = f[4];
+			e.dest = f[5];
+			e.destSize = Long.parseLong(f[6]);
+			e.destTime = Long.parseLong(f[7]);
+			e.destHash = f[8];
+		} catch (NumberFormatException ex) {
+			return;
+		}
+		entries.put(f[0], e);
+	}
+
+	/**
+	 * Tells whether a PNML file was already converted into a NUPN file with
+	 * the options of this run, and neither file changed since then.
+	 * 
+	 * @param src
+	 *            the PNML file
+	 * @param dest
+	 *            the NUPN file
+	 * @return true if the PNML file need not be converted again
+	 * @throws IOException
+	 *             if a touched file cannot be read
+	 */
+	public boolean isUpToDate(File src, File dest) throws IOException {
+		Record e = entries.get(pathOf(src));
+		if (e == null || !fingerprint.equals(e.fingerprint) || !pathOf(dest).equals(e.dest)) {
+			return false;
+		}
+		long srcSize = src.length(), destSize = dest.length();
+		if (srcSize != e.srcSize || destSize != e.destSize || !dest.isFile()) {
+			return false;
+		}
+		long srcTime = src.lastModified(), destTime = dest.lastModified();
+		if (srcTime != e.srcTime) {
+			if (!ConversionCache.hash(src).equals(e.srcHash)) {
+				return false;
+			}
+			e.srcTime = srcTime;
+		}
+		if (destTime != e.destTime) {
+			if (!ConversionCache.hash(dest).equals(e.destHash)) {
+				return false;
+			}
+			e.destTime = destTime;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the conversion of a PNML file with the options of this run.
+	 * 
+	 * @param src
+	 *            the PNML file
+	 * @param dest
+	 *            the NUPN file
+	 * @throws IOException
+	 *             if the files cannot be read
+	 */
+	public void record(File src, File dest) throws IOException {
+		String path = pathOf(src);
+		String destPath = pathOf(dest);
+		if (path.indexOf(SEP) >= 0 || path.indexOf('\n') >= 0 || destPath.indexOf(SEP) >= 0
+				|| destPath.indexOf('\n') >= 0) {
+			log.warn("Not recording {} in the manifest: tabs and newlines are not supported in paths.", path);
+			return;
+		}
+		Record e = new Record();
+		e.srcSize = src.length();
+		e.srcTime = src.lastModified();
+		e.srcHash = ConversionCache.hash(src);
+		e.fingerprint = fingerprint;
+		e.dest = destPath;
+		e.destSize = dest.length();
+		e.destTime = dest.lastModified();
+		e.destHash = ConversionCache.hash(dest);
+		entries.put(path, e);
+	}
+
+	/**
+	 * Forgets the conversion of a PNML file, e.g. before converting it again.
+	 * 
+	 * @param src
+	 *            the PNML file
+	 */
+	public void forget(File src) {
+		entries.remove(pathOf(src));
+	}
+
+	/**
+	 * Writes the manifest to a temporary file, then replaces the previous one.
+	 * 
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		Path dir = file.getAbsoluteFile().getParentFile().toPath();
+		Path tmp = Files.createTempFile(dir, file.getName(), ".tmp");
+		try {
+			try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				out.write(HEADER);
+				out.newLine();
+				for (Object2ObjectMap.Entry<String, Record> me : entries.object2ObjectEntrySet()) {
+					Record e = me.getValue();
+					out.append(me.getKey()).append(SEP).append(Long.toString(e.srcSize)).append(SEP)
+							.append(Long.toString(e.srcTime)).append(SEP).append(e.srcHash).append(SEP)
+							.append(e.fingerprint).append(SEP).append(e.dest).append(SEP)
+							.append(Long.toString(e.destSize)).append(SEP).append(Long.toString(e.destTime))
+							.append(SEP).append(e.destHash);
+					out.newLine();
+				}
+			}
+			Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	private static String pathOf(File f) {
+		return f.toPath().toAbsolutePath().normalize().toString();
+	}
+}
@@ -13,11 +13,14 @@
  */
 package fr.lip6.move.pnml2nupn;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -30,8 +33,11 @@ import ch.qos.logback.classic.LoggerContext;
 import fr.lip6.move.pnml2nupn.exceptions.EarlyStopException;
 import fr.lip6.move.pnml2nupn.exceptions.InvalidPNMLTypeException;
 import fr.lip6.move.pnml2nupn.exceptions.PNMLImportExportException;
+import fr.lip6.move.pnml2nupn.export.ConversionOptions;
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
 import fr.lip6.move.pnml2nupn.export.PNML2NUPNExporter;
 import fr.lip6.move.pnml2nupn.export.PNML2NUPNFactory;
+import fr.lip6.move.pnml2nupn.server.ConversionServer;
 import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
 import it.unimi.dsi.fastutil.objects.Object2BooleanOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
@@ -119,7 +125,96 @@ public final class MainPNML2NUPN {
 	 */
 	public static final String FIRST_TRANSITION_NUMBER = "first.transition.number";
 
+	/**
+	 * In NUPN native mode, trust the NUPN size element of the PNML document:
+	 * the places and transitions are not counted again over the whole document,
+	 * the sizes are only checked against the places numbered in the units and
+	 * the transitions collected.
+	 */
+	public static final String TRUST_NUPN_SIZE = "trust.nupn.size";
+
+	/**
+	 * Read the PNML document with the streaming input engine, which does not
+	 * build the VTD index of the document.
+	 */
+	public static final String STREAMING_INPUT = "streaming.input";
+
+	/**
+	 * Keep the place and transition labels sections in memory until they are
+	 * appended to the NUPN file, instead of writing them to temporary files.
+	 */
+	public static final String INMEMORY_LABELS = "inmemory.labels";
+
+	/**
+	 * Number of files converted at the same time. Files are converted one after
+	 * the other when it is lower than 2.
+	 */
+	public static final String BATCH_WORKERS = "batch.workers";
+
+	/**
+	 * Port of the conversion server. When set, the tool listens to conversion
+	 * requests on the loopback address instead of converting files.
+	 */
+	public static final String SERVER_PORT = "server.port";
+
+	/**
+	 * Write the metrics of each conversion (phase durations, counters, heap
+	 * high-water mark) in JSON, next to its NUPN file.
+	 */
+	public static final String METRICS_REPORT = "metrics.report";
+
+	/**
+	 * Write the metrics of all the conversions of the run in a single JSON file,
+	 * in the current directory.
+	 */
+	public static final String METRICS_BATCH = "metrics.batch";
+	public static final String METRICS_BATCH_FILE = "pnml2nupn-metrics.json";
+
+	/**
+	 * Number of threads resolving the arcs of a net in native NUPN mode. 0 (the
+	 * default) for the number of available processors, 1 to resolve them on the
+	 * converting thread.
+	 */
+	public static final String ARC_WORKERS = "arc.workers";
+
+	/**
+	 * Maximum number of output buffers handed over to the thread writing each
+	 * output file. The converting thread blocks when they are all pending. 0
+	 * (the default) to write the outputs from the converting thread.
+	 */
+	public static final String WRITER_BUFFERS = "writer.buffers";
+
+	/**
+	 * Size, in KB, up to which a PNML document takes the fast path: it is read
+	 * into the heap instead of being memory-mapped, and its NUPN is built in
+	 * memory and written without writer threads. 0 (the default) for
+	 * {@link ConversionOptions#DEFAULT_SMALL_FILE_SIZE}, a negative value to
+	 * disable the fast path.
+	 */
+	public static final String SMALL_FILE_SIZE = "small.file.size";
+
+	/**
+	 * Size cap of the conversion cache, in MB. The cache is kept in the
+	 * {@link #CACHE_DIR} directory of the current directory. 0 (the default)
+	 * for no cache.
+	 */
+	public static final String CACHE_SIZE = "cache.size";
+	public static final String CACHE_DIR = "pnml2nupn-cache";
+
+	/**
+	 * Convert only the PNML files which changed since the previous runs,
+	 * according to the {@link ConversionManifest#FILE_NAME} manifest of the
+	 * current directory.
+	 */
+	public static final String INCREMENTAL = "incremental";
+
 	private static StringBuilder signatureMesg;
+	/* Command-line options of the conversions */
+	private static ConversionOptions conversionOptions;
+	/* Cache of the conversions of the command line, null if disabled */
+	private static ConversionCache conversionCache;
+	/* Manifest of the converted files in incremental mode, null otherwise */
+	private static ConversionManifest conversionManifest;
 	/**
 	 * Application properties
 	 */
@@ -142,6 +237,8 @@ public final class MainPNML2NUPN {
 
 	private static boolean error;
 	private static org.slf4j.Logger myLog;
+	/* Reports of the successful conversions of the run */
+	private static List<ConversionReport> reports;
 
 	private MainPNML2NUPN() {
 		super();
@@ -155,14 +252,19 @@ public final class MainPNML2NUPN {
 		myLog = LoggerFactory.getLogger(MainPNML2NUPN.class.getCanonicalName());
 		StringBuilder msg = new StringBuilder();
 		error = false;
+		loadProperties();
+		initCommandLineOptions();
+		loadActualCommandLineOptions(msg);
+		conversionOptions = buildConversionOptions();
+		if (getServerPort() > 0) {
+			serve((int) getServerPort());
+			return;
+		}
 		if (args.length < 1) {
 			myLog.error(
 					"The path to at least one PNML P/T file is expected. You may provide a file, a directory, or a mix of several of these.");
 			return;
 		}
-		loadProperties();
-		initCommandLineOptions();
-		loadActualCommandLineOptions(msg);
 		try {
 			extractSrcDestPaths(args);
 		} catch (IOException e1) {
@@ -171,22 +273,18 @@ public final class MainPNML2NUPN {
 			PNML2NUPNUtils.printStackTrace(e1);
 		}
 		initSignatureMessage();
-		PNML2NUPNExporter pe = PNML2NUPNFactory.instance().createExporter();
-		org.slf4j.Logger jr = LoggerFactory.getLogger(pe.getClass().getCanonicalName());
-		for (int i = 0; i < pathSrc.size(); i++) {
-			try {
-				// Option exclusive of the others
-				if (boolOptionsMap.getBoolean(HAS_UNSAFE_ARCS)) {
-					pe.hasUnsafeArcs(pathSrc.get(i), pathDest.get(i), jr);
-				} else {
-					pe.export2NUPN(new File(pathSrc.get(i)), new File(pathDest.get(i)), jr);
-				}
-			} catch (PNMLImportExportException | InterruptedException | IOException | InvalidPNMLTypeException
-					| EarlyStopException e) {
-				myLog.error(e.getMessage());
-				PNML2NUPNUtils.printStackTrace(e);
-				error |= true;
-			}
+		openConversionCache();
+		selectOutdatedFiles();
+		reports = new ArrayList<>();
+		int workers = (int) Math.min(getBatchWorkers(), pathSrc.size());
+		if (workers > 1) {
+			convertInBatch(workers);
+		} else {
+			convertOneByOne();
+		}
+		updateManifest();
+		if (isMetricsBatch()) {
+			writeBatchMetrics();
 		}
 		if (!error) {
 			msg.append("Finished successfully.");
@@ -209,6 +307,228 @@ public final class MainPNML2NUPN {
 		}
 	}
 
+	/**
+	 * Converts the source files one after the other, each with a new exporter
+	 * since an exporter keeps the state of its last translation.
+	 */
+	private static void convertOneByOne() {
+		PNML2NUPNExporter pe;
+		ConversionReport report;
+		org.slf4j.Logger jr = null;
+		for (int i = 0; i < pathSrc.size(); i++) {
+			pe = PNML2NUPNFactory.instance().createExporter();
+			if (jr == null) {
+				jr = LoggerFactory.getLogger(pe.getClass().getCanonicalName());
+			}
+			try {
+				// Option exclusive of the others
+				if (boolOptionsMap.getBoolean(HAS_UNSAFE_ARCS)) {
+					report = pe.hasUnsafeArcs(new File(pathSrc.get(i)), new File(pathDest.get(i)),
+							conversionOptions, jr);
+				} else if (conversionCache != null) {
+					report = conversionCache.export2NUPN(pe, new File(pathSrc.get(i)), new File(pathDest.get(i)),
+							conversionOptions, jr);
+				} else {
+					report = pe.export2NUPN(new File(pathSrc.get(i)), new File(pathDest.get(i)), conversionOptions,
+							jr);
+				}
+				appendToSignature(report.getSignatureLines());
+				reports.add(report);
+			} catch (PNMLImportExportException | InterruptedException | IOException | InvalidPNMLTypeException
+					| EarlyStopException e) {
+				myLog.error(e.getMessage());
+				PNML2NUPNUtils.printStackTrace(e);
+				error |= true;
+			}
+		}
+	}
+
+	/**
+	 * Converts the source files concurrently, then reports their results in the
+	 * order of the source files.
+	 * 
+	 * @param workers
+	 *            number of files converted at the same time
+	 */
+	private static void convertInBatch(int workers) {
+		myLog.info("Converting {} files with {} workers.", pathSrc.size(), workers);
+		List<BatchConverter.Result> results;
+		try {
+			results = new BatchConverter(workers, conversionOptions, boolOptionsMap.getBoolean(HAS_UNSAFE_ARCS),
+					conversionCache, myLog).convert(pathSrc, pathDest);
+		} catch (InterruptedException e) {
+			myLog.error("Batch conversion interrupted.");
+			Thread.currentThread().interrupt();
+			error |= true;
+			return;
+		}
+		int nbFailed = 0, nbNotPTNets = 0;
+		for (BatchConverter.Result r : results) {
+			appendToSignature(r.getSignatureLines());
+			if (r.isSuccess()) {
+				reports.add(r.getReport());
+				myLog.info("Processed {} in {} seconds.", r.getSource(), r.getDuration() / 1.0e9);
+			} else if (r.isNotPTNet()) {
+				nbNotPTNets++;
+				myLog.error("Rejected {}: not a P/T net.", r.getSource());
+			} else {
+				nbFailed++;
+				myLog.error("Failed on {}: {}", r.getSource(), r.getError());
+			}
+		}
+		myLog.info("Batch summary: {} files processed successfully, {} rejected as not P/T nets, {} failed.",
+				results.size() - nbFailed - nbNotPTNets, nbNotPTNets, nbFailed);
+		error |= nbFailed + nbNotPTNets > 0;
+	}
+
+	/**
+	 * Runs the conversion server until it receives a shutdown request.
+	 * 
+	 * @param port
+	 *            the loopback port to listen to
+	 */
+	private static void serve(int port) {
+		int workers = getBatchWorkers() > 0 ? (int) getBatchWorkers() : Runtime.getRuntime().availableProcessors();
+		try {
+			ConversionServer server = new ConversionServer(port, workers, conversionOptions, myLog);
+			myLog.info("Starting conversion server with {} workers.", workers);
+			server.serve();
+		} catch (IOException e) {
+			myLog.error("Conversion server failed: {}", e.getMessage());
+			PNML2NUPNUtils.printStackTrace(e);
+			error |= true;
+		}
+		LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+		loggerContext.stop();
+		if (error) {
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * Writes the metrics of the successful conversions as a JSON array, in the
+	 * order of the source files.
+	 */
+	private static void writeBatchMetrics() {
+		File metrics = new File(METRICS_BATCH_FILE);
+		try (BufferedWriter out = Files.newBufferedWriter(metrics.toPath(), StandardCharsets.UTF_8)) {
+			out.write('[');
+			for (int i = 0; i < reports.size(); i++) {
+				out.write(i == 0 ? NL : "," + NL);
+				out.write(reports.get(i).toJson());
+			}
+			out.write(NL + "]" + NL);
+			myLog.info("See metrics file: {}", metrics.getCanonicalPath());
+		} catch (IOException e) {
+			myLog.error("Could not write the metrics file {}: {}", METRICS_BATCH_FILE, e.getMessage());
+			PNML2NUPNUtils.printStackTrace(e);
+			error |= true;
+		}
+	}
+
+	/**
+	 * Opens the conversion cache, if enabled. Unsafe arcs checking does not
+	 * produce NUPN files, so it is not cached.
+	 */
+	private static void openConversionCache() {
+		if (getCacheSize() <= 0L || boolOptionsMap.getBoolean(HAS_UNSAFE_ARCS)) {
+			return;
+		}
+		File dir = new File(CACHE_DIR);
+		try {
+			conversionCache = new ConversionCache(dir, getCacheSize() * 1024L * 1024L, getToolDescription(), myLog);
+			myLog.info("Using conversion cache {} of {} MB.", dir.getCanonicalPath(), getCacheSize());
+		} catch (IOException e) {
+			myLog.warn("Could not open the conversion cache {}: {}. Converting without it.", CACHE_DIR,
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * In incremental mode, keeps only the source files which are not up to date
+	 * in the manifest. Unsafe arcs checking is not incremental.
+	 */
+	private static void selectOutdatedFiles() {
+		if (!isIncremental() || boolOptionsMap.getBoolean(HAS_UNSAFE_ARCS)) {
+			return;
+		}
+		File manifestFile = new File(ConversionManifest.FILE_NAME);
+		try {
+			conversionManifest = ConversionManifest.load(manifestFile, conversionOptions, getToolDescription(), myLog);
+		} catch (IOException e) {
+			myLog.warn("Could not read the manifest {}: {}. Converting all the files.", ConversionManifest.FILE_NAME,
+					e.getMessage());
+			conversionManifest = null;
+			return;
+		}
+		List<String> outdatedSrc = new ArrayList<>();
+		List<String> outdatedDest = new ArrayList<>();
+		File src, dest;
+		for (int i = 0; i < pathSrc.size(); i++) {
+			src = new File(pathSrc.get(i));
+			dest = new File(pathDest.get(i));
+			try {
+				if (conversionManifest.isUpToDate(src, dest)) {
+					continue;
+				}
+			} catch (IOException e) {
+				myLog.warn("Could not check {}: {}", pathSrc.get(i), e.getMessage());
+			}
+			conversionManifest.forget(src);
+			outdatedSrc.add(pathSrc.get(i));
+			outdatedDest.add(pathDest.get(i));
+		}
+		myLog.info("Incremental mode: {} files out of {} are up to date, converting {} files.",
+				pathSrc.size() - outdatedSrc.size(), pathSrc.size(), outdatedSrc.size());
+		pathSrc = outdatedSrc;
+		pathDest = outdatedDest;
+	}
+
+	/**
+	 * Records the successful conversions in the manifest, and saves it.
+	 */
+	private static void updateManifest() {
+		if (conversionManifest == null) {
+			return;
+		}
+		for (ConversionReport r : reports) {
+			if (r.hasSeveralNets()) {
+				continue;
+			}
+			try {
+				conversionManifest.record(r.getInFile(), r.getOutFile());
+			} catch (IOException e) {
+				myLog.warn("Could not record {} in the manifest: {}", r.getInFile(), e.getMessage());
+			}
+		}
+		try {
+			conversionManifest.save();
+		} catch (IOException e) {
+			myLog.error("Could not write the manifest {}: {}", ConversionManifest.FILE_NAME, e.getMessage());
+			PNML2NUPNUtils.printStackTrace(e);
+			error |= true;
+		}
+	}
+
+	private static String getToolDescription() {
+		return appProperties.getProperty(TOOL_NAME_PROP) + WS + appProperties.getProperty(TOOL_VERSION_PROP);
+	}
+
+	private static ConversionOptions buildConversionOptions() {
+		return ConversionOptions.builder().usePlaceNames(isUsePlaceNames()).useTransitionNames(isUseTransitionNames())
+				.preserveNupnMix(isPreserveNupnMix()).preserveNupnNative(isPreserveNupnNative())
+				.trustNupnSize(isTrustNupnSize()).streamingInput(isStreamingInput()).inMemoryLabels(isInMemoryLabels())
+				.metricsReport(isMetricsReport()).arcWorkers((int) getArcWorkers())
+				.writerBuffers((int) getWriterBuffers()).smallFileSize((int) getSmallFileSize())
+				.firstPlaceNumber(getFirstPlaceNumber()).firstTransitionNumber(getFirstTransitionNumber()).build();
+	}
+
+	private static void appendToSignature(List<String> lines) {
+		for (String line : lines) {
+			appendMesgLineToSignature(line);
+		}
+	}
+
 	private static void loadActualCommandLineOptions(StringBuilder msg) {
 		// Debug mode?
 		checkDebugMode(myLog, msg);
@@ -295,7 +615,8 @@ public final class MainPNML2NUPN {
 
 	private static boolean isIntOption(String option) {
 		switch (option) {
-		case FIRST_PLACE_NUMBER: case FIRST_TRANSITION_NUMBER:
+		case FIRST_PLACE_NUMBER: case FIRST_TRANSITION_NUMBER: case BATCH_WORKERS: case SERVER_PORT: case ARC_WORKERS:
+		case WRITER_BUFFERS: case CACHE_SIZE: case SMALL_FILE_SIZE:
 			return true;
 		default:
 			return false;
@@ -453,6 +774,30 @@ public final class MainPNML2NUPN {
 		return boolOptionsMap.getBoolean(USE_TRANSITION_NAMES);
 	}
 	
+	public static boolean isTrustNupnSize() {
+		return boolOptionsMap.getBoolean(TRUST_NUPN_SIZE);
+	}
+
+	public static boolean isStreamingInput() {
+		return boolOptionsMap.getBoolean(STREAMING_INPUT);
+	}
+
+	public static boolean isInMemoryLabels() {
+		return boolOptionsMap.getBoolean(INMEMORY_LABELS);
+	}
+
+	public static boolean isMetricsReport() {
+		return boolOptionsMap.getBoolean(METRICS_REPORT);
+	}
+
+	public static boolean isMetricsBatch() {
+		return boolOptionsMap.getBoolean(METRICS_BATCH);
+	}
+
+	public static boolean isIncremental() {
+		return boolOptionsMap.getBoolean(INCREMENTAL);
+	}
+
 	public static long getFirstPlaceNumber() {
 		return longOptionsMap.getLong(FIRST_PLACE_NUMBER);
 	}
@@ -461,14 +806,67 @@ public final class MainPNML2NUPN {
 		return longOptionsMap.getLong(FIRST_TRANSITION_NUMBER);
 	}
 
-	public static void appendMesgLineToSignature(String msg) {
+	public static long getBatchWorkers() {
+		return longOptionsMap.getLong(BATCH_WORKERS);
+	}
+
+	public static long getServerPort() {
+		return longOptionsMap.getLong(SERVER_PORT);
+	}
+
+	public static long getArcWorkers() {
+		return longOptionsMap.getLong(ARC_WORKERS);
+	}
+
+	public static long getWriterBuffers() {
+		return longOptionsMap.getLong(WRITER_BUFFERS);
+	}
+
+	public static long getSmallFileSize() {
+		return longOptionsMap.getLong(SMALL_FILE_SIZE);
+	}
+
+	public static long getCacheSize() {
+		return longOptionsMap.getLong(CACHE_SIZE);
+	}
+
+	/**
+	 * Returns the options set on the command line, as the options of a
+	 * conversion. They are the default options if the command line was not
+	 * run.
+	 * 
+	 * @return the command-line conversion options
+	 */
+	public static ConversionOptions getConversionOptions() {
+		return conversionOptions != null ? conversionOptions : ConversionOptions.defaults();
+	}
+
+	public static synchronized void appendMesgLineToSignature(String msg) {
 		signatureMesg.append(NL).append(COLWS).append(msg);
 	}
 
 	public static String getPragmaCreator() {
+		Properties props = getApplicationProperties();
 		StringBuilder pragmaCreator = new StringBuilder();
-		pragmaCreator.append(PRAGMA_CREATOR_PREFIX).append(appProperties.getProperty(TOOL_NAME_PROP)).append(WS)
-				.append(appProperties.getProperty(TOOL_VERSION_PROP));
+		pragmaCreator.append(PRAGMA_CREATOR_PREFIX).append(props.getProperty(TOOL_NAME_PROP)).append(WS)
+				.append(props.getProperty(TOOL_VERSION_PROP));
 		return pragmaCreator.toString();
 	}
+
+	/**
+	 * Returns the application properties, loading them first when the
+	 * exporters are embedded and the command line was not run.
+	 */
+	private static synchronized Properties getApplicationProperties() {
+		if (appProperties == null) {
+			Properties props = new Properties();
+			try (final InputStream appPropIs = MainPNML2NUPN.class.getResourceAsStream(APPPROP_FILE_NAME)) {
+				props.load(appPropIs);
+			} catch (IOException ex) {
+				PNML2NUPNUtils.printStackTrace(ex);
+			}
+			appProperties = props;
+		}
+		return appProperties;
+	}
 }
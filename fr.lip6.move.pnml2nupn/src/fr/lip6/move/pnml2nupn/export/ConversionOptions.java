@@ -0,0 +1,302 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export;
+
+import java.io.File;
+
+import fr.lip6.move.pnml2nupn.MainPNML2NUPN;
+
+/**
+ * Options of a conversion. Instances are immutable, so that several
+ * conversions with different options can run in the same JVM, at the same
+ * time.
+ * <p>
+ * The command-line invocation builds them from the system properties listed
+ * in {@link MainPNML2NUPN}. Embedders build them like so:
+ * </p>
+ * 
+ * <pre>
+ * ConversionOptions options = ConversionOptions.builder().usePlaceNames(true).firstPlaceNumber(1).build();
+ * </pre>
+ */
+public final class ConversionOptions {
+
+	/**
+	 * Size, in KB, up to which a PNML document takes the fast path when the
+	 * small file size is left to 0: 1 MB.
+	 */
+	public static final int DEFAULT_SMALL_FILE_SIZE = 1024;
+
+	private static final ConversionOptions DEFAULTS = builder().build();
+
+	private final boolean usePlaceNames;
+	private final boolean useTransitionNames;
+	private final boolean preserveNupnMix;
+	private final boolean preserveNupnNative;
+	private final boolean trustNupnSize;
+	private final boolean streamingInput;
+	private final boolean inMemoryLabels;
+	private final boolean metricsReport;
+	private final int arcWorkers;
+	private final int writerBuffers;
+	private final int smallFileSize;
+	private final long firstPlaceNumber;
+	private final long firstTransitionNumber;
+
+	private ConversionOptions(Builder b) {
+		this.usePlaceNames = b.usePlaceNames;
+		this.useTransitionNames = b.useTransitionNames;
+		this.preserveNupnMix = b.preserveNupnMix;
+		this.preserveNupnNative = b.preserveNupnNative;
+		this.trustNupnSize = b.trustNupnSize;
+		this.streamingInput = b.streamingInput;
+		this.inMemoryLabels = b.inMemoryLabels;
+		this.metricsReport = b.metricsReport;
+		this.arcWorkers = b.arcWorkers;
+		this.writerBuffers = b.writerBuffers;
+		this.smallFileSize = b.smallFileSize;
+		this.firstPlaceNumber = b.firstPlaceNumber;
+		this.firstTransitionNumber = b.firstTransitionNumber;
+	}
+
+	/**
+	 * @return the options with their default values, as when no system property
+	 *         is set
+	 */
+	public static ConversionOptions defaults() {
+		return DEFAULTS;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return a builder initialized with these options
+	 */
+	public Builder toBuilder() {
+		return new Builder().usePlaceNames(usePlaceNames).useTransitionNames(useTransitionNames)
+				.preserveNupnMix(preserveNupnMix).preserveNupnNative(preserveNupnNative)
+				.trustNupnSize(trustNupnSize).streamingInput(streamingInput).inMemoryLabels(inMemoryLabels).metricsReport(metricsReport)
+				.arcWorkers(arcWorkers).writerBuffers(writerBuffers).smallFileSize(smallFileSize).firstPlaceNumber(firstPlaceNumber).firstTransitionNumber(firstTransitionNumber);
+	}
+
+	/**
+	 * @see MainPNML2NUPN#USE_PLACE_NAMES
+	 */
+	public boolean isUsePlaceNames() {
+		return usePlaceNames;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#USE_TRANSITION_NAMES
+	 */
+	public boolean isUseTransitionNames() {
+		return useTransitionNames;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#PRESERVE_NUPN_MIX
+	 */
+	public boolean isPreserveNupnMix() {
+		return preserveNupnMix;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#PRESERVE_NUPN_NATIVE
+	 */
+	public boolean isPreserveNupnNative() {
+		return preserveNupnNative;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#TRUST_NUPN_SIZE
+	 */
+	public boolean isTrustNupnSize() {
+		return trustNupnSize;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#STREAMING_INPUT
+	 */
+	public boolean isStreamingInput() {
+		return streamingInput;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#INMEMORY_LABELS
+	 */
+	public boolean isInMemoryLabels() {
+		return inMemoryLabels;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#METRICS_REPORT
+	 */
+	public boolean isMetricsReport() {
+		return metricsReport;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#ARC_WORKERS
+	 */
+	public int getArcWorkers() {
+		return arcWorkers;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#WRITER_BUFFERS
+	 */
+	public int getWriterBuffers() {
+		return writerBuffers;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#SMALL_FILE_SIZE
+	 */
+	public int getSmallFileSize() {
+		return smallFileSize;
+	}
+
+	/**
+	 * @return the size, in bytes, up to which a PNML document takes the fast
+	 *         path, -1 if it is disabled
+	 * @see MainPNML2NUPN#SMALL_FILE_SIZE
+	 */
+	public long getSmallFileThreshold() {
+		if (smallFileSize < 0) {
+			return -1L;
+		}
+		return (smallFileSize == 0 ? DEFAULT_SMALL_FILE_SIZE : smallFileSize) * 1024L;
+	}
+
+	/**
+	 * @param inFile
+	 *            a PNML document
+	 * @return true if the document takes the fast path of small files
+	 * @see MainPNML2NUPN#SMALL_FILE_SIZE
+	 */
+	public boolean isSmallFile(File inFile) {
+		long threshold = getSmallFileThreshold();
+		return threshold >= 0L && inFile.length() <= threshold;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#FIRST_PLACE_NUMBER
+	 */
+	public long getFirstPlaceNumber() {
+		return firstPlaceNumber;
+	}
+
+	/**
+	 * @see MainPNML2NUPN#FIRST_TRANSITION_NUMBER
+	 */
+	public long getFirstTransitionNumber() {
+		return firstTransitionNumber;
+	}
+
+	/**
+	 * Builder of {@link ConversionOptions}. All the options are disabled,
+	 * numbering starts from 0, as many arc workers as processors are used and
+	 * the outputs are written from the converting thread, unless set otherwise.
+	 * Documents up to the default small file size take the fast path.
+	 */
+	public static final class Builder {
+		private boolean usePlaceNames;
+		private boolean useTransitionNames;
+		private boolean preserveNupnMix;
+		private boolean preserveNupnNative;
+		private boolean trustNupnSize;
+		private boolean streamingInput;
+		private boolean inMemoryLabels;
+		private boolean metricsReport;
+		private int arcWorkers;
+		private int writerBuffers;
+		private int smallFileSize;
+		private long firstPlaceNumber;
+		private long firstTransitionNumber;
+
+		private Builder() {
+			super();
+		}
+
+		public Builder usePlaceNames(boolean value) {
+			this.usePlaceNames = value;
+			return this;
+		}
+
+		public Builder useTransitionNames(boolean value) {
+			this.useTransitionNames = value;
+			return this;
+		}
+
+		public Builder preserveNupnMix(boolean value) {
+			this.preserveNupnMix = value;
+			return this;
+		}
+
+		public Builder preserveNupnNative(boolean value) {
+			this.preserveNupnNative = value;
+			return this;
+		}
+
+		public Builder trustNupnSize(boolean value) {
+			this.trustNupnSize = value;
+			return this;
+		}
+
+		public Builder streamingInput(boolean value) {
+			this.streamingInput = value;
+			return this;
+		}
+
+		public Builder inMemoryLabels(boolean value) {
+			this.inMemoryLabels = value;
+			return this;
+		}
+
+		public Builder metricsReport(boolean value) {
+			this.metricsReport = value;
+			return this;
+		}
+
+		public Builder arcWorkers(int value) {
+			this.arcWorkers = value;
+			return this;
+		}
+
+		public Builder writerBuffers(int value) {
+			this.writerBuffers = value;
+			return this;
+		}
+
+		public Builder smallFileSize(int value) {
+			this.smallFileSize = value;
+			return this;
+		}
+
+		public Builder firstPlaceNumber(long value) {
+			this.firstPlaceNumber = value;
+			return this;
+		}
+
+		public Builder firstTransitionNumber(long value) {
+			this.firstTransitionNumber = value;
+			return this;
+		}
+
+		public ConversionOptions build() {
+			return new ConversionOptions(this);
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
+import it.unimi.dsi.fastutil.objects.Object2LongLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMaps;
+
+/**
+ * Report of a conversion, filled in by the exporter while it runs. It belongs
+ * to that conversion only, and is not meant to be shared between threads
+ * before the conversion returns it.
+ * <p>
+ * Besides the signature lines, it holds the metrics of the conversion: the
+ * duration of its phases, in the order they ran, counters of what was read
+ * and written, and the heap high-water mark. The latter is sampled at the end
+ * of each phase, over the whole JVM: it includes the heap of the other
+ * conversions running at the same time.
+ * </p>
+ */
+public final class ConversionReport {
+
+	public static final String PHASE_PARSE = "parse";
+	/** Estimate of the sizes of the net, to presize the tables */
+	public static final String PHASE_SIZING = "sizing";
+	public static final String PHASE_EXTRACT = "extract";
+	public static final String PHASE_PLACES = "places";
+	public static final String PHASE_BUILD_TRANSITIONS = "buildTransitions";
+	public static final String PHASE_UNSAFE_ARCS_PRAGMA = "unsafeArcsPragma";
+	public static final String PHASE_UNITS = "units";
+	public static final String PHASE_PLACE_LABELS = "placeLabels";
+	public static final String PHASE_TRANSITIONS = "transitions";
+	public static final String PHASE_UNSAFE_ARCS = "unsafeArcs";
+	public static final String PHASE_DRAIN = "drain";
+	public static final String PHASE_LABELS = "labels";
+	/** Copy of the NUPN file from the conversion cache, instead of all the others */
+	public static final String PHASE_CACHE = "cache";
+	/** Export of the nets of a document with several nets, each into its own NUPN file */
+	public static final String PHASE_NETS = "nets";
+
+	public static final String COUNT_PLACES = "places";
+	public static final String COUNT_TRANSITIONS = "transitions";
+	public static final String COUNT_ARCS = "arcs";
+	public static final String COUNT_UNSAFE_ARCS = "unsafeArcs";
+	public static final String COUNT_UNITS = "units";
+	public static final String COUNT_INPUT_BYTES = "inputBytes";
+	public static final String COUNT_OUTPUT_BYTES = "outputBytes";
+	/** Bytes of the labels sections held until they are appended */
+	public static final String COUNT_LABEL_BYTES = "labelBytes";
+	/** Bytes of the distinct node ids held by the id dictionary */
+	public static final String COUNT_NODE_ID_BYTES = "nodeIdBytes";
+	/** Nanoseconds spent waiting for the outputs to be written */
+	public static final String COUNT_WRITER_STALL_NS = "writerStallNs";
+	/** Highest number of buffers pending in an output writer */
+	public static final String COUNT_WRITER_HIGH_WATER = "writerHighWater";
+	/** Rehashes of the hash tables, which were not presized right */
+	public static final String COUNT_REHASHES = "rehashes";
+	/** Nanoseconds spent rehashing the hash tables */
+	public static final String COUNT_REHASH_NS = "rehashNs";
+	/** Nets of a document exported each into its own NUPN file */
+	public static final String COUNT_NETS = "nets";
+
+	public static final String METRICS_EXT = ".metrics.json";
+
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	private final File inFile;
+	private final File outFile;
+	private final List<String> signatureLines;
+	private final Object2LongLinkedOpenHashMap<String> phases;
+	private final Object2LongLinkedOpenHashMap<String> counters;
+	private final long start;
+	private long duration;
+	private String phase;
+	private long phaseStart;
+	private long heapHighWater;
+
+	public ConversionReport(File inFile, File outFile) {
+		this.inFile = inFile;
+		this.outFile = outFile;
+		this.signatureLines = new ArrayList<>();
+		this.phases = new Object2LongLinkedOpenHashMap<>();
+		this.counters = new Object2LongLinkedOpenHashMap<>();
+		this.start = System.nanoTime();
+		this.duration = -1L;
+	}
+
+	public File getInFile() {
+		return inFile;
+	}
+
+	public File getOutFile() {
+		return outFile;
+	}
+
+	/**
+	 * Adds a line to the signature message, which notes how the NUPN differs
+	 * from the PNML (e.g. decreased initial markings, unsafe arcs).
+	 * 
+	 * @param line
+	 */
+	public void addSignatureLine(String line) {
+		signatureLines.add(line);
+	}
+
+	/**
+	 * @return the lines added to the signature message, in order
+	 */
+	public List<String> getSignatureLines() {
+		return Collections.unmodifiableList(signatureLines);
+	}
+
+	/**
+	 * Ends the current phase, if any, and starts a new one. A phase run several
+	 * times accumulates its durations.
+	 * 
+	 * @param name
+	 *            the name of the phase
+	 */
+	public void beginPhase(String name) {
+		long now = System.nanoTime();
+		closePhase(now);
+		phase = name;
+		phaseStart = now;
+	}
+
+	/**
+	 * Ends the current phase, if any.
+	 */
+	public void endPhase() {
+		closePhase(System.nanoTime());
+	}
+
+	private void closePhase(long now) {
+		if (phase != null) {
+			phases.addTo(phase, now - phaseStart);
+			phase = null;
+			heapHighWater = Math.max(heapHighWater, MEMORY.getHeapMemoryUsage().getUsed());
+		}
+	}
+
+	/**
+	 * Ends the last phase and the conversion.
+	 */
+	public void finish() {
+		endPhase();
+		duration = System.nanoTime() - start;
+	}
+
+	public void setCounter(String name, long value) {
+		counters.put(name, value);
+	}
+
+	/**
+	 * @return the phase durations in nanoseconds, in the order the phases first
+	 *         ran
+	 */
+	public Object2LongMap<String> getPhases() {
+		return Object2LongMaps.unmodifiable(phases);
+	}
+
+	public Object2LongMap<String> getCounters() {
+		return Object2LongMaps.unmodifiable(counters);
+	}
+
+	/**
+	 * @return true if the document had several nets, each exported into its
+	 *         own NUPN file: the output file itself is not written
+	 */
+	public boolean hasSeveralNets() {
+		return counters.getLong(COUNT_NETS) > 1L;
+	}
+
+	/**
+	 * @return the duration of the conversion in nanoseconds, or -1 if it is not
+	 *         finished
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return the highest heap usage seen at the end of a phase, in bytes
+	 */
+	public long getHeapHighWater() {
+		return heapHighWater;
+	}
+
+	/**
+	 * @return the metrics as a JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder(512);
+		json.append("{\"input\":");
+		appendJsonString(json, inFile.getPath());
+		json.append(",\"output\":");
+		appendJsonString(json, outFile.getPath());
+		json.append(",\"durationNs\":").append(duration);
+		json.append(",\"phasesNs\":");
+		appendJsonObject(json, phases);
+		json.append(",\"counters\":");
+		appendJsonObject(json, counters);
+		json.append(",\"heapHighWaterBytes\":").append(heapHighWater);
+		json.append(",\"signature\":[");
+		for (int i = 0; i < signatureLines.size(); i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			appendJsonString(json, signatureLines.get(i));
+		}
+		return json.append("]}").toString();
+	}
+
+	/**
+	 * Writes the metrics next to the output file, with the
+	 * <code>.metrics.json</code> extension.
+	 * 
+	 * @return the written file
+	 * @throws IOException
+	 */
+	public File writeJson() throws IOException {
+		File metrics = new File(PNML2NUPNUtils.extractBaseName(outFile.getCanonicalPath()) + METRICS_EXT);
+		Files.write(metrics.toPath(), (toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+		return metrics;
+	}
+
+	private static void appendJsonObject(StringBuilder json, Object2LongLinkedOpenHashMap<String> map) {
+		json.append('{');
+		boolean first = true;
+		for (Object2LongMap.Entry<String> e : map.object2LongEntrySet()) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			appendJsonString(json, e.getKey());
+			json.append(':').append(e.getLongValue());
+		}
+		json.append('}');
+	}
+
+	private static void appendJsonString(StringBuilder json, String s) {
+		json.append('"');
+		char c;
+		for (int i = 0; i < s.length(); i++) {
+			c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append('"');
+	}
+}
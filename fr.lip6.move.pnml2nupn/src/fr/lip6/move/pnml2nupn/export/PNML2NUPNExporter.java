@@ -43,4 +43,22 @@ public interface PNML2NUPNExporter {
 	void hasUnsafeArcs(String inFile, String outFile, Logger journal)
 			throws InvalidPNMLTypeException, IOException,
 			PNMLImportExportException;
+
+	/**
+	 * Exports a PNML file into NUPN with the given options, independently of the
+	 * command-line options.
+	 * 
+	 * @return the report of this conversion
+	 */
+	ConversionReport export2NUPN(File inFile, File outFile, ConversionOptions options, Logger journal)
+			throws PNMLImportExportException, InterruptedException, IOException, EarlyStopException;
+
+	/**
+	 * Lists the unsafe arcs of a PNML file with the given options,
+	 * independently of the command-line options.
+	 * 
+	 * @return the report of this check
+	 */
+	ConversionReport hasUnsafeArcs(File inFile, File outFile, ConversionOptions options, Logger journal)
+			throws InvalidPNMLTypeException, IOException, PNMLImportExportException;
 }
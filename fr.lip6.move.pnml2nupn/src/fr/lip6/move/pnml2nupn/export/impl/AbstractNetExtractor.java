@@ -0,0 +1,395 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import org.slf4j.Logger;
+
+import com.ximpleware.extended.NavExceptionHuge;
+import com.ximpleware.extended.VTDNavHuge;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntBigArrayBigList;
+import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectBigArrayBigList;
+
+/**
+ * Tables collected from a PNML net by an input engine, in document order:
+ * places, initial markings, transitions, arcs with their inscriptions and, on
+ * demand, the units of the NUPN tool specific section. Input engines fill them
+ * through the protected recording methods; the exporter reads them.
+ * <p>
+ * Places and transitions are designated by the handles of their ids in a
+ * {@link NodeIdDictionary}. Their ids and names are turned into strings only
+ * when their labels are written.
+ * </p>
+ */
+public abstract class AbstractNetExtractor {
+
+	protected final Logger logger;
+	protected final boolean usePlaceNames;
+	protected final boolean useTransitionNames;
+	protected final boolean collectUnits;
+	private final Int2ObjectOpenHashMap<String> placeNames;
+	private final Int2ObjectOpenHashMap<String> transitionNames;
+	private final NodeIdDictionary nodeIds;
+
+	private final IntBigArrayBigList places;
+	private final IntBigArrayBigList markedPlaces;
+	private final LongBigArrayBigList markedPlaceTokens;
+	private final IntBigArrayBigList transitions;
+	private final IntBigArrayBigList arcSources;
+	private final IntBigArrayBigList arcTargets;
+	private final LongBigArrayBigList arcInscriptions;
+	private final ObjectBigArrayBigList<String> unsafeArcIds;
+	private final LongBigArrayBigList unsafeArcIndexes;
+	private final ObjectArrayList<String[]> structures;
+	private final ObjectBigArrayBigList<String[]> units;
+	private boolean hasNUPNToolspecific;
+
+	/**
+	 * @param journal
+	 *            the logger
+	 * @param usePlaceNames
+	 *            collect place names, and label places with them
+	 * @param useTransitionNames
+	 *            collect transition names, and label transitions with them
+	 * @param collectUnits
+	 *            collect the structure and units of the NUPN tool specific
+	 *            section (mixed mode)
+	 * @param sizes
+	 *            the estimated sizes of the net, which the tables are presized
+	 *            to
+	 * @param rehashes
+	 *            the counter of the rehashes of the name maps
+	 */
+	protected AbstractNetExtractor(Logger journal, boolean usePlaceNames, boolean useTransitionNames,
+			boolean collectUnits, NetSizes sizes, RehashCounter rehashes) {
+		this.logger = journal;
+		this.usePlaceNames = usePlaceNames;
+		this.useTransitionNames = useTransitionNames;
+		this.collectUnits = collectUnits;
+		this.placeNames = rehashes.newInt2ObjectMap(usePlaceNames ? NetSizes.capacity(sizes.getPlaces()) : 0);
+		this.placeNames.defaultReturnValue("");
+		this.transitionNames = rehashes
+				.newInt2ObjectMap(useTransitionNames ? NetSizes.capacity(sizes.getTransitions()) : 0);
+		this.transitionNames.defaultReturnValue("");
+		this.nodeIds = new NodeIdDictionary(NetSizes.capacity(sizes.getNodes()));
+		this.places = new IntBigArrayBigList(sizes.getPlaces());
+		this.markedPlaces = new IntBigArrayBigList();
+		this.markedPlaceTokens = new LongBigArrayBigList();
+		this.transitions = new IntBigArrayBigList(sizes.getTransitions());
+		this.arcSources = new IntBigArrayBigList(sizes.getArcs());
+		this.arcTargets = new IntBigArrayBigList(sizes.getArcs());
+		this.arcInscriptions = new LongBigArrayBigList(sizes.getArcs());
+		this.unsafeArcIds = new ObjectBigArrayBigList<>();
+		this.unsafeArcIndexes = new LongBigArrayBigList();
+		this.structures = new ObjectArrayList<>();
+		this.units = new ObjectBigArrayBigList<>();
+	}
+
+	/**
+	 * To be called by the input engines once the document has been read.
+	 */
+	protected final void endOfExtraction() {
+		if (!hasNUPNToolspecific) {
+			logger.info("No NUPN tool specific section in this PNML file.");
+		}
+		logger.info("Extracted {} places, {} transitions and {} arcs.", places.size64(), transitions.size64(),
+				arcSources.size64());
+	}
+
+	/**
+	 * @return the handle of a node id
+	 */
+	protected final int node(String id) {
+		return nodeIds.add(id);
+	}
+
+	/**
+	 * @param token
+	 *            index of the token holding the node id, -1 if there is none
+	 * @return the handle of the node id
+	 * @throws NavExceptionHuge
+	 */
+	protected final int node(VTDNavHuge vn, int token) throws NavExceptionHuge {
+		return nodeIds.add(vn, token);
+	}
+
+	/**
+	 * Records a place.
+	 * 
+	 * @return the handle of the place
+	 */
+	protected final int addPlace(int node) {
+		places.add(node);
+		return node;
+	}
+
+	/**
+	 * Records a transition.
+	 * 
+	 * @return the handle of the transition
+	 */
+	protected final int addTransition(int node) {
+		transitions.add(node);
+		return node;
+	}
+
+	/**
+	 * Records the name of a place, if it has not been recorded yet.
+	 */
+	protected final void addPlaceName(int node, String name) {
+		addName(node, name, placeNames);
+	}
+
+	/**
+	 * Records the name of a transition, if it has not been recorded yet.
+	 */
+	protected final void addTransitionName(int node, String name) {
+		addName(node, name, transitionNames);
+	}
+
+	private static void addName(int node, String name, Int2ObjectOpenHashMap<String> names) {
+		if (!names.containsKey(node)) {
+			names.put(node, name.trim());
+		}
+	}
+
+	/**
+	 * Records an initial marking. Only initial markings whose value is a
+	 * strictly positive integer make the place initially marked, as the former
+	 * XPath predicate text > 0 did.
+	 */
+	protected final void addMarking(int place, String text) {
+		try {
+			addMarking(place, Long.parseLong(text.trim()));
+		} catch (NumberFormatException e) {
+			ignoreMarking(place);
+		}
+	}
+
+	/**
+	 * Records an initial marking already parsed, see
+	 * {@link #addMarking(int, String)}.
+	 */
+	protected final void addMarking(int place, long mkg) {
+		if (mkg > 0L) {
+			markedPlaces.add(place);
+			markedPlaceTokens.add(mkg);
+		}
+	}
+
+	/**
+	 * Reports an initial marking which is not an integer.
+	 */
+	protected final void ignoreMarking(int place) {
+		logger.warn("Ignoring initial marking of place {}, which is not an integer.", nodeIds.toString(place));
+	}
+
+	/**
+	 * Records an arc.
+	 * 
+	 * @param inscription
+	 *            its inscription, 1 when there is none
+	 * @return the index of the arc in the arcs tables
+	 */
+	protected final long addArc(int src, int trg, long inscription) {
+		long arc = arcSources.size64();
+		arcSources.add(src);
+		arcTargets.add(trg);
+		arcInscriptions.add(inscription);
+		return arc;
+	}
+
+	/**
+	 * Records the id of an arc whose inscription is greater than 1.
+	 */
+	protected final void addUnsafeArc(String id, long arc) {
+		unsafeArcIds.add(id);
+		unsafeArcIndexes.add(arc);
+	}
+
+	/**
+	 * Records a NUPN tool specific section and its version. Only the first
+	 * supported version found sets {@link #hasNUPNToolspecific()}.
+	 */
+	protected final void addNUPNToolSpecific(String version) {
+		if (!hasNUPNToolspecific) {
+			if (NUPNConstants.NUPN_SUPPORTED_VERSION.equals(version)) {
+				hasNUPNToolspecific = true;
+				logger.info("NUPN toolspecific section detected in the PNML, version: {}", version);
+			} else {
+				logger.warn("NUPN toolspecific section detected in the PNML, but version not supported: {}",
+						version);
+				logger.warn("I support NUPN toolspecific version {}", NUPNConstants.NUPN_SUPPORTED_VERSION);
+			}
+		}
+	}
+
+	/**
+	 * Records a NUPN structure.
+	 */
+	protected final void addStructure(String nbUnits, String root) {
+		structures.add(new String[] { nbUnits, root });
+	}
+
+	/**
+	 * Records a NUPN unit, with the trimmed text of its places and subunits.
+	 */
+	protected final void addUnit(String id, String places, String subunits) {
+		units.add(new String[] { id, places.trim(), subunits.trim() });
+	}
+
+	public boolean hasNUPNToolspecific() {
+		return hasNUPNToolspecific;
+	}
+
+	/**
+	 * @return the dictionary of the node ids
+	 */
+	public NodeIdDictionary getNodeIds() {
+		return nodeIds;
+	}
+
+	/**
+	 * @param place
+	 *            handle of a place
+	 * @return the label of the place: its name if place names are used
+	 *         ({@link NUPNConstants#NO_NAME_PREFIX} if it has none), its id
+	 *         otherwise
+	 */
+	public String getPlaceLabel(int place) {
+		return label(place, usePlaceNames, placeNames);
+	}
+
+	/**
+	 * @param transition
+	 *            handle of a transition
+	 * @return the label of the transition, as {@link #getPlaceLabel(int)}
+	 */
+	public String getTransitionLabel(int transition) {
+		return label(transition, useTransitionNames, transitionNames);
+	}
+
+	private String label(int node, boolean useNames, Int2ObjectOpenHashMap<String> names) {
+		if (!useNames) {
+			return nodeIds.toString(node);
+		}
+		String name = names.get(node);
+		return name.isEmpty() ? NUPNConstants.NO_NAME_PREFIX : name;
+	}
+
+	/**
+	 * @return the handles of the places, in document order
+	 */
+	public IntBigArrayBigList getPlaces() {
+		return places;
+	}
+
+	/**
+	 * @return the handles of the initially marked places, in document order
+	 */
+	public IntBigArrayBigList getMarkedPlaces() {
+		return markedPlaces;
+	}
+
+	/**
+	 * @return the initial marking of the marked places, parallel to
+	 *         {@link #getMarkedPlaces()}
+	 */
+	public LongBigArrayBigList getMarkedPlaceTokens() {
+		return markedPlaceTokens;
+	}
+
+	/**
+	 * @return the handles of the transitions, in document order
+	 */
+	public IntBigArrayBigList getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * @return the handles of the source nodes of the arcs, in document order
+	 */
+	public IntBigArrayBigList getArcSources() {
+		return arcSources;
+	}
+
+	/**
+	 * @return the handles of the target nodes of the arcs, parallel to
+	 *         {@link #getArcSources()}
+	 */
+	public IntBigArrayBigList getArcTargets() {
+		return arcTargets;
+	}
+
+	/**
+	 * @return the inscriptions of the arcs (1 when there is none), parallel to
+	 *         {@link #getArcSources()}
+	 */
+	public LongBigArrayBigList getArcInscriptions() {
+		return arcInscriptions;
+	}
+
+	/**
+	 * @return the ids of the arcs whose inscription is greater than 1, in
+	 *         document order
+	 */
+	public ObjectBigArrayBigList<String> getUnsafeArcIds() {
+		return unsafeArcIds;
+	}
+
+	/**
+	 * @return the indexes in the arcs tables of the unsafe arcs, parallel to
+	 *         {@link #getUnsafeArcIds()}
+	 */
+	public LongBigArrayBigList getUnsafeArcIndexes() {
+		return unsafeArcIndexes;
+	}
+
+	/**
+	 * @return the NUPN structures as pairs {units, root}, in document order
+	 */
+	public ObjectArrayList<String[]> getStructures() {
+		return structures;
+	}
+
+	/**
+	 * @return the NUPN units as triples {id, places, subunits}, in document
+	 *         order
+	 */
+	public ObjectBigArrayBigList<String[]> getUnits() {
+		return units;
+	}
+
+	/**
+	 * Releases the collected tables.
+	 */
+	public void clear() {
+		nodeIds.clear();
+		placeNames.clear();
+		transitionNames.clear();
+		places.clear();
+		markedPlaces.clear();
+		markedPlaceTokens.clear();
+		transitions.clear();
+		arcSources.clear();
+		arcTargets.clear();
+		arcInscriptions.clear();
+		unsafeArcIds.clear();
+		unsafeArcIndexes.clear();
+		structures.clear();
+		units.clear();
+	}
+}
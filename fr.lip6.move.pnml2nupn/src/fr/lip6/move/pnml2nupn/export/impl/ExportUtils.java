@@ -1,19 +1,18 @@
 package fr.lip6.move.pnml2nupn.export.impl;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 
 import com.ximpleware.extended.AutoPilotHuge;
+import com.ximpleware.extended.IByteBuffer;
 import com.ximpleware.extended.NavExceptionHuge;
 import com.ximpleware.extended.VTDNavHuge;
 import com.ximpleware.extended.XPathEvalExceptionHuge;
 import com.ximpleware.extended.XPathParseExceptionHuge;
 
 import fr.lip6.move.pnml2nupn.MainPNML2NUPN;
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
 import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 
@@ -56,19 +55,73 @@ public final class ExportUtils {
 		return result;
 	}
 
+	/**
+	 * Moves the cursor from the root element to the first net to visit.
+	 * 
+	 * @param vn
+	 * @param net
+	 *            position of the net to visit among the nets of the document,
+	 *            from 1, or 0 to visit all of them
+	 * @return false if the document has no such net
+	 * @throws NavExceptionHuge
+	 * @see #toNextNet(VTDNavHuge, int)
+	 */
+	public static boolean toNet(VTDNavHuge vn, int net) throws NavExceptionHuge {
+		vn.toElement(VTDNavHuge.ROOT);
+		if (!vn.matchElement(PNMLPaths.PNML_ELEMENT) || !vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.NET_ELEMENT)) {
+			return false;
+		}
+		for (int i = 1; i < net; i++) {
+			if (!vn.toElement(VTDNavHuge.NEXT_SIBLING, PNMLPaths.NET_ELEMENT)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the cursor from a net to the next net to visit.
+	 * 
+	 * @param vn
+	 * @param net
+	 *            as passed to {@link #toNet(VTDNavHuge, int)}
+	 * @return false if all the nets to visit were
+	 * @throws NavExceptionHuge
+	 */
+	public static boolean toNextNet(VTDNavHuge vn, int net) throws NavExceptionHuge {
+		return net == 0 && vn.toElement(VTDNavHuge.NEXT_SIBLING, PNMLPaths.NET_ELEMENT);
+	}
+
+	/**
+	 * @param vn
+	 * @return the number of nets in the document. The cursor is left at the
+	 *         root element.
+	 * @throws NavExceptionHuge
+	 */
+	public static int countNets(VTDNavHuge vn) throws NavExceptionHuge {
+		int nbNets = 0;
+		if (toNet(vn, 0)) {
+			do {
+				nbNets++;
+			} while (toNextNet(vn, 0));
+		}
+		vn.toElement(VTDNavHuge.ROOT);
+		return nbNets;
+	}
+
 	/**
 	 * Inserts unit safeness pragma (as reported by the unit safeness checking tool)
-	 * @param nupnQueue the output queue
+	 * @param nupnOut the NUPN output
 	 * @param toolName the name (and possibly the version) of the tool stating the unit safeness information.
 	 * If null, a default is set {@link MainPNML2NUPN#PRAGMA_UNIT_SAFE_BY_UNKNOWN}
 	 * 
-	 * @throws InterruptedException
+	 * @throws IOException
 	 */
-	public static void insertUnitSafePragma(BlockingQueue<String> nupnQueue, String toolName) throws InterruptedException {
+	public static void insertUnitSafePragma(NUPNEmitter nupnOut, String toolName) throws IOException {
 		if (toolName != null) {
-			PNML2NUPNUtils.insertPragma(toolName + NUPNConstants.NL, nupnQueue);
+			PNML2NUPNUtils.insertPragma(toolName + NUPNConstants.NL, nupnOut);
 		} else {
-			PNML2NUPNUtils.insertPragma(MainPNML2NUPN.PRAGMA_UNIT_SAFE_BY_UNKNOWN + NUPNConstants.NL, nupnQueue);
+			PNML2NUPNUtils.insertPragma(MainPNML2NUPN.PRAGMA_UNIT_SAFE_BY_UNKNOWN + NUPNConstants.NL, nupnOut);
 		}
 	}
 
@@ -84,49 +137,77 @@ public final class ExportUtils {
 		return currentLength;
 	}
 
+	/**
+	 * Returns the end of the element of a unit text (its places or subunits)
+	 * which starts at an index: the index of the next space, or the length of
+	 * the text. Walking a trimmed text this way sees the same elements as
+	 * splitting it on single spaces, without an array as long as the unit line.
+	 * 
+	 * @param text
+	 *            the trimmed text of the places or subunits of a unit
+	 * @param start
+	 *            the start of an element
+	 */
+	public static int elementEnd(String text, int start) {
+		int end = text.indexOf(NUPNConstants.WS, start);
+		return end == -1 ? text.length() : end;
+	}
+
+	/**
+	 * @param text
+	 *            the trimmed, non-empty text of the places or subunits of a
+	 *            unit
+	 * @return the number of its elements, see {@link #elementEnd(String, int)}
+	 */
+	public static int countElements(String text) {
+		int count = 1;
+		for (int i = text.indexOf(NUPNConstants.WS); i != -1; i = text.indexOf(NUPNConstants.WS, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
 	/**
 	 * Sets the labels line (i.e., header) in the NUPN.
 	 * 
-	 * @param nupnQueue
-	 *            output queue
+	 * @param nupnOut
+	 *            the NUPN output
 	 * @param labelLength
 	 *            the greatest label length
 	 * @param thereExistTransitions
 	 *            are there any transition in the net?
-	 * @throws InterruptedException
 	 * @throws IOException
 	 */
-	public static void setLabelsLine(BlockingQueue<String> nupnQueue, int labelLength, boolean thereExistTransitions)
-			throws InterruptedException, IOException {
-		String endOfLabel = NUPNConstants.WS + labelLength + NUPNConstants.NL;
+	public static void setLabelsLine(NUPNEmitter nupnOut, int labelLength, boolean thereExistTransitions)
+			throws IOException {
 		if (!thereExistTransitions) {
-			nupnQueue.put(NUPNConstants.LABELS_1_1_0 + endOfLabel);
+			nupnOut.append(NUPNConstants.LABELS_1_1_0);
 		} else {
-			nupnQueue.put(NUPNConstants.LABELS_1_0_0 + endOfLabel);
+			nupnOut.append(NUPNConstants.LABELS_1_0_0);
 		}
+		nupnOut.append(NUPNConstants.WS).append(labelLength).append(NUPNConstants.NL);
 	}
 
 	/**
-	 * Append the content of a given file to a NUPN file
+	 * Sets the counters of the time spent waiting for the outputs to be
+	 * written, and of the highest number of buffers pending in their writers.
 	 * 
-	 * @param outPlacesFile
-	 *            the file whose content is to be appended
-	 * @param nupnQueue
-	 *            the writing queue to the NUPN file
-	 * @param logger
-	 * @throws IOException
+	 * @param report
+	 *            the report of the conversion
+	 * @param outputs
+	 *            the closed outputs of the conversion
 	 */
-	public static void appendFileContentToNUPN(File outPlacesFile, BlockingQueue<String> nupnQueue, Logger logger)
-			throws IOException {
-		Files.lines(outPlacesFile.toPath()).forEach(l -> {
-			try {
-				nupnQueue.put(l + NUPNConstants.NL);
-			} catch (InterruptedException e) {
-				logger.error("Error while appending content of external file {} to NUPN file: {}",
-						outPlacesFile.getAbsolutePath(), e.getMessage());
-				PNML2NUPNUtils.printStackTrace(e);
+	public static void reportWriters(ConversionReport report, NUPNEmitter... outputs) {
+		long stall = 0L;
+		int highWater = 0;
+		for (NUPNEmitter out : outputs) {
+			if (out != null) {
+				stall += out.getStallNanos();
+				highWater = Math.max(highWater, out.getHighWater());
 			}
-		});
+		}
+		report.setCounter(ConversionReport.COUNT_WRITER_STALL_NS, stall);
+		report.setCounter(ConversionReport.COUNT_WRITER_HIGH_WATER, highWater);
 	}
 
 	/**
@@ -190,4 +271,79 @@ public final class ExportUtils {
 		return name;
 	}
 
+	/**
+	 * Parses the decimal integer of a text token (e.g. an initial marking or an
+	 * inscription) straight from the bytes of the document, without creating a
+	 * string. Leading and trailing whitespace is ignored, as with
+	 * <code>Long.parseLong(vn.toString(token).trim())</code>, which is used
+	 * instead for UTF-16 documents and for tokens holding entity references or
+	 * non-ASCII characters.
+	 * 
+	 * @param vn
+	 * @param token
+	 *            index of the text token, -1 if there is none
+	 * @return the value of the token
+	 * @throws NavExceptionHuge
+	 * @throws NumberFormatException
+	 *             if the token is not a decimal integer, or does not fit in a
+	 *             long
+	 */
+	public static long parseLong(VTDNavHuge vn, int token) throws NavExceptionHuge {
+		if (token == -1) {
+			throw new NumberFormatException("No text");
+		}
+		int encoding = vn.getEncoding();
+		if (encoding == VTDNavHuge.FORMAT_UTF_16BE || encoding == VTDNavHuge.FORMAT_UTF_16LE) {
+			return Long.parseLong(vn.toString(token).trim());
+		}
+		IByteBuffer xml = vn.getXML();
+		long start = vn.getTokenOffset(token);
+		long end = start + vn.getTokenLength(token);
+		while (start < end && (xml.byteAt(start) & 0xFF) <= ' ') {
+			start++;
+		}
+		while (end > start && (xml.byteAt(end - 1) & 0xFF) <= ' ') {
+			end--;
+		}
+		if (start == end) {
+			throw new NumberFormatException("Empty text");
+		}
+		boolean negative = false;
+		byte b = xml.byteAt(start);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			if (++start == end) {
+				throw numberFormat(vn, token);
+			}
+		}
+		// accumulates negatively, like Long.parseLong, to reach Long.MIN_VALUE
+		long result = 0L;
+		for (long i = start; i < end; i++) {
+			b = xml.byteAt(i);
+			if (b < '0' || b > '9') {
+				if (b == '&' || b < 0) {
+					// entity reference, or non-ASCII (Unicode) digits
+					return Long.parseLong(vn.toString(token).trim());
+				}
+				throw numberFormat(vn, token);
+			}
+			int digit = b - '0';
+			if (result < Long.MIN_VALUE / 10 || (result *= 10) < Long.MIN_VALUE + digit) {
+				throw numberFormat(vn, token);
+			}
+			result -= digit;
+		}
+		if (!negative) {
+			if (result == Long.MIN_VALUE) {
+				throw numberFormat(vn, token);
+			}
+			return -result;
+		}
+		return result;
+	}
+
+	private static NumberFormatException numberFormat(VTDNavHuge vn, int token) throws NavExceptionHuge {
+		return new NumberFormatException("For input string: \"" + vn.toString(token).trim() + "\"");
+	}
+
 }
@@ -0,0 +1,203 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import org.slf4j.Logger;
+
+import com.ximpleware.extended.NavExceptionHuge;
+import com.ximpleware.extended.VTDNavHuge;
+
+import fr.lip6.move.pnml2nupn.exceptions.InvalidNetException;
+
+/**
+ * Single-pass extraction engine over the VTD index. It visits every child of
+ * the pages of the PNML nets once, in document order, and fills in one go the
+ * tables the exporter needs.
+ * <p>
+ * It replaces the successive XPath sweeps (places, marked places, unsafe
+ * places, transitions, arcs, unsafe arcs, counts, NUPN structure and units)
+ * which each rescanned the whole document.
+ * </p>
+ */
+public final class FusedNetExtractor extends AbstractNetExtractor {
+
+	/**
+	 * @see AbstractNetExtractor#AbstractNetExtractor(Logger, boolean, boolean,
+	 *      boolean, NetSizes, RehashCounter)
+	 */
+	public FusedNetExtractor(Logger journal, boolean usePlaceNames, boolean useTransitionNames,
+			boolean collectUnits, NetSizes sizes, RehashCounter rehashes) {
+		super(journal, usePlaceNames, useTransitionNames, collectUnits, sizes, rehashes);
+	}
+
+	/**
+	 * Visits once all the children of the pages of the nets of the document.
+	 * The navigator is left at the root element.
+	 *
+	 * @param vn
+	 *            the navigator over the PNML document
+	 * @param net
+	 *            position of the net to extract among the nets of the document,
+	 *            from 1, or 0 for all of them
+	 * @throws NavExceptionHuge
+	 * @throws InvalidNetException
+	 *             if an arc inscription is not an integer
+	 */
+	public void extract(VTDNavHuge vn, int net) throws NavExceptionHuge, InvalidNetException {
+		logger.info("Extracting places, transitions, arcs and NUPN tool specific section in a single pass.");
+		if (ExportUtils.toNet(vn, net)) {
+			do {
+				if (vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.PAGE_ELEMENT)) {
+					do {
+						extractPage(vn);
+					} while (vn.toElement(VTDNavHuge.NEXT_SIBLING, PNMLPaths.PAGE_ELEMENT));
+					vn.toElement(VTDNavHuge.PARENT);
+				}
+			} while (ExportUtils.toNextNet(vn, net));
+		}
+		vn.toElement(VTDNavHuge.ROOT);
+		endOfExtraction();
+	}
+
+	private void extractPage(VTDNavHuge vn) throws NavExceptionHuge, InvalidNetException {
+		if (vn.toElement(VTDNavHuge.FIRST_CHILD)) {
+			do {
+				if (vn.matchElement(PNMLPaths.PLACE_ELEMENT)) {
+					extractPlace(vn);
+				} else if (vn.matchElement(PNMLPaths.TRANSITION_ELEMENT)) {
+					extractTransition(vn);
+				} else if (vn.matchElement(PNMLPaths.ARC_ELEMENT)) {
+					extractArc(vn);
+				} else if (vn.matchElement(PNMLPaths.TOOLSPECIFIC_ELEMENT)) {
+					extractToolSpecific(vn);
+				}
+			} while (vn.toElement(VTDNavHuge.NEXT_SIBLING));
+			vn.toElement(VTDNavHuge.PARENT);
+		}
+	}
+
+	private void extractPlace(VTDNavHuge vn) throws NavExceptionHuge {
+		int id = addPlace(node(vn, vn.getAttrVal(PNMLPaths.ID_ATTR)));
+		boolean nameFound = false;
+		int text;
+		if (vn.toElement(VTDNavHuge.FIRST_CHILD)) {
+			do {
+				if (usePlaceNames && !nameFound && vn.matchElement(PNMLPaths.NAME_ELEMENT)) {
+					nameFound = true;
+					text = textOf(vn);
+					if (text != -1) {
+						addPlaceName(id, vn.toString(text));
+					}
+				} else if (vn.matchElement(PNMLPaths.INITIAL_MARKING_ELEMENT)) {
+					text = textOf(vn);
+					if (text != -1) {
+						try {
+							addMarking(id, ExportUtils.parseLong(vn, text));
+						} catch (NumberFormatException e) {
+							ignoreMarking(id);
+						}
+					}
+				}
+			} while (vn.toElement(VTDNavHuge.NEXT_SIBLING));
+			vn.toElement(VTDNavHuge.PARENT);
+		}
+	}
+
+	private void extractTransition(VTDNavHuge vn) throws NavExceptionHuge {
+		int id = addTransition(node(vn, vn.getAttrVal(PNMLPaths.ID_ATTR)));
+		if (useTransitionNames && vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.NAME_ELEMENT)) {
+			int text = textOf(vn);
+			if (text != -1) {
+				addTransitionName(id, vn.toString(text));
+			}
+			vn.toElement(VTDNavHuge.PARENT);
+		}
+	}
+
+	private void extractArc(VTDNavHuge vn) throws NavExceptionHuge, InvalidNetException {
+		int idIndex = vn.getAttrVal(PNMLPaths.ID_ATTR);
+		int src = node(vn, vn.getAttrVal(PNMLPaths.SRC_ATTR));
+		int trg = node(vn, vn.getAttrVal(PNMLPaths.TRG_ATTR));
+		long inscription = 1L;
+		if (vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.INSCRIPTION_ELEMENT)) {
+			int text = textOf(vn);
+			if (text != -1) {
+				try {
+					inscription = ExportUtils.parseLong(vn, text);
+				} catch (NumberFormatException e) {
+					throw new InvalidNetException("Inscription of arc " + vn.toString(idIndex)
+							+ " is not an integer: " + vn.toString(text).trim());
+				}
+			}
+			vn.toElement(VTDNavHuge.PARENT);
+		}
+		long arc = addArc(src, trg, inscription);
+		if (inscription > 1L && idIndex != -1) {
+			addUnsafeArc(vn.toString(idIndex), arc);
+		}
+	}
+
+	private void extractToolSpecific(VTDNavHuge vn) throws NavExceptionHuge {
+		if (!PNMLPaths.NUPN_TOOL.equals(vn.toString(vn.getAttrVal(PNMLPaths.TOOL_ATTR)))) {
+			return;
+		}
+		addNUPNToolSpecific(vn.toString(vn.getAttrVal(PNMLPaths.VERSION_ATTR)));
+		if (collectUnits && vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.STRUCTURE_ELEMENT)) {
+			do {
+				addStructure(vn.toString(vn.getAttrVal(PNMLPaths.UNITS_ATTR)),
+						vn.toString(vn.getAttrVal(PNMLPaths.ROOT_ATTR)));
+				if (vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.UNIT_ELEMENT)) {
+					do {
+						extractUnit(vn);
+					} while (vn.toElement(VTDNavHuge.NEXT_SIBLING, PNMLPaths.UNIT_ELEMENT));
+					vn.toElement(VTDNavHuge.PARENT);
+				}
+			} while (vn.toElement(VTDNavHuge.NEXT_SIBLING, PNMLPaths.STRUCTURE_ELEMENT));
+			vn.toElement(VTDNavHuge.PARENT);
+		}
+	}
+
+	/**
+	 * Records a unit as its id, the text of its places and the text of its
+	 * subunits (first and second children, as in the NUPN grammar).
+	 */
+	private void extractUnit(VTDNavHuge vn) throws NavExceptionHuge {
+		String id = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
+		String places = "", subunits = "";
+		vn.push();
+		if (vn.toElement(VTDNavHuge.FIRST_CHILD)) {
+			if (vn.getText() != -1) {
+				places = vn.toString(vn.getText());
+			}
+			if (vn.toElement(VTDNavHuge.NEXT_SIBLING) && vn.getText() != -1) {
+				subunits = vn.toString(vn.getText());
+			}
+		}
+		vn.pop();
+		addUnit(id, places, subunits);
+	}
+
+	/**
+	 * Returns the index of the text token of the first text child element of
+	 * the current element, or -1 if there is none. The cursor is left on the
+	 * current element.
+	 */
+	private static int textOf(VTDNavHuge vn) throws NavExceptionHuge {
+		int text = -1;
+		if (vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.TEXT_ELEMENT)) {
+			text = vn.getText();
+			vn.toElement(VTDNavHuge.PARENT);
+		}
+		return text;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import java.util.BitSet;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongLists;
+
+/**
+ * Initial marking of a net, over the NUPN ids of its places. It keeps the
+ * marked places in order of appearance with their tokens, and a bitset of the
+ * marked places, so that checking whether a place is marked takes constant
+ * time, without boxing.
+ * <p>
+ * Places with more than one token are unsafe: their number and the minimum and
+ * maximum of their tokens are kept for the multiple initial tokens pragma.
+ * </p>
+ */
+public final class InitialMarking {
+
+	private final long firstPlace;
+	private final LongArrayList places;
+	private final BitSet marked;
+	private long totalTokens;
+	private long nbUnsafe;
+	private long minUnsafe, maxUnsafe;
+
+	/**
+	 * @param firstPlace
+	 *            the NUPN id of the first place of the net
+	 */
+	public InitialMarking(long firstPlace) {
+		this(firstPlace, 0, 0);
+	}
+
+	/**
+	 * @param firstPlace
+	 *            the NUPN id of the first place of the net
+	 * @param expectedMarked
+	 *            the expected number of marked places
+	 * @param expectedPlaces
+	 *            the expected number of places of the net
+	 */
+	public InitialMarking(long firstPlace, int expectedMarked, int expectedPlaces) {
+		this.firstPlace = firstPlace;
+		this.places = new LongArrayList(expectedMarked);
+		this.marked = new BitSet(expectedPlaces);
+	}
+
+	/**
+	 * Adds a marked place.
+	 * 
+	 * @param place
+	 *            the NUPN id of the place, or -1 if it is unknown
+	 * @param tokens
+	 *            its initial marking
+	 */
+	public void add(long place, long tokens) {
+		places.add(place);
+		if (place >= firstPlace) {
+			marked.set(index(place));
+		}
+		totalTokens += tokens;
+		if (tokens > 1L) {
+			if (nbUnsafe == 0L) {
+				minUnsafe = tokens;
+				maxUnsafe = tokens;
+			} else {
+				minUnsafe = Math.min(minUnsafe, tokens);
+				maxUnsafe = Math.max(maxUnsafe, tokens);
+			}
+			nbUnsafe++;
+		}
+	}
+
+	/**
+	 * @param place
+	 *            the NUPN id of a place
+	 * @return true if the place is initially marked
+	 */
+	public boolean isMarked(long place) {
+		return place >= firstPlace && marked.get(index(place));
+	}
+
+	/**
+	 * @return the NUPN ids of the marked places, in order of appearance
+	 */
+	public LongList getPlaces() {
+		return LongLists.unmodifiable(places);
+	}
+
+	/**
+	 * @return the number of marked places
+	 */
+	public int size() {
+		return places.size();
+	}
+
+	public long getTotalTokens() {
+		return totalTokens;
+	}
+
+	/**
+	 * @return the number of places with more than one token
+	 */
+	public long getNbUnsafe() {
+		return nbUnsafe;
+	}
+
+	/**
+	 * @return the least marking of the unsafe places, 0 if there is none
+	 */
+	public long getMinUnsafe() {
+		return minUnsafe;
+	}
+
+	/**
+	 * @return the greatest marking of the unsafe places, 0 if there is none
+	 */
+	public long getMaxUnsafe() {
+		return maxUnsafe;
+	}
+
+	public void clear() {
+		places.clear();
+		marked.clear();
+		totalTokens = 0L;
+		nbUnsafe = 0L;
+		minUnsafe = 0L;
+		maxUnsafe = 0L;
+	}
+
+	private int index(long place) {
+		return Math.toIntExact(place - firstPlace);
+	}
+}
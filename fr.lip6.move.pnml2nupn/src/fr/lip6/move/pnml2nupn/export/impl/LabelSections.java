@@ -0,0 +1,154 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+
+import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
+
+/**
+ * Place and transition labels sections of a NUPN file. They are written while
+ * the places and transitions are numbered, and appended to the NUPN file at
+ * the end of the translation.
+ * <p>
+ * By default, each section is written to a temporary file next to the NUPN
+ * file (<code>.places</code> and <code>.trans</code>), which is then spliced
+ * at the end of the NUPN file with {@link FileChannel#transferTo}, without
+ * going through the heap. In memory mode, the sections are kept in
+ * {@link LabelSegments} and no temporary file is created.
+ * </p>
+ */
+public final class LabelSections {
+
+	private final boolean inMemory;
+	private File placesFile, transitionsFile;
+	private OutChannelBean ocbPlaces, ocbTransitions;
+	private LabelSegments placesSegments, transitionsSegments;
+	private final NUPNEmitter placesOut, transitionsOut;
+
+	/**
+	 * @param outFile
+	 *            the NUPN file, next to which the temporary files are created
+	 * @param inMemory
+	 *            keep the sections in memory instead of temporary files
+	 * @param writerBuffers
+	 *            maximum number of buffers handed over to the writer thread of
+	 *            each temporary file, 0 to write them from the calling thread
+	 * @param bufferSize
+	 *            size of the buffers of the sections, in bytes
+	 * @throws IOException
+	 */
+	public LabelSections(File outFile, boolean inMemory, int writerBuffers, int bufferSize) throws IOException {
+		this.inMemory = inMemory;
+		if (inMemory) {
+			int segmentSize = Math.min(LabelSegments.SEGMENT_SIZE, 4 * bufferSize);
+			placesSegments = new LabelSegments(segmentSize);
+			transitionsSegments = new LabelSegments(segmentSize);
+			placesOut = new NUPNEmitter(placesSegments, bufferSize);
+			transitionsOut = new NUPNEmitter(transitionsSegments, bufferSize);
+		} else {
+			String baseName = PNML2NUPNUtils.extractBaseName(outFile.getCanonicalPath());
+			transitionsFile = new File(baseName + NUPNConstants.TRANS_EXT);
+			placesFile = new File(baseName + NUPNConstants.STATES_EXT);
+			ocbTransitions = PNML2NUPNUtils.openOutChannel(transitionsFile);
+			ocbPlaces = PNML2NUPNUtils.openOutChannel(placesFile);
+			placesOut = new NUPNEmitter(ocbPlaces, bufferSize, writerBuffers);
+			transitionsOut = new NUPNEmitter(ocbTransitions, bufferSize, writerBuffers);
+		}
+	}
+
+	/**
+	 * @return the output of the place labels section
+	 */
+	public NUPNEmitter places() {
+		return placesOut;
+	}
+
+	/**
+	 * @return the output of the transition labels section
+	 */
+	public NUPNEmitter transitions() {
+		return transitionsOut;
+	}
+
+	/**
+	 * Appends the place labels section, then the transition labels section, at
+	 * the end of the NUPN file, and releases them.
+	 * 
+	 * @param nupnOut
+	 *            the output of the NUPN file, flushed before the sections are
+	 *            appended, then closed
+	 * @param ocbNupn
+	 *            the channel of the NUPN file
+	 * @param logger
+	 * @return the number of bytes appended
+	 * @throws IOException
+	 */
+	public long appendTo(NUPNEmitter nupnOut, OutChannelBean ocbNupn, Logger logger) throws IOException {
+		placesOut.close();
+		transitionsOut.close();
+		nupnOut.close();
+		FileChannel target = ocbNupn.getFc();
+		long size;
+		if (inMemory) {
+			size = placesSegments.size() + transitionsSegments.size();
+			logger.info("Appending place and transition Ids-labels mappings to NUPN file");
+			// segment by segment: a heap buffer is written through a temporary direct buffer of its size
+			placesSegments.writeTo(target);
+			transitionsSegments.writeTo(target);
+			placesSegments.close();
+			transitionsSegments.close();
+		} else {
+			PNML2NUPNUtils.closeChannels(ocbPlaces, ocbTransitions);
+			logger.info("Appending place Ids-labels mappings to NUPN file");
+			size = splice(placesFile, target);
+			logger.info("Appending transition Ids-labels mappings to NUPN file");
+			size += splice(transitionsFile, target);
+			logger.info("Deleting place and transition Ids-labels mappings files");
+			PNML2NUPNUtils.deleteOutputFiles(placesFile, transitionsFile);
+		}
+		return size;
+	}
+
+	/**
+	 * Drops the sections, in case of emergency stop.
+	 * 
+	 * @throws IOException
+	 */
+	public void cancel() throws IOException {
+		PNML2NUPNUtils.discardOutputs(placesOut, transitionsOut);
+		if (inMemory) {
+			placesSegments.close();
+			transitionsSegments.close();
+		} else {
+			PNML2NUPNUtils.closeChannels(ocbPlaces, ocbTransitions);
+			PNML2NUPNUtils.deleteOutputFiles(placesFile, transitionsFile);
+		}
+	}
+
+	private static long splice(File file, FileChannel target) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = in.size();
+			long position = 0L;
+			while (position < size) {
+				position += in.transferTo(position, size - position, target);
+			}
+			return size;
+		}
+	}
+}
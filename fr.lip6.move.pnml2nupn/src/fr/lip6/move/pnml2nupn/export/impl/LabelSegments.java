@@ -0,0 +1,104 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * In-memory byte channel. The bytes written to it are kept in fixed-size heap
+ * segments, so that it grows without copying what it already holds, until
+ * they are written to their final channel.
+ */
+public final class LabelSegments implements WritableByteChannel {
+
+	/**
+	 * Default size of a segment: 1 MB.
+	 */
+	public static final int SEGMENT_SIZE = 1024 * 1024;
+
+	private final int segmentSize;
+	private final ObjectArrayList<byte[]> segments;
+	/* Number of bytes used in the last segment */
+	private int used;
+	private boolean open;
+
+	public LabelSegments(int segmentSize) {
+		this.segmentSize = segmentSize;
+		this.segments = new ObjectArrayList<>();
+		this.used = segmentSize;
+		this.open = true;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = src.remaining();
+		int len;
+		while (src.hasRemaining()) {
+			if (used == segmentSize) {
+				segments.add(new byte[segmentSize]);
+				used = 0;
+			}
+			len = Math.min(src.remaining(), segmentSize - used);
+			src.get(segments.get(segments.size() - 1), used, len);
+			used += len;
+		}
+		return written;
+	}
+
+	/**
+	 * Writes all the bytes held, in order, to a channel.
+	 * 
+	 * @param target
+	 *            the channel to write to
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel target) throws IOException {
+		ByteBuffer bb;
+		for (int i = 0, last = segments.size() - 1; i <= last; i++) {
+			bb = ByteBuffer.wrap(segments.get(i), 0, i == last ? used : segmentSize);
+			while (bb.hasRemaining()) {
+				target.write(bb);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes held
+	 */
+	public long size() {
+		return segments.isEmpty() ? 0L : (long) (segments.size() - 1) * segmentSize + used;
+	}
+
+	/**
+	 * Releases the segments.
+	 */
+	public void clear() {
+		segments.clear();
+		used = segmentSize;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		clear();
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes NUPN contents to a channel through a reusable direct byte buffer.
+ * Numbers are formatted as ASCII digits straight into the buffer, and strings
+ * are encoded in UTF-8 character by character, so that writing a line does not
+ * allocate. The buffer is written to the channel when it is full, and on
+ * {@link #flush()}.
+ * <p>
+ * With a {@link NUPNWriter}, the full buffer is handed over to the writer
+ * thread instead, so that building the output and writing it overlap, with a
+ * bounded number of buffers in flight.
+ * </p>
+ * <p>
+ * An emitter is not thread-safe: it is meant to be used by the thread that
+ * builds the output.
+ * </p>
+ */
+public final class NUPNEmitter {
+
+	/**
+	 * Default size of the buffer: 256 KB.
+	 */
+	public static final int BUFFER_SIZE = 256 * 1024;
+	/**
+	 * Smallest size of the buffer: 4 KB.
+	 */
+	public static final int MIN_BUFFER_SIZE = 4 * 1024;
+	/* Longest UTF-8 encoding of a code point, longest decimal long */
+	private static final int MAX_CHAR_BYTES = 4;
+	private static final int MAX_LONG_DIGITS = 20;
+
+	private final WritableByteChannel out;
+	private final NUPNWriter writer;
+	private final byte[] digits;
+	private ByteBuffer buffer;
+	private long stallNanos;
+
+	public NUPNEmitter(OutChannelBean ocb) {
+		this(ocb, BUFFER_SIZE, 0);
+	}
+
+	/**
+	 * @param ocb
+	 *            the channel the contents are written to
+	 * @param bufferSize
+	 *            size of the buffers, in bytes
+	 * @param writerBuffers
+	 *            maximum number of buffers handed over to a writer thread, 0 to
+	 *            write them from the calling thread
+	 */
+	public NUPNEmitter(OutChannelBean ocb, int bufferSize, int writerBuffers) {
+		this(ocb.getFc(), bufferSize, writerBuffers);
+	}
+
+	/**
+	 * @param out
+	 *            the channel the buffered contents are written to, such as a
+	 *            {@link LabelSegments} to keep them in memory
+	 * @param bufferSize
+	 *            size of the buffer, in bytes
+	 */
+	public NUPNEmitter(WritableByteChannel out, int bufferSize) {
+		this(out, bufferSize, 0);
+	}
+
+	/**
+	 * @param out
+	 *            the channel the buffered contents are written to
+	 * @param bufferSize
+	 *            size of the buffers, in bytes
+	 * @param writerBuffers
+	 *            maximum number of buffers handed over to a writer thread, 0 to
+	 *            write them from the calling thread
+	 */
+	public NUPNEmitter(WritableByteChannel out, int bufferSize, int writerBuffers) {
+		this.out = out;
+		this.writer = writerBuffers > 0 ? new NUPNWriter(out, writerBuffers, bufferSize) : null;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		this.digits = new byte[MAX_LONG_DIGITS];
+	}
+
+	/**
+	 * Returns the size of the buffers of the outputs of a PNML document: the
+	 * size of the document, between {@link #MIN_BUFFER_SIZE} and
+	 * {@link #BUFFER_SIZE}. The NUPN contents of a small document thus fit in
+	 * a single buffer, written at once.
+	 * 
+	 * @param inputSize
+	 *            size of the PNML document, in bytes
+	 */
+	public static int bufferSizeFor(long inputSize) {
+		return (int) Math.max(MIN_BUFFER_SIZE, Math.min(BUFFER_SIZE, inputSize));
+	}
+
+	/**
+	 * Appends a string, encoded in UTF-8.
+	 */
+	public NUPNEmitter append(String s) throws IOException {
+		int len = s.length();
+		char c;
+		for (int i = 0; i < len; i++) {
+			c = s.charAt(i);
+			if (c < 0x80) {
+				if (!buffer.hasRemaining()) {
+					drain();
+				}
+				buffer.put((byte) c);
+			} else {
+				i = appendNonAscii(s, i);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends an ASCII character.
+	 */
+	public NUPNEmitter append(char c) throws IOException {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) c);
+		return this;
+	}
+
+	/**
+	 * Appends the decimal representation of a number.
+	 */
+	public NUPNEmitter append(long n) throws IOException {
+		if (n == Long.MIN_VALUE) {
+			return append(Long.toString(n));
+		}
+		if (buffer.remaining() < MAX_LONG_DIGITS + 1) {
+			drain();
+		}
+		long v = n;
+		if (v < 0L) {
+			buffer.put((byte) '-');
+			v = -v;
+		}
+		int pos = MAX_LONG_DIGITS;
+		do {
+			digits[--pos] = (byte) ('0' + (int) (v % 10L));
+			v /= 10L;
+		} while (v != 0L);
+		buffer.put(digits, pos, MAX_LONG_DIGITS - pos);
+		return this;
+	}
+
+	/**
+	 * Encodes the code point starting at index i of s.
+	 * 
+	 * @return the index of the last char of that code point
+	 */
+	private int appendNonAscii(String s, int i) throws IOException {
+		if (buffer.remaining() < MAX_CHAR_BYTES) {
+			drain();
+		}
+		int cp = s.codePointAt(i);
+		if (cp < 0x800) {
+			buffer.put((byte) (0xC0 | (cp >> 6)));
+			buffer.put((byte) (0x80 | (cp & 0x3F)));
+		} else if (cp <= 0xFFFF && Character.isSurrogate((char) cp)) {
+			// unpaired surrogate, replaced as String.getBytes does
+			buffer.put((byte) '?');
+		} else if (cp < 0x10000) {
+			buffer.put((byte) (0xE0 | (cp >> 12)));
+			buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+			buffer.put((byte) (0x80 | (cp & 0x3F)));
+		} else {
+			buffer.put((byte) (0xF0 | (cp >> 18)));
+			buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+			buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+			buffer.put((byte) (0x80 | (cp & 0x3F)));
+		}
+		return i + Character.charCount(cp) - 1;
+	}
+
+	/**
+	 * Writes the buffered contents to the channel. With a writer thread, waits
+	 * until it has written them.
+	 */
+	public void flush() throws IOException {
+		drain();
+		if (writer != null) {
+			writer.sync();
+		}
+	}
+
+	/**
+	 * Writes the buffered contents to the channel, and stops the writer thread
+	 * if any. The channel is left open.
+	 */
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			if (writer != null) {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Drops the buffered contents, in case of emergency stop.
+	 */
+	public void discard() {
+		buffer.clear();
+		if (writer != null) {
+			writer.cancel();
+		}
+	}
+
+	/**
+	 * @return the time spent waiting for the channel, or for the writer thread,
+	 *         in nanoseconds
+	 */
+	public long getStallNanos() {
+		return writer != null ? writer.getStallNanos() : stallNanos;
+	}
+
+	/**
+	 * @return the highest number of buffers pending in the writer thread, 0
+	 *         without writer thread
+	 */
+	public int getHighWater() {
+		return writer != null ? writer.getHighWater() : 0;
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		if (writer != null) {
+			if (buffer.hasRemaining()) {
+				buffer = writer.exchange(buffer);
+			} else {
+				buffer.clear();
+			}
+			return;
+		}
+		long start = System.nanoTime();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		stallNanos += System.nanoTime() - start;
+		buffer.clear();
+	}
+}
@@ -9,61 +9,231 @@
  *
  *  Project leader / Initial Contributor:
  *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
- *
- *  Contributors:
- *    ${ocontributors} - <$oemails}>
- *
- *  Mailing list:
- *    lom-messan.hillah@lip6.fr
  */
 package fr.lip6.move.pnml2nupn.export.impl;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Thread task to write contents read from a queue into a channel.
+ * Thread task to write the buffers of a {@link NUPNEmitter} into a channel.
+ * <p>
+ * The emitter hands its full buffers over to the writer, and carries on with
+ * an empty one taken from a fixed pool. The number of buffers in flight is
+ * thus bounded: when the disk does not keep up, the emitter blocks until a
+ * buffer has been written. The writer takes all the pending buffers at once,
+ * and writes them with a single gathering write.
+ * </p>
+ * <p>
+ * The writer records how long the emitter waited for a buffer, and the
+ * highest number of buffers pending at the same time.
+ * </p>
  */
 public final class NUPNWriter implements Runnable {
 
-	private static final String STOP = "STOP";
-	private static final String CANCEL = "CANCEL";
-	private OutChannelBean ocb;
-	private BlockingQueue<String> queue;
-	private Logger log;
+	private static final AtomicInteger COUNT = new AtomicInteger();
+	/* Marks the end of the contents */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final WritableByteChannel out;
+	private final int capacity;
+	private final BlockingQueue<ByteBuffer> pending;
+	private final BlockingQueue<ByteBuffer> free;
+	private final Thread thread;
+	private volatile IOException failure;
+	private volatile boolean cancelled;
+	private boolean stopped;
+	private long stallNanos;
+	private int highWater;
+
+	/**
+	 * Creates the writer and starts its thread.
+	 * 
+	 * @param out
+	 *            the channel the buffers are written to
+	 * @param capacity
+	 *            maximum number of buffers pending, at least 1
+	 * @param bufferSize
+	 *            size of the buffers, in bytes
+	 */
+	public NUPNWriter(WritableByteChannel out, int capacity, int bufferSize) {
+		this.out = out;
+		this.capacity = capacity;
+		// the emitter buffer comes and goes too, and the end mark follows them
+		this.pending = new ArrayBlockingQueue<>(capacity + 2);
+		this.free = new ArrayBlockingQueue<>(capacity + 1);
+		for (int i = 0; i < capacity; i++) {
+			free.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+		this.thread = new Thread(this, "pnml2nupn-writer-" + COUNT.incrementAndGet());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Hands a buffer over to the writer, and returns an empty one. Blocks while
+	 * all the buffers are pending.
+	 * 
+	 * @param full
+	 *            the buffer to write, ready to be read
+	 * @return an empty buffer
+	 * @throws IOException
+	 *             if the writer failed to write a previous buffer
+	 */
+	public ByteBuffer exchange(ByteBuffer full) throws IOException {
+		checkFailure();
+		try {
+			pending.put(full);
+			highWater = Math.max(highWater, pending.size());
+			ByteBuffer empty = free.poll();
+			if (empty == null) {
+				long start = System.nanoTime();
+				empty = free.take();
+				stallNanos += System.nanoTime() - start;
+			}
+			return empty;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while handing over a buffer to " + thread.getName());
+		}
+	}
+
+	/**
+	 * Waits until all the buffers handed over are written.
+	 * 
+	 * @throws IOException
+	 *             if the writer failed to write one of them
+	 */
+	public void sync() throws IOException {
+		List<ByteBuffer> buffers = new ArrayList<>(capacity);
+		long start = System.nanoTime();
+		try {
+			while (buffers.size() < capacity) {
+				buffers.add(free.take());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + thread.getName());
+		} finally {
+			stallNanos += System.nanoTime() - start;
+			free.addAll(buffers);
+		}
+		checkFailure();
+	}
 
-	public NUPNWriter(OutChannelBean ocb, BlockingQueue<String> queue) {
-		this.ocb = ocb;
-		this.queue = queue;
+	/**
+	 * Writes the pending buffers, then stops the thread.
+	 * 
+	 * @throws IOException
+	 *             if the writer failed to write one of them
+	 */
+	public void close() throws IOException {
+		stop();
+		checkFailure();
+	}
+
+	/**
+	 * Drops the pending buffers and stops the thread, in case of emergency
+	 * stop.
+	 */
+	public void cancel() {
+		cancelled = true;
+		stop();
+	}
+
+	/**
+	 * @return the time the emitter waited for the writer, in nanoseconds
+	 */
+	public long getStallNanos() {
+		return stallNanos;
+	}
+
+	/**
+	 * @return the highest number of buffers pending at the same time
+	 */
+	public int getHighWater() {
+		return highWater;
 	}
 
 	@Override
 	public void run() {
-		log = LoggerFactory.getLogger(NUPNWriter.class
-				.getCanonicalName() + "#" + Thread.currentThread().getId());
-		ByteBuffer bytebuf = ByteBuffer
-				.allocateDirect(PNML2NUPNUtils.BUFFERSIZE);
-		List<byte[]> contents = new ArrayList<byte[]>();
-		String msg;
+		List<ByteBuffer> batch = new ArrayList<>(capacity + 1);
+		boolean end = false;
+		try {
+			while (!end) {
+				batch.add(pending.take());
+				pending.drainTo(batch);
+				end = batch.get(batch.size() - 1) == END;
+				if (end) {
+					batch.remove(batch.size() - 1);
+				}
+				if (failure == null && !cancelled && !batch.isEmpty()) {
+					write(batch);
+				}
+				for (ByteBuffer b : batch) {
+					b.clear();
+					free.add(b);
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(List<ByteBuffer> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
 		try {
-			msg = queue.take();
-			while (!STOP.equalsIgnoreCase(msg) && !CANCEL.equalsIgnoreCase(msg)) {
-				PNML2NUPNUtils.writeToChannel(ocb, msg, bytebuf, contents);
-				contents.clear();
-				msg = queue.take();
+			if (out instanceof GatheringByteChannel) {
+				ByteBuffer[] srcs = batch.toArray(new ByteBuffer[batch.size()]);
+				ByteBuffer last = srcs[srcs.length - 1];
+				while (last.hasRemaining()) {
+					((GatheringByteChannel) out).write(srcs);
+				}
+			} else {
+				for (ByteBuffer b : batch) {
+					while (b.hasRemaining()) {
+						out.write(b);
+					}
+				}
 			}
-		} catch (InterruptedException | IOException e) {
-			log.error(e.getMessage());
-			PNML2NUPNUtils.printStackTrace(e);
-		} 
+		} catch (IOException e) {
+			failure = e;
+		}
 	}
 
+	private void stop() {
+		if (stopped) {
+			return;
+		}
+		stopped = true;
+		boolean interrupted = false;
+		pending.add(END);
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Could not write NUPN contents: " + failure.getMessage(), failure);
+		}
+	}
 }
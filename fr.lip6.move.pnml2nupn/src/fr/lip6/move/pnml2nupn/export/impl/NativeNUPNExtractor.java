@@ -3,7 +3,9 @@ package fr.lip6.move.pnml2nupn.export.impl;
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -16,51 +18,76 @@ import com.ximpleware.extended.XPathParseExceptionHuge;
 
 import fr.lip6.move.pnml2nupn.MainPNML2NUPN;
 import fr.lip6.move.pnml2nupn.exceptions.PNMLImportExportException;
+import fr.lip6.move.pnml2nupn.export.ConversionOptions;
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
 import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongArrayList;
-import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
-import it.unimi.dsi.fastutil.longs.LongCollection;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
-import it.unimi.dsi.fastutil.longs.LongRBTreeSet;
 import it.unimi.dsi.fastutil.objects.Object2LongLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
 import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectBigArrayBigList;
 
 public final class NativeNUPNExtractor {
 
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
 	private File inFile, outFile;
-	private File outTSFile, outPSFile;
+	private final ConversionOptions options;
+	private final ConversionReport report;
 	private Logger logger;
-	private OutChannelBean ocbNupn, ocbTs, ocbPs;
-	private BlockingQueue<String> nupnQueue, tsQueue, psQueue;
-	private Thread nupnWriter, tsWriter, psWriter;
+	private OutChannelBean ocbNupn;
+	private NUPNEmitter nupnOut, tsOut, psOut;
+	private LabelSections labels;
 	private VTDNavHuge vn;
 	private AutoPilotHuge ap;
+	/* Position of the extracted net among the nets of the document, 0 for all */
+	private final int net;
 	private long nbUnits, nbTrans, nbPlaces, nbArcs;
+	/* Sizes of the NUPN size element, bounded by the size of the document */
+	private NetSizes sizes;
+	private final RehashCounter rehashes;
+	/* Rehashes of the transition tables, filled in by the transitions thread */
+	private final RehashCounter transitionRehashes;
 	private String rootUnitId;
 	private boolean isSafe;
-	private ObjectBigArrayBigList<String> markedPlaces;
+	private InitialMarking marking;
 	private Object2LongOpenHashMap<String> plId2nupnMap;
 	private Object2ObjectOpenHashMap<String, String> plId2NameMap;
 	private Object2LongOpenHashMap<String> trId2nupnMap;
 	private Object2ObjectOpenHashMap<String, String> trId2NameMap;
-	private Long2ObjectOpenHashMap<LongBigArrayBigList> tr2OutPlacesMap;
-	private Long2ObjectOpenHashMap<LongBigArrayBigList> tr2InPlacesMap;
+	private TransitionAdjacency tr2OutPlaces;
+	private TransitionAdjacency tr2InPlaces;
+	private long nbTransitionsFound;
+	/* Collection of the transitions, concurrent with the one of the places */
+	private FutureTask<Void> transitionsTask;
+	private Thread transitionsThread;
 	private Object2LongOpenHashMap<String> unitsIdMap;
-	private LongBigArrayBigList markedPlacesNupnId;
-	private ObjectBigArrayBigList<String> nupnLines;
 	private long nupnPlIdGen, nupnUnitIdGen;
-	private final StringBuilder nupnsb;
 	/* For greatest label length. Since v-3.0.0 */
 	private int labelLength;
 
-	public NativeNUPNExtractor(File input, File output, Logger journal) {
+	public NativeNUPNExtractor(File input, File output, ConversionOptions options, ConversionReport report,
+			Logger journal) {
+		this(input, output, options, report, journal, 0);
+	}
+
+	/**
+	 * @param net
+	 *            position of the net to extract among the nets of the document,
+	 *            from 1, or 0 for all of them
+	 */
+	public NativeNUPNExtractor(File input, File output, ConversionOptions options, ConversionReport report,
+			Logger journal, int net) {
+		this.net = net;
 		this.inFile = input;
 		this.outFile = output;
+		this.options = options;
+		this.report = report;
 		this.logger = journal;
-		nupnsb = new StringBuilder();
+		this.rehashes = new RehashCounter();
+		this.transitionRehashes = new RehashCounter();
 	}
 
 	public void extractNUPN(VTDNavHuge vn, AutoPilotHuge ap)
@@ -77,108 +104,129 @@ public final class NativeNUPNExtractor {
 
 		try {
 			checkAndSetNavAutopilot();
+			report.beginPhase(ConversionReport.PHASE_SIZING);
+			extractSizes();
 			initDataStructures();
 			openIOChannels();
-			startWriters();
 
 			// Insert creator pragma
-			PNML2NUPNUtils.insertCreatorPragma(nupnQueue);
+			PNML2NUPNUtils.insertCreatorPragma(nupnOut);
 
-			extractSizes();
+			report.beginPhase(ConversionReport.PHASE_EXTRACT);
 			extractStructure();
 			extractUnits();
+			// the place numbering is fixed: transitions and places are collected concurrently
+			startCollectingTransitions();
 			collectInitialPlaces();
 			collectNonInitialPlacesNames();
+			report.beginPhase(ConversionReport.PHASE_BUILD_TRANSITIONS);
+			awaitTransitions();
+			rehashes.add(transitionRehashes.getCount(), transitionRehashes.getNanos());
 
+			report.beginPhase(ConversionReport.PHASE_PLACES);
 			writeNUPNPlaces();
+			report.beginPhase(ConversionReport.PHASE_UNITS);
 			writeInitialPlaces();
 			writeUnits();
 			
+			report.beginPhase(ConversionReport.PHASE_PLACE_LABELS);
 			writePlaceLabels();
 
-			collectTransitions();
+			report.beginPhase(ConversionReport.PHASE_TRANSITIONS);
 			writeTransitions();
 
 			// write labels line
-			ExportUtils.setLabelsLine(nupnQueue, labelLength, trId2nupnMap.isEmpty());
-
-			// Stop place and transition writers, and release related resources
-			PNML2NUPNUtils.stopWriters(tsQueue, psQueue);
-			tsWriter.join();
-			psWriter.join();
-			PNML2NUPNUtils.closeChannels(ocbTs, ocbPs);
-
-			// append contents of place and transition files to NUPN file
-			logger.info("Appending place Ids-labels mappings to NUPN file");
-			ExportUtils.appendFileContentToNUPN(outPSFile, nupnQueue, logger);
-			logger.info("Appending transition Ids-labels mappings to NUPN file");
-			ExportUtils.appendFileContentToNUPN(outTSFile, nupnQueue, logger);
-
-			// Stop NUPN writer, and release related resources
-			PNML2NUPNUtils.stopWriters(nupnQueue);
-			nupnWriter.join();
-			PNML2NUPNUtils.closeChannels(ocbNupn);
+			ExportUtils.setLabelsLine(nupnOut, labelLength, trId2nupnMap.isEmpty());
 
-			// Delete place and transition files
-			logger.info("Deleting place and transition Ids-labels mappings files");
-			PNML2NUPNUtils.deleteOutputFiles(outPSFile, outTSFile);
+			// write out the NUPN buffer, then append place and transition labels sections to NUPN file
+			report.beginPhase(ConversionReport.PHASE_DRAIN);
+			nupnOut.flush();
+			report.beginPhase(ConversionReport.PHASE_LABELS);
+			report.setCounter(ConversionReport.COUNT_LABEL_BYTES, labels.appendTo(nupnOut, ocbNupn, logger));
+			labels = null;
+
+			// release NUPN file
+			PNML2NUPNUtils.closeChannels(ocbNupn);
+			report.endPhase();
+			report.setCounter(ConversionReport.COUNT_PLACES, nbPlaces);
+			report.setCounter(ConversionReport.COUNT_TRANSITIONS, nbTransitionsFound);
+			report.setCounter(ConversionReport.COUNT_ARCS, nbArcs);
+			report.setCounter(ConversionReport.COUNT_UNITS, nbUnits);
+			report.setCounter(ConversionReport.COUNT_OUTPUT_BYTES, outFile.length());
+			ExportUtils.reportWriters(report, nupnOut, psOut, tsOut);
+			rehashes.report(report);
 
 			clearDataStructures();
 			logger.info("See NUPN file: {}", outFile.getCanonicalPath());
 
-		} catch (InterruptedException | PNMLImportExportException | IOException e) {
-			emergencyStop(outFile);
+		} catch (PNMLImportExportException | IOException e) {
+			abort();
 			throw new PNMLImportExportException(e);
+		} catch (InterruptedException | RuntimeException e) {
+			abort();
+			throw e;
 		}
 	}
 
+	/**
+	 * Stops the collection of the transitions, then releases and deletes the
+	 * outputs.
+	 */
+	private void abort() throws IOException {
+		cancelTransitions();
+		emergencyStop(outFile);
+	}
+
 	private void collectInitialPlaces() throws PNMLImportExportException {
 		logger.info("Collecting initially marked places.");
 		String placeId;
 		long plNupnId;
-		long mkg, totalMkg = 0L;
+		long mkg;
+		StringBuilder initPlacesId = new StringBuilder();
 		ObjectBigArrayBigList<String> unsafePlaces = new ObjectBigArrayBigList<>();
-
-		LongArrayList minMarking = new LongArrayList(2);
-		LongArrayList maxMarking = new LongArrayList(2);
 		try {
 			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.MARKED_PLACES);
+			ap.selectXPath(PNMLPaths.ofNet(PNMLPaths.INITIAL_MARKINGS, net));
 			while ((ap.evalXPath()) != -1) {
 				vn.push();
-				vn.toElement(VTDNavHuge.FIRST_CHILD);
-				while (!vn.matchElement(NUPNConstants.TEXT)) {
-					vn.toElement(VTDNavHuge.NEXT_SIBLING);
+				if (!vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.TEXT_ELEMENT)) {
+					vn.pop();
+					continue;
+				}
+				try {
+					mkg = ExportUtils.parseLong(vn, vn.getText());
+				} catch (NumberFormatException e) {
+					logger.warn("Ignoring initial marking that is not an integer: {}", e.getMessage());
+					mkg = 0L;
+				}
+				if (mkg <= 0L) {
+					vn.pop();
+					continue;
 				}
-				totalMkg += mkg = Long.parseLong(vn.toString(vn.getText()).trim());
 
 				vn.toElement(VTDNavHuge.PARENT);
 				vn.toElement(VTDNavHuge.PARENT);
-				placeId = ExportUtils.getPNMLNodeId(vn, MainPNML2NUPN.isUsePlaceNames(), plId2NameMap);
+				placeId = ExportUtils.getPNMLNodeId(vn, options.isUsePlaceNames(), plId2NameMap);
 				plNupnId = plId2nupnMap.getLong(placeId);
 				if (plNupnId == -1L) {
 					logger.error("Marked place {} was not reported in the NUPN toolspecific section!", placeId);
 				}
-				markedPlaces.add(placeId);
-				markedPlacesNupnId.add(plNupnId);
-
+				marking.add(plNupnId, mkg);
+				initPlacesId.append(initPlacesId.length() == 0 ? "" : NUPNConstants.COMMAWS).append(placeId);
 				if (mkg > 1) {
 					unsafePlaces.add(placeId);
-					PNML2NUPNUtils.setMin(mkg, minMarking);
-					PNML2NUPNUtils.setMax(mkg, maxMarking);
 				}
 				vn.pop();
 			}
-			logger.info("Initial place(s): {}", markedPlaces.toString());
-			long nbUnsafePlaces = unsafePlaces.size64();
-			long nbMarkedPlaces = markedPlaces.size64();
+			logger.info("Initial place(s): {}", initPlacesId.toString());
+			long nbUnsafePlaces = marking.getNbUnsafe();
+			long nbMarkedPlaces = marking.size();
+			long totalMkg = marking.getTotalTokens();
 			if (nbUnsafePlaces > 0) {
-				nupnsb.append(MainPNML2NUPN.PRAGMA_MULTIPLE_INIT_TOKEN).append(NUPNConstants.HK).append(totalMkg)
+				nupnOut.append(MainPNML2NUPN.PRAGMA_MULTIPLE_INIT_TOKEN).append(NUPNConstants.HK).append(totalMkg)
 						.append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbUnsafePlaces)
-						.append(NUPNConstants.WS).append(minMarking.getLong(0)).append(NUPNConstants.DOTS)
-						.append(maxMarking.getLong(0)).append(NUPNConstants.NL);
-				nupnQueue.put(nupnsb.toString());
-				clearNUPNStringBuilder();
+						.append(NUPNConstants.WS).append(marking.getMinUnsafe()).append(NUPNConstants.DOTS)
+						.append(marking.getMaxUnsafe()).append(NUPNConstants.NL);
 				logger.warn("There are {} unsafe initial places in this net.", nbUnsafePlaces);
 				logger.warn("Unsafe initial places: {}", unsafePlaces.toString());
 
@@ -188,13 +236,13 @@ public final class NativeNUPNExtractor {
 						nbUnsafePlaces <= nbMarkedPlaces);
 				logger.info(
 						"Checking invariant '(nb_init - nb_places) + (nb_places * min) <= nb_tokens <= (nb_init - nb_places) + (nb_places * max)': {}",
-						(nbMarkedPlaces - nbUnsafePlaces) + (nbUnsafePlaces * minMarking.getLong(0)) <= totalMkg
+						(nbMarkedPlaces - nbUnsafePlaces) + (nbUnsafePlaces * marking.getMinUnsafe()) <= totalMkg
 								&& totalMkg <= (nbMarkedPlaces - nbUnsafePlaces)
-										+ (nbUnsafePlaces * maxMarking.getLong(0)));
-				MainPNML2NUPN.appendMesgLineToSignature(
+										+ (nbUnsafePlaces * marking.getMaxUnsafe()));
+				report.addSignatureLine(
 						"decreased to one the marking of " + nbUnsafePlaces + " initial places");
 			}
-		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | InterruptedException e) {
+		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | IOException e) {
 			throw new PNMLImportExportException(e);
 		}
 		ap.resetXPath();
@@ -203,10 +251,11 @@ public final class NativeNUPNExtractor {
 	private void collectNonInitialPlacesNames() throws PNMLImportExportException {
 		@SuppressWarnings("unused")
 		String pnmlId;
-		if (MainPNML2NUPN.isUsePlaceNames()) {
+		if (options.isUsePlaceNames()) {
 			try {
 				vn.toElement(VTDNavHuge.ROOT);
-				ap.selectXPath(PNMLPaths.PLACES_PATH_EXCEPT_MKG);
+				// names of the marked places are already mapped
+				ap.selectXPath(PNMLPaths.ofNet(PNMLPaths.PLACES_PATH, net));
 				while ((ap.evalXPath()) != -1) {
 					vn.push();
 					pnmlId = ExportUtils.getPNMLNodeId(vn, true, plId2NameMap);
@@ -219,154 +268,188 @@ public final class NativeNUPNExtractor {
 		}
 	}
 
-	private void collectTransitions() throws PNMLImportExportException {
-		String arc, src, trg, id;
-		long count = MainPNML2NUPN.getFirstTransitionNumber();
-		long tId, pId;
-		LongBigArrayBigList pls = null;
+	/**
+	 * Starts collecting the transitions and the arcs, on a clone of the
+	 * navigator. They only read the places numbers, fixed by the units, while
+	 * the places are collected on the navigator. On a single processor, or for
+	 * a small file, which is converted without threads, they are collected by
+	 * {@link #awaitTransitions()} instead.
+	 */
+	private void startCollectingTransitions() {
+		final VTDNavHuge nav = vn.cloneNav();
+		transitionsTask = new FutureTask<>(() -> {
+			collectTransitions(nav);
+			return null;
+		});
+		if (Runtime.getRuntime().availableProcessors() > 1 && !options.isSmallFile(inFile)) {
+			transitionsThread = new Thread(transitionsTask, "pnml2nupn-transitions-" + COUNT.incrementAndGet());
+			transitionsThread.setDaemon(true);
+			transitionsThread.start();
+		}
+	}
+
+	/**
+	 * Waits for the transitions and the arcs to be collected.
+	 */
+	private void awaitTransitions() throws PNMLImportExportException, InterruptedException {
+		if (transitionsThread == null) {
+			transitionsTask.run();
+		}
+		try {
+			transitionsTask.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof PNMLImportExportException) {
+				throw (PNMLImportExportException) cause;
+			} else if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new PNMLImportExportException(cause);
+		}
+	}
+
+	/**
+	 * Stops the collection of the transitions, and waits for it to end before
+	 * its outputs are released, even if the calling thread is interrupted.
+	 */
+	private void cancelTransitions() {
+		if (transitionsTask != null) {
+			transitionsTask.cancel(true);
+		}
+		if (transitionsThread != null) {
+			boolean interrupted = false;
+			while (transitionsThread.isAlive()) {
+				try {
+					transitionsThread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void collectTransitions(VTDNavHuge nav) throws PNMLImportExportException, InterruptedException {
+		String id;
+		long tId;
 		String trLabel;
+		AutoPilotHuge pilot = new AutoPilotHuge(nav);
 		try {
 			logger.info("Collecting transitions.");
-			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.TRANSITIONS_PATH);
-			while ((ap.evalXPath()) != -1) {
-				vn.push();
-				id = ExportUtils.getPNMLNodeId(vn, MainPNML2NUPN.isUseTransitionNames(), trId2NameMap);
-				tId = count++;
+			nbTransitionsFound = options.getFirstTransitionNumber();
+			nav.toElement(VTDNavHuge.ROOT);
+			pilot.selectXPath(PNMLPaths.ofNet(PNMLPaths.TRANSITIONS_PATH, net));
+			while ((pilot.evalXPath()) != -1) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				nav.push();
+				id = ExportUtils.getPNMLNodeId(nav, options.isUseTransitionNames(), trId2NameMap);
+				tId = nbTransitionsFound++;
 				trId2nupnMap.put(id, tId);
-				trLabel = ExportUtils.getPNMLNodeIdOrName(id, MainPNML2NUPN.isUseTransitionNames(), trId2NameMap);
-				tsQueue.put(NUPNConstants.T_PREFX + tId + NUPNConstants.WS + trLabel + NUPNConstants.NL);
+				trLabel = ExportUtils.getPNMLNodeIdOrName(id, options.isUseTransitionNames(), trId2NameMap);
+				tsOut.append(NUPNConstants.T_PREFX).append(tId).append(NUPNConstants.WS).append(trLabel)
+						.append(NUPNConstants.NL);
 				labelLength = ExportUtils.updateLabelLength(trLabel, labelLength);
-				vn.pop();
+				nav.pop();
 			}
 
-			ap.resetXPath();
-			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.ARCS_PATH);
-			while ((ap.evalXPath()) != -1) {
-				vn.push();
-				pls = null;
-				arc = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
-				src = vn.toString(vn.getAttrVal(PNMLPaths.SRC_ATTR));
-				trg = vn.toString(vn.getAttrVal(PNMLPaths.TRG_ATTR));
-
-				tId = trId2nupnMap.getLong(src);
-				if (tId == -1L) { // transition is the target
-					tId = trId2nupnMap.getLong(trg);
-					if (tId == -1L) {
-						logger.warn(
-								"New transition {} referenced by arc {}, that I did not find earlier while parsing all transitions.",
-								trg, arc);
-						tId = count++;
-						trId2nupnMap.put(trg, tId);
-						tsQueue.put(NUPNConstants.T_PREFX + tId + NUPNConstants.WS + trg + NUPNConstants.NL);
-						labelLength = ExportUtils.updateLabelLength(trg, labelLength);
-						logger.warn("Added new transition {} referenced by arc {}.", trg, arc);
-					}
-					pls = tr2InPlacesMap.get(tId);
-					if (pls == null) {
-						pls = new LongBigArrayBigList();
-						tr2InPlacesMap.put(tId, pls);
-					}
-					// associate the input place
-					pId = plId2nupnMap.getLong(src);
-					pls.add(pId);
-
-				} else {// transition is the source
-					pls = tr2OutPlacesMap.get(tId);
-					if (pls == null) {
-						pls = new LongBigArrayBigList();
-						tr2OutPlacesMap.put(tId, pls);
-					}
-					// associate the output place
-					pId = plId2nupnMap.getLong(trg);
-					pls.add(pId);
-				}
-				vn.pop();
+			pilot.resetXPath();
+			nav.toElement(VTDNavHuge.ROOT);
+			pilot.selectXPath(PNMLPaths.ofNet(PNMLPaths.ARCS_PATH, net));
+			IntArrayList arcTokens = new IntArrayList(NetSizes.capacity(sizes.getArcs()));
+			int arcToken;
+			while ((arcToken = pilot.evalXPath()) != -1) {
+				arcTokens.add(arcToken);
 			}
-		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | InterruptedException e) {
+			// Arcs usually split evenly between input and output arcs
+			tr2InPlaces.ensureCapacity(arcTokens.size() / 2);
+			tr2OutPlaces.ensureCapacity(arcTokens.size() / 2);
+			ParallelArcReader reader = new ParallelArcReader(nav, trId2nupnMap, plId2nupnMap,
+					options.getArcWorkers());
+			logger.info("Resolving {} arcs with {} worker(s).", arcTokens.size(), reader.workersFor(arcTokens.size()));
+			reader.read(arcTokens, new ParallelArcReader.ArcHandler() {
+				@Override
+				public void resolved(long trId, long plId, boolean input) {
+					(input ? tr2InPlaces : tr2OutPlaces).add(trId, plId);
+				}
+
+				@Override
+				public void unresolved(int token) throws NavExceptionHuge, IOException {
+					collectUnresolvedArc(nav, token);
+				}
+			});
+			nbTransitionsFound -= options.getFirstTransitionNumber();
+			tr2InPlaces.compact(nbTransitionsFound);
+			tr2OutPlaces.compact(nbTransitionsFound);
+		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | IOException e) {
 			throw new PNMLImportExportException(e);
 		}
-		ap.resetXPath();
+		pilot.resetXPath();
 	}
 
+	/**
+	 * Deals with an arc whose source and target are not transitions found so
+	 * far: its target is added as a new transition, unless it was added by a
+	 * previous arc. Called in document order, while nbTransitionsFound is the
+	 * next transition number.
+	 */
+	private void collectUnresolvedArc(VTDNavHuge nav, int arcToken) throws NavExceptionHuge, IOException {
+		String arc = ParallelArcReader.getAttrVal(nav, arcToken, PNMLPaths.ID_ATTR);
+		String src = ParallelArcReader.getAttrVal(nav, arcToken, PNMLPaths.SRC_ATTR);
+		String trg = ParallelArcReader.getAttrVal(nav, arcToken, PNMLPaths.TRG_ATTR);
+
+		long tId = trId2nupnMap.getLong(src);
+		if (tId != -1L) { // transition is the source, added by a previous arc
+			tr2OutPlaces.add(tId, plId2nupnMap.getLong(trg));
+			return;
+		}
+		tId = trId2nupnMap.getLong(trg);
+		if (tId == -1L) {
+			logger.warn(
+					"New transition {} referenced by arc {}, that I did not find earlier while parsing all transitions.",
+					trg, arc);
+			tId = nbTransitionsFound++;
+			trId2nupnMap.put(trg, tId);
+			tsOut.append(NUPNConstants.T_PREFX).append(tId).append(NUPNConstants.WS).append(trg)
+					.append(NUPNConstants.NL);
+			labelLength = ExportUtils.updateLabelLength(trg, labelLength);
+			logger.warn("Added new transition {} referenced by arc {}.", trg, arc);
+		}
+		// associate the input place
+		tr2InPlaces.add(tId, plId2nupnMap.getLong(src));
+	}
+
+	/**
+	 * Numbers the units and their places, in document order. The unit lines are
+	 * only formatted by {@link #writeUnits()}, straight into the output, since
+	 * the initial places line which precedes them needs the places numbers.
+	 */
 	private void extractUnits() throws PNMLImportExportException {
 		try {
-			String places = "", subunits = "";
-			String[] elemId;
-			String unitSId;
-			long unitLId;
-			long plId;
-			LongList placesIntId = new LongArrayList();
+			String[] unit;
 			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.NUPN_UNIT);
-			logger.info("Extracting units.");
+			ap.selectXPath(PNMLPaths.ofNet(PNMLPaths.NUPN_UNIT, net));
+			logger.info("Numbering units and their places.");
 			while ((ap.evalXPath()) != -1) {
-				vn.push();
-				unitSId = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
-				unitLId = unitsIdMap.getLong(unitSId);
-				if (unitLId == -1L) {
-					unitLId = nupnUnitIdGen++;
-					unitsIdMap.put(unitSId, unitLId);
-				}
-				nupnsb.append("U").append(unitLId);
-				// places
-				vn.toElement(VTDNavHuge.FIRST_CHILD);
-				if (vn.getText() != -1) {
-					places = vn.toString(vn.getText());
-				}
-				if (!places.isEmpty()) {
-					elemId = places.split(NUPNConstants.FS);
-					for (String s : elemId) {
-						plId = plId2nupnMap.getLong(s);
-						if (plId == -1L) {
-							plId = nupnPlIdGen++;
-							plId2nupnMap.put(s, plId);
+				unit = readUnit();
+				unitId(unit[0]);
+				if (!unit[1].isEmpty()) {
+					for (String s : unit[1].split(NUPNConstants.FS)) {
+						if (plId2nupnMap.getLong(s) == -1L) {
+							plId2nupnMap.put(s, nupnPlIdGen++);
 						}
-						placesIntId.add(plId);
-					}
-					nupnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(placesIntId.size());
-					PNML2NUPNUtils.debug("Collected places in unit {} ({}): {}", logger, unitSId, unitLId,
-							placesIntId.toString());
-					if (placesIntId.size() > 1) {
-						nupnsb.append(NUPNConstants.WS).append(placesIntId.getLong(0)).append(NUPNConstants.DOTS)
-								.append(placesIntId.getLong(placesIntId.size() - 1));
-					} else {
-						nupnsb.append(NUPNConstants.WS).append(placesIntId.getLong(0)).append(NUPNConstants.DOTS)
-								.append(placesIntId.getLong(0));
 					}
-				} else {
-					nupnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO)
-							.append(NUPNConstants.WS).append(NUPNConstants.ONE).append(NUPNConstants.DOTS)
-							.append(NUPNConstants.ZERO);
-				}
-				// subunits
-				vn.toElement(VTDNavHuge.NEXT_SIBLING);
-				if (vn.getText() != -1) {
-					subunits = vn.toString(vn.getText());
 				}
-				if (!subunits.isEmpty()) {
-					elemId = subunits.split(NUPNConstants.FS);
-					nupnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(elemId.length);
-					for (String s : elemId) {
-						unitLId = unitsIdMap.getLong(s);
-						if (unitLId == -1L) {
-							unitLId = nupnUnitIdGen++;
-							unitsIdMap.put(s, unitLId);
-						}
-						nupnsb.append(NUPNConstants.WS).append(unitLId);
+				if (!unit[2].isEmpty()) {
+					for (String s : unit[2].split(NUPNConstants.FS)) {
+						unitId(s);
 					}
-				} else {
-					nupnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO);
 				}
-				nupnsb.append(NUPNConstants.NL);
-
-				nupnLines.add(nupnsb.toString());
-				clearNUPNStringBuilder();
-				placesIntId.clear();
-				subunits = "";
-				places = "";
-				vn.pop();
 			}
 		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge e) {
 			throw new PNMLImportExportException(e);
@@ -374,19 +457,58 @@ public final class NativeNUPNExtractor {
 		ap.resetXPath();
 	}
 
+	/**
+	 * Reads the id, the places and the subunits of the current unit element.
+	 * The cursor is left on the unit element.
+	 */
+	private String[] readUnit() throws NavExceptionHuge {
+		String places = "", subunits = "";
+		vn.push();
+		String unitSId = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
+		vn.toElement(VTDNavHuge.FIRST_CHILD);
+		if (vn.getText() != -1) {
+			places = vn.toString(vn.getText());
+		}
+		vn.toElement(VTDNavHuge.NEXT_SIBLING);
+		if (vn.getText() != -1) {
+			subunits = vn.toString(vn.getText());
+		}
+		vn.pop();
+		return new String[] { unitSId, places, subunits };
+	}
+
+	/**
+	 * @return the NUPN id of a unit, numbered on its first occurrence
+	 */
+	private long unitId(String unitSId) {
+		long unitLId = unitsIdMap.getLong(unitSId);
+		if (unitLId == -1L) {
+			unitLId = nupnUnitIdGen++;
+			unitsIdMap.put(unitSId, unitLId);
+		}
+		return unitLId;
+	}
+
 	private void extractSizes() throws PNMLImportExportException {
 		try {
 			logger.info("Extracting sizes.");
 			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.NUPN_SIZE);
+			ap.selectXPath(PNMLPaths.ofNet(PNMLPaths.NUPN_TOOL_SPECIFIC, net));
 			while ((ap.evalXPath()) != -1) {
 				vn.push();
-				nbPlaces = Long.parseLong(vn.toString(vn.getAttrVal(PNMLPaths.PLACES_ATTR)));
-				nbTrans = Long.parseLong(vn.toString(vn.getAttrVal(PNMLPaths.TRANS_ATTR)));
-				nbArcs = Long.parseLong(vn.toString(vn.getAttrVal(PNMLPaths.ARCS_ATTR)));
+				if (vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.SIZE_ELEMENT)) {
+					nbPlaces = Long.parseLong(vn.toString(vn.getAttrVal(PNMLPaths.PLACES_ATTR)));
+					nbTrans = Long.parseLong(vn.toString(vn.getAttrVal(PNMLPaths.TRANS_ATTR)));
+					nbArcs = Long.parseLong(vn.toString(vn.getAttrVal(PNMLPaths.ARCS_ATTR)));
+				}
+				// Number of units, to presize their table
+				if (vn.toElement(VTDNavHuge.NEXT_SIBLING, PNMLPaths.STRUCTURE_ELEMENT)) {
+					nbUnits = Long.parseLong(vn.toString(vn.getAttrVal(PNMLPaths.UNITS_ATTR)));
+				}
 				vn.pop();
 			}
 			logger.info("Nb places = {}; nb transitions = {}; nb arcs = {}", nbPlaces, nbTrans, nbArcs);
+			sizes = NetSizes.of(nbPlaces, nbTrans, nbArcs, "NUPN size", inFile.length());
 
 		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge e) {
 			throw new PNMLImportExportException(e);
@@ -398,7 +520,7 @@ public final class NativeNUPNExtractor {
 		try {
 			logger.info("Extracting NUPN toolinfo structure.");
 			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.NUPN_STRUCTURE);
+			ap.selectXPath(PNMLPaths.ofNet(PNMLPaths.NUPN_STRUCTURE, net));
 			while ((ap.evalXPath()) != -1) {
 				vn.push();
 				nbUnits = Long.parseLong(vn.toString(vn.getAttrVal(PNMLPaths.UNITS_ATTR)));
@@ -409,150 +531,190 @@ public final class NativeNUPNExtractor {
 			}
 			logger.info("Nb units = {}; root unit id = {}; is Safe = {}", nbUnits, rootUnitId, isSafe);
 			if (isSafe) {
-				ExportUtils.insertUnitSafePragma(nupnQueue, null);
+				ExportUtils.insertUnitSafePragma(nupnOut, null);
 			}
-		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | InterruptedException e) {
+		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | IOException e) {
 			throw new PNMLImportExportException(e);
 		}
 		ap.resetXPath();
 	}
 
-	private void writeInitialPlaces() throws InterruptedException {
+	private void writeInitialPlaces() throws IOException {
 		logger.info("Exporting initial places.");
-		long nbMarkedPlaces = markedPlaces.size64();
-		if (nbMarkedPlaces > 1) {
-			nupnsb.append(NUPNConstants.INIT_PLACES).append(NUPNConstants.WS).append(NUPNConstants.HK)
-					.append(nbMarkedPlaces);
-			for (String pId : markedPlaces) {
-				nupnsb.append(NUPNConstants.WS).append(plId2nupnMap.getLong(pId));
+		LongList initPlaces = marking.getPlaces();
+		if (initPlaces.size() != 1) {
+			nupnOut.append(NUPNConstants.INIT_PLACES).append(NUPNConstants.WS).append(NUPNConstants.HK)
+					.append(initPlaces.size());
+			for (int i = 0; i < initPlaces.size(); i++) {
+				nupnOut.append(NUPNConstants.WS).append(initPlaces.getLong(i));
 			}
 		} else {
-			nupnsb.append(NUPNConstants.INIT_PLACE).append(NUPNConstants.WS)
-					.append(plId2nupnMap.getLong(markedPlaces.get(0)));
+			nupnOut.append(NUPNConstants.INIT_PLACE).append(NUPNConstants.WS).append(initPlaces.getLong(0));
 		}
-		nupnsb.append(NUPNConstants.NL);
-		nupnQueue.put(nupnsb.toString());
-		clearNUPNStringBuilder();
+		nupnOut.append(NUPNConstants.NL);
 	}
 
-	private void writeUnits() throws InterruptedException {
+	/**
+	 * Streams the units section: its header, from the units numbered by
+	 * {@link #extractUnits()}, then one line per unit element.
+	 */
+	private void writeUnits() throws PNMLImportExportException {
 		logger.info("Exporting units.");
-		int nbUnits = unitsIdMap.size();
-		nupnsb.append(NUPNConstants.UNITS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbUnits)
-				.append(NUPNConstants.WS).append(NUPNConstants.ZERO).append(NUPNConstants.DOTS).append(nbUnits - 1)
-				.append(NUPNConstants.NL);
-		nupnsb.append(NUPNConstants.ROOT_UNIT).append(NUPNConstants.WS).append(unitsIdMap.getLong(rootUnitId))
-				.append(NUPNConstants.NL);
-		nupnQueue.put(nupnsb.toString());
-		for (String l : nupnLines) {
-			nupnQueue.put(l);
+		long nbUnitLines = 0L;
+		try {
+			int nbU = unitsIdMap.size();
+			if (nbU != nbUnits) {
+				logger.error(
+						"The number of units I counted in the PNML file ({}) is not equal to the number reported ({}) in the NUPN structure element!",
+						nbU, nbUnits);
+				logger.warn("I will output in the NUPN the number of units I counted.");
+			}
+			nupnOut.append(NUPNConstants.UNITS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbU)
+					.append(NUPNConstants.WS).append(NUPNConstants.ZERO).append(NUPNConstants.DOTS).append(nbU - 1)
+					.append(NUPNConstants.NL);
+			nupnOut.append(NUPNConstants.ROOT_UNIT).append(NUPNConstants.WS).append(unitsIdMap.getLong(rootUnitId))
+					.append(NUPNConstants.NL);
+
+			String[] unit, elemId;
+			long first, last;
+			vn.toElement(VTDNavHuge.ROOT);
+			ap.selectXPath(PNMLPaths.ofNet(PNMLPaths.NUPN_UNIT, net));
+			while ((ap.evalXPath()) != -1) {
+				unit = readUnit();
+				nupnOut.append("U").append(unitsIdMap.getLong(unit[0]));
+				// places
+				if (!unit[1].isEmpty()) {
+					elemId = unit[1].split(NUPNConstants.FS);
+					first = plId2nupnMap.getLong(elemId[0]);
+					last = plId2nupnMap.getLong(elemId[elemId.length - 1]);
+					PNML2NUPNUtils.debug("Collected places in unit {}: {}..{}", logger, unit[0], first, last);
+					nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK).append(elemId.length)
+							.append(NUPNConstants.WS).append(first).append(NUPNConstants.DOTS).append(last);
+				} else {
+					nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO)
+							.append(NUPNConstants.WS).append(NUPNConstants.ONE).append(NUPNConstants.DOTS)
+							.append(NUPNConstants.ZERO);
+				}
+				// subunits
+				if (!unit[2].isEmpty()) {
+					elemId = unit[2].split(NUPNConstants.FS);
+					nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK).append(elemId.length);
+					for (String s : elemId) {
+						nupnOut.append(NUPNConstants.WS).append(unitsIdMap.getLong(s));
+					}
+				} else {
+					nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO);
+				}
+				nupnOut.append(NUPNConstants.NL);
+				nbUnitLines++;
+			}
+			if (nbUnitLines != nbU) {
+				logger.error(
+						"The number of unit lines I wrote ({}) is not equal to the number of units in the NUPN header ({}): some subunits are not declared!",
+						nbUnitLines, nbU);
+			}
+		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | IOException e) {
+			throw new PNMLImportExportException(e);
 		}
-		clearNUPNStringBuilder();
+		ap.resetXPath();
 	}
 
 	private void writeNUPNPlaces() throws PNMLImportExportException {
 		try {
 			logger.info("Exporting places.");
-			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.COUNT_PLACES_PATH);
-			long nbPl = (long) ap.evalXPathToNumber();
-			if (nbPl != nbPlaces) {
-				logger.error(
-						"The number of places I counted in the PNML file ({}) is not equal to the number reported ({}) in the NUPN size element!",
-						nbPl, nbPlaces);
-				logger.warn("I will output in the NUPN the number reported in the NUPN size element.");
-			}
-			nupnsb.append(NUPNConstants.PLACES).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbPlaces)
+			checkSize("places", nbPlaces, PNMLPaths.COUNT_PLACES_PATH, plId2nupnMap.size());
+			nupnOut.append(NUPNConstants.PLACES).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbPlaces)
 					.append(NUPNConstants.WS)
-					.append(MainPNML2NUPN.getFirstPlaceNumber()).append(NUPNConstants.DOTS).append(nbPlaces - 1L + MainPNML2NUPN.getFirstPlaceNumber())
+					.append(options.getFirstPlaceNumber()).append(NUPNConstants.DOTS).append(nbPlaces - 1L + options.getFirstPlaceNumber())
 					.append(NUPNConstants.NL);
-			nupnQueue.put(nupnsb.toString());
-			clearNUPNStringBuilder();
-		} catch (NavExceptionHuge | XPathParseExceptionHuge | InterruptedException e) {
+		} catch (NavExceptionHuge | XPathParseExceptionHuge | IOException e) {
 			throw new PNMLImportExportException(e);
 		}
-		ap.resetXPath();
 	}
-	
-	private void writePlaceLabels() {
+
+	/**
+	 * Checks a size of the NUPN size element. The nodes are counted over the
+	 * whole document, unless the size is trusted: it is then checked against
+	 * the number of nodes collected by the extraction, at no cost.
+	 * 
+	 * @param nodes
+	 *            name of the nodes, for the log
+	 * @param reported
+	 *            their number in the NUPN size element
+	 * @param countPath
+	 *            XPath counting them in the document
+	 * @param collected
+	 *            their number collected by the extraction
+	 */
+	private void checkSize(String nodes, long reported, String countPath, long collected)
+			throws NavExceptionHuge, XPathParseExceptionHuge {
+		long counted = collected;
+		String from = "collected";
+		if (!options.isTrustNupnSize()) {
+			vn.toElement(VTDNavHuge.ROOT);
+			ap.selectXPath(PNMLPaths.ofNet(countPath, net));
+			counted = (long) ap.evalXPathToNumber();
+			ap.resetXPath();
+			from = "counted in the PNML file";
+		}
+		if (counted != reported) {
+			logger.error("The number of {} I {} ({}) is not equal to the number reported ({}) in the NUPN size element!",
+					nodes, from, counted, reported);
+			logger.warn("I will output in the NUPN the number reported in the NUPN size element.");
+		}
+	}
+
+	private void writePlaceLabels() throws IOException {
 		Object2LongLinkedOpenHashMap<String> sortedMap = plId2nupnMap.object2LongEntrySet().stream()
 				.sorted(Map.Entry.comparingByValue())
 				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue,
-						(oldValue, newValue) -> oldValue, Object2LongLinkedOpenHashMap::new));
+						(oldValue, newValue) -> oldValue,
+						() -> new Object2LongLinkedOpenHashMap<>(plId2nupnMap.size())));
 	
-		sortedMap.forEach((pnmlId, nupnId) -> {
-			final String nupnLabel = ExportUtils.getPNMLNodeIdOrName(pnmlId, MainPNML2NUPN.isUsePlaceNames(),
-					plId2NameMap);
-			try {
-				logger.trace("Outputing mapping between nupn place id {} and its label {}", nupnId, nupnLabel);
-				psQueue.put(NUPNConstants.P_PREFX + nupnId + NUPNConstants.WS + nupnLabel + NUPNConstants.NL);
-				labelLength = ExportUtils.updateLabelLength(nupnLabel, labelLength);
-			} catch (InterruptedException e) {
-				logger.error("Error while writing places id-label mappings: {}", e.getMessage(), e);
-			}
-		});
+		String nupnLabel;
+		long nupnId;
+		for (Object2LongMap.Entry<String> e : sortedMap.object2LongEntrySet()) {
+			nupnId = e.getLongValue();
+			nupnLabel = ExportUtils.getPNMLNodeIdOrName(e.getKey(), options.isUsePlaceNames(), plId2NameMap);
+			logger.trace("Outputing mapping between nupn place id {} and its label {}", nupnId, nupnLabel);
+			psOut.append(NUPNConstants.P_PREFX).append(nupnId).append(NUPNConstants.WS).append(nupnLabel)
+					.append(NUPNConstants.NL);
+			labelLength = ExportUtils.updateLabelLength(nupnLabel, labelLength);
+		}
 	}
 
 	private void writeTransitions() throws PNMLImportExportException {
 		logger.info("Exporting transitions.");
 		try {
-			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.COUNT_TRANSITIONS_PATH);
-			long nbTr = (long) ap.evalXPathToNumber();
-			if (nbTr != nbTrans) {
-				logger.error(
-						"The number of transitions I counted in the PNML file ({}) is not equal to the number reported ({}) in the NUPN size element!",
-						nbTr, nbTrans);
-				logger.warn("I will output in the NUPN the number reported in the NUPN size element.");
-			}
-			StringBuilder tsSb = new StringBuilder();
-			tsSb.append(NUPNConstants.TRANSITIONS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbTrans)
+			checkSize("transitions", nbTrans, PNMLPaths.COUNT_TRANSITIONS_PATH, nbTransitionsFound);
+			nupnOut.append(NUPNConstants.TRANSITIONS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbTrans)
 					.append(NUPNConstants.WS)
-					.append(MainPNML2NUPN.getFirstTransitionNumber()).append(NUPNConstants.DOTS).append(nbTrans - 1L + MainPNML2NUPN.getFirstTransitionNumber())
+					.append(options.getFirstTransitionNumber()).append(NUPNConstants.DOTS).append(nbTrans - 1L + options.getFirstTransitionNumber())
 					.append(NUPNConstants.NL);
-			nupnQueue.put(tsSb.toString());
-			tsSb.delete(0, tsSb.length());
-
-			LongCollection allTr = new LongRBTreeSet(trId2nupnMap.values());
-
-			for (long trId : allTr) {
-				tsSb.append(NUPNConstants.T).append(trId);
-				buildConnectedPlaces2Transition(tsSb, trId, tr2InPlacesMap);
-				buildConnectedPlaces2Transition(tsSb, trId, tr2OutPlacesMap);
-				tsSb.append(NUPNConstants.NL);
-				nupnQueue.put(tsSb.toString());
-				tsSb.delete(0, tsSb.length());
+
+			long firstTr = options.getFirstTransitionNumber();
+			for (long trId = firstTr; trId < firstTr + nbTransitionsFound; trId++) {
+				nupnOut.append(NUPNConstants.T).append(trId);
+				buildConnectedPlaces2Transition(trId, tr2InPlaces);
+				buildConnectedPlaces2Transition(trId, tr2OutPlaces);
+				nupnOut.append(NUPNConstants.NL);
 			}
-			tsSb.delete(0, tsSb.length());
-			tsSb = null;
-		} catch (InterruptedException | NavExceptionHuge | XPathParseExceptionHuge e) {
+		} catch (IOException | NavExceptionHuge | XPathParseExceptionHuge e) {
 			throw new PNMLImportExportException(e);
 		}
-		ap.resetXPath();
 	}
 
-	private void buildConnectedPlaces2Transition(StringBuilder builder, long trId,
-			Long2ObjectOpenHashMap<LongBigArrayBigList> tr2PlacesMap) {
-		LongBigArrayBigList pls;
-		long plsSize;
-		pls = tr2PlacesMap.get(trId);
-		if (pls != null) {
-			plsSize = pls.size64();
-		} else { // no place in input or output list of this transition
-			plsSize = 0L;
-		}
-		builder.append(NUPNConstants.WS).append(NUPNConstants.HK).append(plsSize);
-
-		if (plsSize > 0L) {
-			for (long plId : pls) {
-				builder.append(NUPNConstants.WS).append(plId);
-			}
+	private void buildConnectedPlaces2Transition(long trId, TransitionAdjacency tr2Places) throws IOException {
+		int plsSize = tr2Places.size(trId);
+		nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK).append(plsSize);
+		for (int i = tr2Places.offset(trId), end = i + plsSize; i < end; i++) {
+			nupnOut.append(NUPNConstants.WS).append(tr2Places.place(i));
 		}
 	}
 
 	private void checkAndSetNavAutopilot() throws PNMLImportExportException {
 		if (vn == null) {
-			vn = PNML2NUPNUtils.openXMLStream(inFile).getNav();
+			vn = PNML2NUPNUtils.openXMLStream(inFile, options.isSmallFile(inFile)).getNav();
 		}
 		if (ap == null) {
 			ap = new AutoPilotHuge(vn);
@@ -560,71 +722,50 @@ public final class NativeNUPNExtractor {
 	}
 
 	private void openIOChannels() throws IOException {
-		outTSFile = new File(PNML2NUPNUtils.extractBaseName(outFile.getCanonicalPath()) + NUPNConstants.TRANS_EXT);
-		outPSFile = new File(PNML2NUPNUtils.extractBaseName(outFile.getCanonicalPath()) + NUPNConstants.STATES_EXT);
 		ocbNupn = PNML2NUPNUtils.openOutChannel(outFile);
-		ocbTs = PNML2NUPNUtils.openOutChannel(outTSFile);
-		ocbPs = PNML2NUPNUtils.openOutChannel(outPSFile);
-		nupnQueue = PNML2NUPNUtils.initQueue();
-		tsQueue = PNML2NUPNUtils.initQueue();
-		psQueue = PNML2NUPNUtils.initQueue();
-
-	}
+		int bufferSize = NUPNEmitter.bufferSizeFor(inFile.length());
+		nupnOut = new NUPNEmitter(ocbNupn, bufferSize, options.getWriterBuffers());
+		labels = new LabelSections(outFile, options.isInMemoryLabels(), options.getWriterBuffers(), bufferSize);
+		tsOut = labels.transitions();
+		psOut = labels.places();
 
-	private void startWriters() {
-		nupnWriter = PNML2NUPNUtils.startWriter(ocbNupn, nupnQueue);
-		tsWriter = PNML2NUPNUtils.startWriter(ocbTs, tsQueue);
-		psWriter = PNML2NUPNUtils.startWriter(ocbPs, psQueue);
 	}
 
-	private void emergencyStop(File outFile) throws InterruptedException, IOException {
+	private void emergencyStop(File outFile) throws IOException {
 		stop(outFile);
 		logger.error("Emergency stop. Cancelled the translation and released opened resources.");
 	}
 
-	private void clearNUPNStringBuilder() {
-		nupnsb.delete(0, nupnsb.length());
-	}
-
-	private void stop(File outFile) throws InterruptedException, IOException {
-		PNML2NUPNUtils.cancelWriters(nupnQueue, tsQueue, psQueue);
-		PNML2NUPNUtils.closeChannels(ocbNupn, ocbTs, ocbPs);
-		PNML2NUPNUtils.deleteOutputFiles(outFile, outTSFile, outPSFile);
+	private void stop(File outFile) throws IOException {
+		PNML2NUPNUtils.discardOutputs(nupnOut);
+		PNML2NUPNUtils.closeChannels(ocbNupn);
+		PNML2NUPNUtils.deleteOutputFiles(outFile);
+		if (labels != null) {
+			labels.cancel();
+		}
 	}
 
+	/**
+	 * Initializes the data structures, presized to the sizes of the NUPN size
+	 * element.
+	 */
 	private void initDataStructures() {
-		if (trId2nupnMap == null) {
-			trId2nupnMap = new Object2LongOpenHashMap<String>();
-			trId2nupnMap.defaultReturnValue(-1L);
-		}
-		if (trId2NameMap == null) {
-			trId2NameMap = new Object2ObjectOpenHashMap<String, String>();
-			trId2NameMap.defaultReturnValue("");
-		}
-		if (tr2InPlacesMap == null) {
-			tr2InPlacesMap = new Long2ObjectOpenHashMap<>();
-			tr2InPlacesMap.defaultReturnValue(null);
-		}
-		if (tr2OutPlacesMap == null) {
-			tr2OutPlacesMap = new Long2ObjectOpenHashMap<>();
-			tr2OutPlacesMap.defaultReturnValue(null);
-		}
-		if (plId2nupnMap == null) {
-			plId2nupnMap = new Object2LongOpenHashMap<String>();
-			plId2nupnMap.defaultReturnValue(-1L);
-		}
-		if (plId2NameMap == null) {
-			plId2NameMap = new Object2ObjectOpenHashMap<String, String>();
-			plId2NameMap.defaultReturnValue("");
-		}
-		if (unitsIdMap == null) {
-			unitsIdMap = new Object2LongOpenHashMap<>();
-			unitsIdMap.defaultReturnValue(-1L);
-		}
-		markedPlaces = new ObjectBigArrayBigList<>();
-		markedPlacesNupnId = new LongBigArrayBigList();
-		nupnLines = new ObjectBigArrayBigList<>();
-		nupnPlIdGen = MainPNML2NUPN.getFirstPlaceNumber();
+		int nbPl = NetSizes.capacity(sizes.getPlaces());
+		int nbTr = NetSizes.capacity(sizes.getTransitions());
+		trId2nupnMap = transitionRehashes.newObject2LongMap(nbTr);
+		trId2nupnMap.defaultReturnValue(-1L);
+		trId2NameMap = transitionRehashes.newObject2ObjectMap(options.isUseTransitionNames() ? nbTr : 0);
+		trId2NameMap.defaultReturnValue("");
+		tr2InPlaces = new TransitionAdjacency(options.getFirstTransitionNumber());
+		tr2OutPlaces = new TransitionAdjacency(options.getFirstTransitionNumber());
+		plId2nupnMap = rehashes.newObject2LongMap(nbPl);
+		plId2nupnMap.defaultReturnValue(-1L);
+		plId2NameMap = rehashes.newObject2ObjectMap(options.isUsePlaceNames() ? nbPl : 0);
+		plId2NameMap.defaultReturnValue("");
+		unitsIdMap = rehashes.newObject2LongMap(NetSizes.capacity(Math.min(nbUnits, sizes.getNodes() + 1L)));
+		unitsIdMap.defaultReturnValue(-1L);
+		marking = new InitialMarking(options.getFirstPlaceNumber(), 0, nbPl);
+		nupnPlIdGen = options.getFirstPlaceNumber();
 		nupnUnitIdGen = 0L;
 	}
 
@@ -636,11 +777,9 @@ public final class NativeNUPNExtractor {
 		plId2NameMap.clear();
 		trId2nupnMap.clear();
 		trId2NameMap.clear();
-		tr2InPlacesMap.clear();
-		tr2OutPlacesMap.clear();
+		tr2InPlaces = null;
+		tr2OutPlaces = null;
 		unitsIdMap.clear();
-		markedPlaces.clear();
-		markedPlacesNupnId.clear();
-		nupnLines.clear();
+		marking.clear();
 	}
 }
@@ -0,0 +1,186 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import com.ximpleware.extended.NavExceptionHuge;
+import com.ximpleware.extended.VTDNavHuge;
+
+/**
+ * Estimated sizes of a net, known before it is extracted, so that the tables
+ * of the extraction are allocated once at the right capacity instead of being
+ * grown and rehashed as the nodes come in.
+ * <p>
+ * The sizes come from the NUPN <code>size</code> element when there is one,
+ * from a count of the children of the pages otherwise. They are only
+ * estimates: they are bounded by the size of the document, so that a wrong
+ * <code>size</code> element does not make the tables huge, and the tables
+ * still grow if they are too small.
+ * </p>
+ */
+public final class NetSizes {
+
+	/**
+	 * No estimate: the tables start small and grow.
+	 */
+	public static final NetSizes UNKNOWN = new NetSizes(0L, 0L, 0L, "none");
+
+	/* Fewest bytes a node or an arc takes in a document, e.g. <place id="p"/> */
+	private static final long MIN_NODE_BYTES = 16L;
+	private static final long MIN_ARC_BYTES = 32L;
+	/* Largest capacity a table is presized to */
+	private static final int MAX_CAPACITY = 1 << 28;
+
+	private final long places;
+	private final long transitions;
+	private final long arcs;
+	private final String source;
+
+	private NetSizes(long places, long transitions, long arcs, String source) {
+		this.places = places;
+		this.transitions = transitions;
+		this.arcs = arcs;
+		this.source = source;
+	}
+
+	/**
+	 * @param places
+	 * @param transitions
+	 * @param arcs
+	 * @param source
+	 *            where the sizes come from, for the log
+	 * @param inputBytes
+	 *            size of the document the sizes are read from, which bounds
+	 *            them
+	 */
+	public static NetSizes of(long places, long transitions, long arcs, String source, long inputBytes) {
+		long maxNodes = inputBytes / MIN_NODE_BYTES;
+		long maxArcs = inputBytes / MIN_ARC_BYTES;
+		return new NetSizes(bound(places, maxNodes), bound(transitions, maxNodes), bound(arcs, maxArcs), source);
+	}
+
+	private static long bound(long size, long max) {
+		return Math.max(0L, Math.min(size, max));
+	}
+
+	/**
+	 * Estimates the sizes of the nets of a document from its VTD index: from
+	 * the NUPN <code>size</code> element of the first page which has one, from
+	 * a count of the places, transitions and arcs of all the pages otherwise.
+	 * Only the children of the pages are visited, not their contents. The
+	 * navigator is left at the root element.
+	 * 
+	 * @param vn
+	 *            the navigator over the PNML document
+	 * @param net
+	 *            position of the net among the nets of the document, from 1, or
+	 *            0 for all of them
+	 * @param inputBytes
+	 *            size of the document
+	 * @throws NavExceptionHuge
+	 */
+	public static NetSizes of(VTDNavHuge vn, int net, long inputBytes) throws NavExceptionHuge {
+		long nbPlaces = 0L, nbTransitions = 0L, nbArcs = 0L;
+		NetSizes sizes = null;
+		if (ExportUtils.toNet(vn, net)) {
+			do {
+				if (vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.PAGE_ELEMENT)) {
+					do {
+						if (vn.toElement(VTDNavHuge.FIRST_CHILD)) {
+							do {
+								if (vn.matchElement(PNMLPaths.PLACE_ELEMENT)) {
+									nbPlaces++;
+								} else if (vn.matchElement(PNMLPaths.TRANSITION_ELEMENT)) {
+									nbTransitions++;
+								} else if (vn.matchElement(PNMLPaths.ARC_ELEMENT)) {
+									nbArcs++;
+								} else if (vn.matchElement(PNMLPaths.TOOLSPECIFIC_ELEMENT)) {
+									sizes = nupnSize(vn, inputBytes);
+								}
+							} while (sizes == null && vn.toElement(VTDNavHuge.NEXT_SIBLING));
+							vn.toElement(VTDNavHuge.PARENT);
+						}
+					} while (sizes == null && vn.toElement(VTDNavHuge.NEXT_SIBLING, PNMLPaths.PAGE_ELEMENT));
+					vn.toElement(VTDNavHuge.PARENT);
+				}
+			} while (sizes == null && ExportUtils.toNextNet(vn, net));
+		}
+		vn.toElement(VTDNavHuge.ROOT);
+		return sizes != null ? sizes : of(nbPlaces, nbTransitions, nbArcs, "counts", inputBytes);
+	}
+
+	/**
+	 * @return the sizes of the NUPN <code>size</code> element under the
+	 *         current tool specific element, or null if it is not a NUPN one
+	 *         or has no valid size
+	 */
+	private static NetSizes nupnSize(VTDNavHuge vn, long inputBytes) throws NavExceptionHuge {
+		if (!PNMLPaths.NUPN_TOOL.equals(vn.toString(vn.getAttrVal(PNMLPaths.TOOL_ATTR)))) {
+			return null;
+		}
+		NetSizes sizes = null;
+		vn.push();
+		if (vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.SIZE_ELEMENT)) {
+			sizes = nupnSize(vn.toString(vn.getAttrVal(PNMLPaths.PLACES_ATTR)),
+					vn.toString(vn.getAttrVal(PNMLPaths.TRANS_ATTR)), vn.toString(vn.getAttrVal(PNMLPaths.ARCS_ATTR)),
+					inputBytes);
+		}
+		vn.pop();
+		return sizes;
+	}
+
+	/**
+	 * @return the sizes of the attributes of a NUPN <code>size</code> element,
+	 *         or null if they are not integers
+	 */
+	static NetSizes nupnSize(String places, String transitions, String arcs, long inputBytes) {
+		try {
+			return of(Long.parseLong(places.trim()), Long.parseLong(transitions.trim()),
+					Long.parseLong(arcs.trim()), "NUPN size", inputBytes);
+		} catch (NumberFormatException | NullPointerException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param expected
+	 *            an expected number of elements
+	 * @return the capacity to presize a table to for this number of elements
+	 */
+	public static int capacity(long expected) {
+		return (int) Math.min(expected, MAX_CAPACITY);
+	}
+
+	public long getPlaces() {
+		return places;
+	}
+
+	public long getTransitions() {
+		return transitions;
+	}
+
+	public long getArcs() {
+		return arcs;
+	}
+
+	/**
+	 * @return the number of nodes, places and transitions
+	 */
+	public long getNodes() {
+		return places + transitions;
+	}
+
+	@Override
+	public String toString() {
+		return places + " places, " + transitions + " transitions and " + arcs + " arcs (from " + source + ")";
+	}
+}
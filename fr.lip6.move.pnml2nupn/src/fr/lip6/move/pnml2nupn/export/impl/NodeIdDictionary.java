@@ -0,0 +1,341 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.ximpleware.extended.IByteBuffer;
+import com.ximpleware.extended.NavExceptionHuge;
+import com.ximpleware.extended.VTDNavHuge;
+
+import it.unimi.dsi.fastutil.BigArrays;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.bytes.ByteBigArrays;
+
+/**
+ * Dictionary of the node ids (places and transitions) of a net. Each distinct
+ * id is given a handle, from 0 in order of first appearance, which the tables
+ * of the extractors and the exporter use instead of Java strings.
+ * <p>
+ * The UTF-8 bytes of the ids are stored one after the other in a big byte
+ * array, and found back through an open addressing table of handles. Ids read
+ * from the VTD index are hashed and compared straight in the bytes of the
+ * document, so that looking up or recording an id that is already known
+ * allocates nothing. Strings are only created by {@link #toString(int)}, when
+ * a label is written.
+ * </p>
+ * <p>
+ * Tokens that hold entity references, or documents not encoded in UTF-8 or
+ * ASCII, go through the string value of the token instead.
+ * </p>
+ */
+public final class NodeIdDictionary {
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	/* UTF-8 bytes of the ids, id h from offsets[h] to offsets[h + 1] */
+	private byte[][] bytes;
+	private long[] offsets;
+	private int[] hashes;
+	/* Open addressing table of handle + 1, 0 for a free slot */
+	private int[] slots;
+	private int mask;
+	private int maxFill;
+	private int size;
+	private long rehashes;
+	private long rehashNanos;
+
+	public NodeIdDictionary() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            the expected number of distinct ids, which the dictionary
+	 *            holds without growing
+	 */
+	public NodeIdDictionary(int expectedSize) {
+		allocate(Math.max(INITIAL_CAPACITY, expectedSize));
+	}
+
+	private void allocate(int capacity) {
+		bytes = ByteBigArrays.EMPTY_BIG_ARRAY;
+		offsets = new long[capacity + 1];
+		hashes = new int[capacity];
+		slots = new int[HashCommon.arraySize(capacity, 0.5f)];
+		mask = slots.length - 1;
+		maxFill = HashCommon.maxFill(slots.length, 0.5f);
+	}
+
+	/**
+	 * Records the id held by a token, if it is not known yet.
+	 * 
+	 * @param vn
+	 * @param token
+	 *            index of the token holding the id (e.g. an attribute value),
+	 *            -1 for an empty id
+	 * @return the handle of the id
+	 * @throws NavExceptionHuge
+	 */
+	public int add(VTDNavHuge vn, int token) throws NavExceptionHuge {
+		if (!isRaw(vn, token)) {
+			return add(stringOf(vn, token));
+		}
+		IByteBuffer xml = vn.getXML();
+		long offset = vn.getTokenOffset(token);
+		int length = vn.getTokenLength(token);
+		int hash = hash(xml, offset, length);
+		int pos = HashCommon.mix(hash) & mask;
+		int node;
+		while ((node = slots[pos] - 1) != -1) {
+			if (hashes[node] == hash && equals(node, xml, offset, length)) {
+				return node;
+			}
+			pos = (pos + 1) & mask;
+		}
+		node = newNode(pos, hash, length);
+		long start = offsets[node];
+		for (int i = 0; i < length; i++) {
+			BigArrays.set(bytes, start + i, xml.byteAt(offset + i));
+		}
+		return node;
+	}
+
+	/**
+	 * @param vn
+	 * @param token
+	 *            index of the token holding the id, -1 for an empty id
+	 * @return the handle of the id held by the token, -1 if it is not known
+	 * @throws NavExceptionHuge
+	 */
+	public int find(VTDNavHuge vn, int token) throws NavExceptionHuge {
+		if (!isRaw(vn, token)) {
+			return find(stringOf(vn, token));
+		}
+		IByteBuffer xml = vn.getXML();
+		long offset = vn.getTokenOffset(token);
+		int length = vn.getTokenLength(token);
+		int hash = hash(xml, offset, length);
+		int pos = HashCommon.mix(hash) & mask;
+		int node;
+		while ((node = slots[pos] - 1) != -1) {
+			if (hashes[node] == hash && equals(node, xml, offset, length)) {
+				return node;
+			}
+			pos = (pos + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Records an id, if it is not known yet.
+	 * 
+	 * @param id
+	 *            the id, null for an empty id
+	 * @return the handle of the id
+	 */
+	public int add(String id) {
+		byte[] b = utf8(id);
+		int hash = hash(b);
+		int pos = HashCommon.mix(hash) & mask;
+		int node;
+		while ((node = slots[pos] - 1) != -1) {
+			if (hashes[node] == hash && equals(node, b)) {
+				return node;
+			}
+			pos = (pos + 1) & mask;
+		}
+		node = newNode(pos, hash, b.length);
+		BigArrays.copyToBig(b, 0, bytes, offsets[node], b.length);
+		return node;
+	}
+
+	/**
+	 * @param id
+	 *            the id, null for an empty id
+	 * @return the handle of the id, -1 if it is not known
+	 */
+	public int find(String id) {
+		byte[] b = utf8(id);
+		int hash = hash(b);
+		int pos = HashCommon.mix(hash) & mask;
+		int node;
+		while ((node = slots[pos] - 1) != -1) {
+			if (hashes[node] == hash && equals(node, b)) {
+				return node;
+			}
+			pos = (pos + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param node
+	 *            the handle of an id
+	 * @return the id, as a new string
+	 */
+	public String toString(int node) {
+		long start = offsets[node];
+		byte[] b = new byte[(int) (offsets[node + 1] - start)];
+		BigArrays.copyFromBig(bytes, start, b, 0, b.length);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the number of distinct ids
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes of the ids
+	 */
+	public long byteSize() {
+		return offsets[size];
+	}
+
+	/**
+	 * @return the number of times the table of handles was grown
+	 */
+	public long getRehashes() {
+		return rehashes;
+	}
+
+	/**
+	 * @return the time spent growing the table of handles, in nanoseconds
+	 */
+	public long getRehashNanos() {
+		return rehashNanos;
+	}
+
+	/**
+	 * Releases the ids. The dictionary is empty afterwards.
+	 */
+	public void clear() {
+		allocate(INITIAL_CAPACITY);
+		size = 0;
+	}
+
+	/**
+	 * Allocates a new handle in a free slot, and room for its bytes.
+	 */
+	private int newNode(int pos, int hash, int length) {
+		int node = size++;
+		if (node == hashes.length) {
+			hashes = Arrays.copyOf(hashes, (int) Math.min(Integer.MAX_VALUE - 8, 2L * hashes.length));
+			offsets = Arrays.copyOf(offsets, hashes.length + 1);
+		}
+		hashes[node] = hash;
+		slots[pos] = node + 1;
+		long start = offsets[node];
+		offsets[node + 1] = start + length;
+		bytes = BigArrays.grow(bytes, start + length, start);
+		if (size > maxFill) {
+			rehash();
+		}
+		return node;
+	}
+
+	private void rehash() {
+		long start = System.nanoTime();
+		int[] newSlots = new int[slots.length * 2];
+		int newMask = newSlots.length - 1;
+		int pos;
+		for (int node = 0; node < size; node++) {
+			pos = HashCommon.mix(hashes[node]) & newMask;
+			while (newSlots[pos] != 0) {
+				pos = (pos + 1) & newMask;
+			}
+			newSlots[pos] = node + 1;
+		}
+		slots = newSlots;
+		mask = newMask;
+		maxFill = HashCommon.maxFill(slots.length, 0.5f);
+		rehashes++;
+		rehashNanos += System.nanoTime() - start;
+	}
+
+	private boolean equals(int node, IByteBuffer xml, long offset, int length) {
+		long start = offsets[node];
+		if (offsets[node + 1] - start != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (BigArrays.get(bytes, start + i) != xml.byteAt(offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean equals(int node, byte[] b) {
+		long start = offsets[node];
+		if (offsets[node + 1] - start != b.length) {
+			return false;
+		}
+		for (int i = 0; i < b.length; i++) {
+			if (BigArrays.get(bytes, start + i) != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(IByteBuffer xml, long offset, int length) {
+		int h = 1;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + xml.byteAt(offset + i);
+		}
+		return h;
+	}
+
+	private static int hash(byte[] b) {
+		int h = 1;
+		for (byte x : b) {
+			h = 31 * h + x;
+		}
+		return h;
+	}
+
+	/**
+	 * @return true if the bytes of the token are the UTF-8 bytes of its value
+	 */
+	private static boolean isRaw(VTDNavHuge vn, int token) {
+		if (token == -1) {
+			return false;
+		}
+		int encoding = vn.getEncoding();
+		if (encoding != VTDNavHuge.FORMAT_UTF8 && encoding != VTDNavHuge.FORMAT_ASCII) {
+			return false;
+		}
+		IByteBuffer xml = vn.getXML();
+		long offset = vn.getTokenOffset(token);
+		long end = offset + vn.getTokenLength(token);
+		for (long i = offset; i < end; i++) {
+			if (xml.byteAt(i) == '&') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String stringOf(VTDNavHuge vn, int token) throws NavExceptionHuge {
+		return token == -1 ? null : vn.toString(token);
+	}
+
+	private static byte[] utf8(String id) {
+		return id == null ? new byte[0] : id.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -16,10 +16,18 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.ValidationException;
 
@@ -30,7 +38,6 @@ import com.ximpleware.extended.NavExceptionHuge;
 import com.ximpleware.extended.ParseExceptionHuge;
 import com.ximpleware.extended.VTDGenHuge;
 import com.ximpleware.extended.VTDNavHuge;
-import com.ximpleware.extended.XMLMemMappedBuffer;
 import com.ximpleware.extended.XPathEvalExceptionHuge;
 import com.ximpleware.extended.XPathParseExceptionHuge;
 
@@ -39,23 +46,22 @@ import fr.lip6.move.pnml2nupn.exceptions.EarlyStopException;
 import fr.lip6.move.pnml2nupn.exceptions.InternalException;
 import fr.lip6.move.pnml2nupn.exceptions.InvalidNetException;
 import fr.lip6.move.pnml2nupn.exceptions.InvalidPNMLTypeException;
-import fr.lip6.move.pnml2nupn.exceptions.InvalidSafeNetException;
 import fr.lip6.move.pnml2nupn.exceptions.PNMLImportExportException;
+import fr.lip6.move.pnml2nupn.export.ConversionOptions;
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
 import fr.lip6.move.pnml2nupn.export.PNML2NUPNExporter;
 import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
-import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntBigArrayBigList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
 import it.unimi.dsi.fastutil.longs.LongAVLTreeSet;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongBigArrayBigList;
-import it.unimi.dsi.fastutil.longs.LongCollection;
 import it.unimi.dsi.fastutil.longs.LongList;
-import it.unimi.dsi.fastutil.longs.LongRBTreeSet;
 import it.unimi.dsi.fastutil.longs.LongSortedSet;
-import it.unimi.dsi.fastutil.objects.Object2LongLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
-import it.unimi.dsi.fastutil.objects.ObjectSet;
+import it.unimi.dsi.fastutil.objects.ObjectBigArrayBigList;
 
 /**
  * Actual PNML 2 NUPN exporter.
@@ -64,18 +70,16 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 
 	private Logger logger;
 
-	private Object2LongOpenHashMap<String> placesId2NupnMap;
-	private Object2ObjectOpenHashMap<String, String> placesId2NameMap;
-	private Object2LongOpenHashMap<String> trId2NupnMap;
-	private Object2ObjectOpenHashMap<String, String> trId2NameMap;
-	private Long2ObjectOpenHashMap<LongBigArrayBigList> tr2OutPlacesMap;
-	private Long2ObjectOpenHashMap<LongBigArrayBigList> tr2InPlacesMap;
-	private Object2ObjectOpenHashMap<String, LongBigArrayBigList> tr2InAllArcsMap;
-	private Object2ObjectOpenHashMap<String, LongBigArrayBigList> tr2OutAllArcsMap;
-	private Object2ObjectOpenHashMap<String, LongBigArrayBigList> tr2InUnsafeArcsMap;
-	private Object2ObjectOpenHashMap<String, LongBigArrayBigList> tr2OutUnsafeArcsMap;
-	private ObjectSet<String> unsafeNodes;
-	private Object2LongOpenHashMap<String> unsafeArcsMap;
+	/* NUPN ids of the places and transitions, by handle of their PNML id, -1 if none */
+	private long[] placeNupnIds;
+	private long[] transitionNupnIds;
+	private TransitionAdjacency tr2OutPlaces;
+	private TransitionAdjacency tr2InPlaces;
+	/* Inscriptions of the arcs of the transitions, by handle of their PNML id */
+	private Int2ObjectOpenHashMap<LongBigArrayBigList> tr2InAllArcsMap;
+	private Int2ObjectOpenHashMap<LongBigArrayBigList> tr2OutAllArcsMap;
+	private Int2ObjectOpenHashMap<LongBigArrayBigList> tr2InUnsafeArcsMap;
+	private Int2ObjectOpenHashMap<LongBigArrayBigList> tr2OutUnsafeArcsMap;
 
 	private File currentInputFile;
 	private long nbUnsafeArcs, nbUnsafePlaces, nbUnsafeTrans;
@@ -83,29 +87,38 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 	// For places and transitions id count
 	private long placeIDGen;
 	private long transitionIDGen;
+	private long nbTransitions;
 	private boolean unsafePlaces, unsafeTrans;
 	/* For the NuPN file */
-	private BlockingQueue<String> nupnQueue;
+	private NUPNEmitter nupnOut;
 	/* For Transitions mapping NuPN - PNML */
-	private BlockingQueue<String> tsQueue;
+	private NUPNEmitter tsOut;
 	/* For Places mapping NuPN - PNML */
-	private BlockingQueue<String> psQueue;
+	private NUPNEmitter psOut;
 	/* For unsafe arcs */
-	private BlockingQueue<String> uaQueue;
+	private NUPNEmitter uaOut;
+	/* Place and transition labels sections */
+	private LabelSections labels;
 	private OutChannelBean ocbNupn;
-	private OutChannelBean ocbTs;
-	private OutChannelBean ocbPs;
 	private OutChannelBean ocbUA;
-	private File outTSFile;
-	private File outPSFile;
 	private File outUAFile;
 	/* Navigation in the XML */
 	private VTDNavHuge vn;
 	private AutoPilotHuge ap;
+	/* Position of the exported net among the nets of the document, 0 for all */
+	private int net;
 	/* NUPN tool specific section in the PNML? */
 	private boolean hasNUPNToolspecific;
 	/* For greatest label length - since v-3.0.0. */
 	private int labelLength;
+	/* Options and report of the current conversion */
+	private ConversionOptions options;
+	private ConversionReport report;
+	private RehashCounter rehashes;
+	/* Whether the input of the current run takes the fast path of small files */
+	private boolean smallFile;
+	/* Size of the output buffers of the current run */
+	private int bufferSize;
 
 	public PNML2NUPNExporterImpl() {}
 
@@ -118,33 +131,85 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 	@Override
 	public void export2NUPN(File inFile, File outFile, Logger journal)
 			throws PNMLImportExportException, InterruptedException, IOException, EarlyStopException {
-		initLog(journal);
-		export(inFile, outFile, journal);
+		appendToSignature(export2NUPN(inFile, outFile, MainPNML2NUPN.getConversionOptions(), journal));
 	}
 
 	@Override
 	public void export2NUPN(String inFile, String outFile, Logger journal)
 			throws PNMLImportExportException, InterruptedException, IOException, EarlyStopException {
-		initLog(journal);
-		export(new File(inFile), new File(outFile), journal);
+		export2NUPN(new File(inFile), new File(outFile), journal);
 	}
 
 	@Override
 	public void hasUnsafeArcs(String inFile, String outFile, Logger journal)
 			throws InvalidPNMLTypeException, IOException, PNMLImportExportException {
-		checkHasUnsafeArcs(new File(inFile), new File(outFile), journal);
+		appendToSignature(
+				hasUnsafeArcs(new File(inFile), new File(outFile), MainPNML2NUPN.getConversionOptions(), journal));
+	}
 
+	@Override
+	public ConversionReport export2NUPN(File inFile, File outFile, ConversionOptions options, Logger journal)
+			throws PNMLImportExportException, InterruptedException, IOException, EarlyStopException {
+		initLog(journal);
+		initRun(inFile, outFile, options);
+		export(inFile, outFile, journal);
+		endRun();
+		return report;
+	}
+
+	@Override
+	public ConversionReport hasUnsafeArcs(File inFile, File outFile, ConversionOptions options, Logger journal)
+			throws InvalidPNMLTypeException, IOException, PNMLImportExportException {
+		initRun(inFile, outFile, options);
+		checkHasUnsafeArcs(inFile, outFile, journal);
+		endRun();
+		return report;
+	}
+
+	private void initRun(File inFile, File outFile, ConversionOptions options) {
+		this.report = new ConversionReport(inFile, outFile);
+		this.rehashes = new RehashCounter();
+		report.setCounter(ConversionReport.COUNT_INPUT_BYTES, inFile.length());
+		this.bufferSize = NUPNEmitter.bufferSizeFor(inFile.length());
+		this.smallFile = options.isSmallFile(inFile);
+		if (smallFile) {
+			// Fast path: the whole NUPN is built in memory and written at once
+			options = options.toBuilder().inMemoryLabels(true).writerBuffers(0).build();
+		}
+		this.options = options;
+	}
+
+	/**
+	 * Ends the metrics of the run, and writes them next to the output file if
+	 * requested.
+	 */
+	private void endRun() throws IOException {
+		report.finish();
+		if (options.isMetricsReport()) {
+			logger.info("See metrics file: {}", report.writeJson().getCanonicalPath());
+		}
+	}
+
+	/**
+	 * Appends the signature lines of a conversion run through the command-line
+	 * entry points to the signature message of the command line.
+	 */
+	private static void appendToSignature(ConversionReport report) {
+		for (String line : report.getSignatureLines()) {
+			MainPNML2NUPN.appendMesgLineToSignature(line);
+		}
 	}
 
 	private void checkHasUnsafeArcs(File inFile, File outFile, Logger journal)
 			throws InvalidPNMLTypeException, IOException, PNMLImportExportException {
-		XMLMemMappedBuffer xb = new XMLMemMappedBuffer();
 		VTDGenHuge vg = new VTDGenHuge();
 		long nbUnsArcs = 0L;
 		initLog(journal);
+		this.currentInputFile = inFile;
+		checkFirstNetType(inFile);
 		try {
-			xb.readFile(inFile.getCanonicalPath());
-			vg.setDoc(xb);
+			report.beginPhase(ConversionReport.PHASE_PARSE);
+			vg.setDoc(PNML2NUPNUtils.readXMLBuffer(inFile, smallFile));
 			vg.parse(true);
 			VTDNavHuge vn = vg.getNav();
 			AutoPilotHuge ap = new AutoPilotHuge(vn);
@@ -156,58 +221,64 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 			}
 			outUAFile = new File(PNML2NUPNUtils.extractBaseName(outFile.getCanonicalPath()) + NUPNConstants.UNSAFE_ARC);
 			ocbUA = PNML2NUPNUtils.openOutChannel(outUAFile);
-			uaQueue = PNML2NUPNUtils.initQueue();
-			Thread uaWriter = PNML2NUPNUtils.startWriter(ocbUA, uaQueue);
+			uaOut = new NUPNEmitter(ocbUA, bufferSize, options.getWriterBuffers());
 
 			// Check inscriptions > 1
+			report.beginPhase(ConversionReport.PHASE_UNSAFE_ARCS);
 			ap.resetXPath();
 			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.UNSAFE_ARCS);
-			StringBuilder unsafeArcsId = new StringBuilder();
+			ap.selectXPath(PNMLPaths.INSCRIPTIONS);
 			long val;
 			String id, src, trg;
 			while ((ap.evalXPath()) != -1) {
-				vn.push();
-				vn.toElement(VTDNavHuge.FIRST_CHILD);
-				while (!vn.matchElement(NUPNConstants.TEXT)) {
-					vn.toElement(VTDNavHuge.NEXT_SIBLING);
+				if (!vn.toElement(VTDNavHuge.FIRST_CHILD, PNMLPaths.TEXT_ELEMENT)) {
+					continue;
+				}
+				try {
+					val = ExportUtils.parseLong(vn, vn.getText());
+				} catch (NumberFormatException e) {
+					journal.warn("Ignoring inscription that is not an integer: {}", e.getMessage());
+					val = 1L;
 				}
-				val = Long.parseLong(vn.toString(vn.getText()).trim());
 				vn.toElement(VTDNavHuge.PARENT);
+				if (val <= 1L) {
+					continue;
+				}
+				vn.push();
 				vn.toElement(VTDNavHuge.PARENT);
 				id = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
 				if (id != null) {
 					src = vn.toString(vn.getAttrVal(PNMLPaths.SRC_ATTR));
 					trg = vn.toString(vn.getAttrVal(PNMLPaths.TRG_ATTR));
-					unsafeArcsId.append(src + NUPNConstants.WS + id + NUPNConstants.WS + trg + NUPNConstants.WS
-							+ NUPNConstants.HK + val + NUPNConstants.NL);
-					uaQueue.put(unsafeArcsId.toString());
+					uaOut.append(src).append(NUPNConstants.WS).append(id).append(NUPNConstants.WS).append(trg)
+							.append(NUPNConstants.WS).append(NUPNConstants.HK).append(val).append(NUPNConstants.NL);
 					nbUnsArcs++;
 				}
 				vn.pop();
-				unsafeArcsId.delete(0, unsafeArcsId.length());
 			}
 			if (nbUnsArcs > 0) {
 				journal.warn("There are {} unsafe arcs in this net.", nbUnsArcs);
 			} else {
 				logger.info("There are no unsafe arcs in this net.");
 			}
-			PNML2NUPNUtils.stopWriter(uaQueue);
-			uaWriter.join();
+			report.beginPhase(ConversionReport.PHASE_DRAIN);
+			uaOut.close();
 			PNML2NUPNUtils.closeChannel(ocbUA);
+			report.endPhase();
+			ExportUtils.reportWriters(report, uaOut);
+			report.setCounter(ConversionReport.COUNT_UNSAFE_ARCS, nbUnsArcs);
+			report.setCounter(ConversionReport.COUNT_OUTPUT_BYTES, nbUnsArcs > 0 ? outUAFile.length() : 0L);
 			if (nbUnsArcs > 0) {
 				logger.info("See unsafe arcs files: {}", outUAFile.getCanonicalPath());
 			} else {
 				outUAFile.delete();
 			}
-		} catch (ParseExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | NavExceptionHuge
-				| InterruptedException e) {
-			try {
-				emergencyStop(outFile);
-			} catch (InterruptedException e1) {
-				e1.printStackTrace();
-			}
+		} catch (ParseExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | NavExceptionHuge e) {
+			emergencyStop(outFile);
 			throw new PNMLImportExportException(e);
+		} catch (IOException e) {
+			emergencyStop(outFile);
+			throw e;
 		}
 	}
 
@@ -218,30 +289,249 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 			this.currentInputFile = inFile;
 			journal.info("Checking preconditions on input file format: {} ", inFile.getCanonicalPath());
 			PNML2NUPNUtils.checkIsPnmlFile(inFile);
+			checkFirstNetType(inFile);
 			logger.info("Exporting into NUPN: {}", inFile.getCanonicalPath());
+			if (options.isStreamingInput()) {
+				if (!options.isPreserveNupnNative()) {
+					vn = null;
+					ap = null;
+					if (translateIntoNUPN(inFile, outFile, journal)) {
+						return;
+					}
+					journal.warn(
+							"The document has several nets, exported apart over its index: ignoring streaming input.");
+				} else {
+					journal.warn("NUPN extraction in native mode needs the document index: ignoring streaming input.");
+				}
+			}
+			report.beginPhase(ConversionReport.PHASE_PARSE);
 			openXMLStream(inFile);
-			boolean hasNupnToolInfo = hasNUPNToolSpecificSection(inFile);
 
-			if (MainPNML2NUPN.isPreserveNupnNative() && hasNupnToolInfo) {
-				journal.info("NUPN extraction in native mode requested, and there is a NUPN tool specific section.");
-				journal.info("NUPN extraction in native mode supersedes NUPN extraction in mixed mode.");
-				NativeNUPNExtractor nupnExtractor = new NativeNUPNExtractor(inFile, outFile, journal);
-				nupnExtractor.extractNUPN(vn, ap);
+			int nbNets = ExportUtils.countNets(vn);
+			if (nbNets > 1) {
+				exportNets(inFile, outFile, journal, nbNets);
 			} else {
-				translateIntoNUPN(inFile, outFile, journal);
+				exportIndexed(inFile, outFile, journal);
 			}
-			// translateIntoNUPN(inFile, outFile, journal);
 		} catch (ValidationException | fr.lip6.move.pnml2nupn.exceptions.InvalidFileTypeException
 				| fr.lip6.move.pnml2nupn.exceptions.InvalidFileException | InternalException
-				| InvalidPNMLTypeException e) {
+				| InvalidPNMLTypeException | NavExceptionHuge | XPathParseExceptionHuge
+				| XPathEvalExceptionHuge e) {
 			throw new PNMLImportExportException(e);
 		} catch (IOException e) {
 			throw e;
 		}
 	}
 
+	/**
+	 * Exports the net(s) of the document over its VTD index, in native mode if
+	 * requested and possible, with the translation into NUPN otherwise.
+	 */
+	private void exportIndexed(File inFile, File outFile, Logger journal) throws InvalidPNMLTypeException,
+			InterruptedException, PNMLImportExportException, IOException, EarlyStopException {
+		if (options.isPreserveNupnNative() && hasNUPNToolSpecificSection(inFile)) {
+			journal.info("NUPN extraction in native mode requested, and there is a NUPN tool specific section.");
+			journal.info("NUPN extraction in native mode supersedes NUPN extraction in mixed mode.");
+			NativeNUPNExtractor nupnExtractor = new NativeNUPNExtractor(inFile, outFile, options, report, journal,
+					net);
+			nupnExtractor.extractNUPN(vn, ap);
+		} else {
+			translateIntoNUPN(inFile, outFile, journal);
+		}
+	}
+
+	/**
+	 * Exports each net of a document with several nets into its own NUPN file,
+	 * named after the output file and the id of the net:
+	 * <code>&lt;base&gt;.&lt;netId&gt;.nupn</code>. The nets are exported
+	 * concurrently, except for a small file, each by its own exporter over a
+	 * clone of the navigator: the VTD index of the document is parsed once, and
+	 * only read.
+	 */
+	private void exportNets(File inFile, File outFile, Logger journal, int nbNets)
+			throws InvalidPNMLTypeException, InterruptedException, PNMLImportExportException, IOException,
+			EarlyStopException, NavExceptionHuge, XPathParseExceptionHuge, XPathEvalExceptionHuge {
+		// all the nets are checked before any of them is exported
+		logger.info("Checking it is a PT Net.");
+		if (!ExportUtils.isPTNet(ap, vn, logger)) {
+			throw notPTNetException();
+		}
+		report.beginPhase(ConversionReport.PHASE_NETS);
+		String path = outFile.getCanonicalPath();
+		String base = PNML2NUPNUtils.extractBaseName(path);
+		String ext = path.substring(base.length());
+		ObjectOpenHashSet<String> names = new ObjectOpenHashSet<>(nbNets);
+		List<Callable<ConversionReport>> tasks = new ArrayList<>(nbNets);
+		List<File> netOutFiles = new ArrayList<>(2 * nbNets);
+		for (int i = 1; i <= nbNets; i++) {
+			final int position = i;
+			final File netOutFile = new File(base + "." + netFileName(position, names) + ext);
+			netOutFiles.add(netOutFile);
+			netOutFiles.add(new File(PNML2NUPNUtils.extractBaseName(netOutFile.getPath()) + ConversionReport.METRICS_EXT));
+			final VTDNavHuge nav = vn.cloneNav();
+			tasks.add(() -> new PNML2NUPNExporterImpl().exportNet(inFile, netOutFile, options, journal, nav,
+					position));
+		}
+		// a small file is converted without threads: its nets are exported in turn
+		int workers = smallFile ? 0 : Math.min(nbNets, Runtime.getRuntime().availableProcessors());
+		if (workers > 0) {
+			logger.info("The document has {} nets: exporting each into its own NUPN file, with {} worker(s).",
+					nbNets, workers);
+		} else {
+			logger.info("The document has {} nets: exporting each into its own NUPN file, in turn.", nbNets);
+		}
+		long places = 0L, transitions = 0L, arcs = 0L, outputBytes = 0L;
+		ExecutorService pool = workers > 0 ? Executors.newFixedThreadPool(workers, new NetWorkerFactory()) : null;
+		boolean exported = false;
+		try {
+			List<Future<ConversionReport>> futures = new ArrayList<>(nbNets);
+			if (pool != null) {
+				futures.addAll(pool.invokeAll(tasks));
+			} else {
+				for (Callable<ConversionReport> task : tasks) {
+					futures.add(new FutureTask<>(task));
+				}
+			}
+			for (Future<ConversionReport> future : futures) {
+				if (pool == null) {
+					// run by the calling thread, up to the first net which fails
+					((FutureTask<ConversionReport>) future).run();
+				}
+				ConversionReport netReport = future.get();
+				netReport.getSignatureLines().forEach(report::addSignatureLine);
+				places += netReport.getCounters().getLong(ConversionReport.COUNT_PLACES);
+				transitions += netReport.getCounters().getLong(ConversionReport.COUNT_TRANSITIONS);
+				arcs += netReport.getCounters().getLong(ConversionReport.COUNT_ARCS);
+				outputBytes += netReport.getCounters().getLong(ConversionReport.COUNT_OUTPUT_BYTES);
+			}
+			exported = true;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof PNMLImportExportException) {
+				throw (PNMLImportExportException) cause;
+			} else if (cause instanceof InvalidPNMLTypeException) {
+				throw (InvalidPNMLTypeException) cause;
+			} else if (cause instanceof EarlyStopException) {
+				throw (EarlyStopException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new PNMLImportExportException(cause);
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			if (!exported) {
+				// The document is exported as a whole or not at all: the nets
+				// already written must not be taken for a complete output.
+				if (pool != null) {
+					awaitWorkers(pool);
+				}
+				PNML2NUPNUtils.deleteOutputFiles(netOutFiles.toArray(new File[netOutFiles.size()]));
+				logger.error("Emergency stop. Deleted the NUPN files of the nets already exported.");
+			}
+		}
+		report.endPhase();
+		report.setCounter(ConversionReport.COUNT_NETS, nbNets);
+		report.setCounter(ConversionReport.COUNT_PLACES, places);
+		report.setCounter(ConversionReport.COUNT_TRANSITIONS, transitions);
+		report.setCounter(ConversionReport.COUNT_ARCS, arcs);
+		report.setCounter(ConversionReport.COUNT_OUTPUT_BYTES, outputBytes);
+	}
+
+	/**
+	 * Waits for the workers of the nets to stop once they are cancelled, so
+	 * that none of them writes a file after their outputs are deleted. The
+	 * interruption of the current thread is kept for its caller.
+	 */
+	private static void awaitWorkers(ExecutorService pool) {
+		boolean interrupted = false;
+		while (!pool.isTerminated()) {
+			try {
+				pool.awaitTermination(1L, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the id of a net, as part of a file name: the characters other
+	 *         than letters, digits, dots, dashes and underscores are replaced,
+	 *         and the position of the net, or the first higher number which
+	 *         makes the name unique, is appended if another net has the same
+	 *         name
+	 */
+	private String netFileName(int position, ObjectOpenHashSet<String> names) throws NavExceptionHuge {
+		String name = null;
+		if (ExportUtils.toNet(vn, position)) {
+			int id = vn.getAttrVal(PNMLPaths.ID_ATTR);
+			name = id != -1 ? vn.toString(id).replaceAll("[^A-Za-z0-9._-]", "_") : null;
+		}
+		vn.toElement(VTDNavHuge.ROOT);
+		if (name == null || name.isEmpty()) {
+			name = PNMLPaths.NET_ELEMENT + position;
+		}
+		String unique = name;
+		for (int suffix = position; !names.add(unique); suffix++) {
+			unique = name + "-" + suffix;
+		}
+		return unique;
+	}
+
+	/**
+	 * Exports one net of a document with several nets, over a clone of the
+	 * navigator of the document.
+	 * 
+	 * @param nav
+	 *            the clone of the navigator, for this exporter only
+	 * @param net
+	 *            position of the net among the nets of the document, from 1
+	 * @return the report of the export of the net
+	 */
+	private ConversionReport exportNet(File inFile, File outFile, ConversionOptions options, Logger journal,
+			VTDNavHuge nav, int net) throws InvalidPNMLTypeException, InterruptedException,
+			PNMLImportExportException, IOException, EarlyStopException {
+		initLog(journal);
+		initRun(inFile, outFile, options);
+		this.currentInputFile = inFile;
+		this.vn = nav;
+		this.ap = new AutoPilotHuge(nav);
+		this.net = net;
+		logger.info("Exporting net #{} into NUPN: {}", net, outFile.getCanonicalPath());
+		exportIndexed(inFile, outFile, journal);
+		endRun();
+		return report;
+	}
+
+	/**
+	 * Rejects the document if its first net is not a P/T net, from the head of
+	 * the document only. The type of all the nets is checked again with the
+	 * whole document.
+	 * 
+	 * @throws InvalidPNMLTypeException
+	 *             if the first net is not a P/T net
+	 */
+	private void checkFirstNetType(File inFile) throws InvalidPNMLTypeException, IOException {
+		String netType = StreamingNetExtractor.sniffNetType(inFile);
+		if (!StreamingNetExtractor.maybePTNet(netType)) {
+			logger.info("Discovered net type: {}", netType);
+			throw notPTNetException();
+		}
+	}
+
 	private void openXMLStream(File inFile) throws PNMLImportExportException {
-		vn = PNML2NUPNUtils.openXMLStream(inFile).getNav();
+		if (smallFile) {
+			logger.info("Small PNML file: reading it into memory.");
+		}
+		vn = PNML2NUPNUtils.openXMLStream(inFile, smallFile).getNav();
 		ap = new AutoPilotHuge(vn);
 	}
 
@@ -258,7 +548,7 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 		try {
 			logger.info("Checking for the presence of a NUPN tool specific section.");
 			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.NUPN_TOOL_SPECIFIC);
+			ap.selectXPath(PNMLPaths.ofNet(PNMLPaths.NUPN_TOOL_SPECIFIC, net));
 			String version;
 			while ((ap.evalXPath()) != -1) {
 				vn.push();
@@ -286,134 +576,167 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 		return hasNUPNToolspecific;
 	}
 
-	private void translateIntoNUPN(File inFile, File outFile, Logger journal) throws InvalidPNMLTypeException,
+	/**
+	 * @return false if the streaming input engine found several nets in the
+	 *         document, which it does not export apart: nothing was written
+	 */
+	private boolean translateIntoNUPN(File inFile, File outFile, Logger journal) throws InvalidPNMLTypeException,
 			InterruptedException, PNMLImportExportException, IOException, EarlyStopException {
 
 		boolean isSafe = false;
 		try {
-			logger.info("Checking it is a PT Net.");
-			if (!ExportUtils.isPTNet(ap, vn, logger)) {
-				throw new InvalidPNMLTypeException(
-						"The net in the document is not a P/T Net. Only P/T Nets are supported: "
-								+ this.currentInputFile.getCanonicalPath());
+			// Estimate the sizes of the net, to presize the tables
+			report.beginPhase(ConversionReport.PHASE_SIZING);
+			NetSizes sizes = estimateSizes();
+
+			// Collect places, transitions, arcs and NUPN units in a single pass
+			report.beginPhase(ConversionReport.PHASE_EXTRACT);
+			AbstractNetExtractor extractor = extractNet(sizes);
+			if (extractor == null) {
+				return false;
 			}
+			hasNUPNToolspecific = extractor.hasNUPNToolspecific();
+
+			// Init data structure for places id and transitions, at the sizes of the net
+			initPlacesMap();
+			initTransitionsMaps(extractor);
+			initUnsafeTransMaps(extractor);
+
 			// The net must be 1-safe, but bounds checking is no longer supported from v4.0.0
 			logger.warn("Unit safeness checking is permanently disabled. I don't know if this net is 1-Safe.");
 			
-			// Open NUPN and mapping files channels, and init write queues
-			outTSFile = new File(PNML2NUPNUtils.extractBaseName(outFile.getCanonicalPath()) + NUPNConstants.TRANS_EXT);
-			outPSFile = new File(PNML2NUPNUtils.extractBaseName(outFile.getCanonicalPath()) + NUPNConstants.STATES_EXT);
-			// Channels for NuPN, transitions and places id mapping
+			// Open NUPN file channel, and output buffers for NUPN, transitions and places id mapping
 			ocbNupn = PNML2NUPNUtils.openOutChannel(outFile);
-			ocbTs = PNML2NUPNUtils.openOutChannel(outTSFile);
-			ocbPs = PNML2NUPNUtils.openOutChannel(outPSFile);
-			// Queues for NUPN, transitions and places id mapping
-			nupnQueue = PNML2NUPNUtils.initQueue();
-			tsQueue = PNML2NUPNUtils.initQueue();
-			psQueue = PNML2NUPNUtils.initQueue();
-
-			// Start writers
-			Thread nupnWriter = PNML2NUPNUtils.startWriter(ocbNupn, nupnQueue);
-			Thread tsWriter = PNML2NUPNUtils.startWriter(ocbTs, tsQueue);
-			Thread psWriter = PNML2NUPNUtils.startWriter(ocbPs, psQueue);
+			nupnOut = new NUPNEmitter(ocbNupn, bufferSize, options.getWriterBuffers());
+			labels = new LabelSections(outFile, options.isInMemoryLabels(), options.getWriterBuffers(), bufferSize);
+			tsOut = labels.transitions();
+			psOut = labels.places();
 
 			// Insert creator pragma (since 1.3.0)
-			PNML2NUPNUtils.insertCreatorPragma(nupnQueue);
+			PNML2NUPNUtils.insertCreatorPragma(nupnOut);
 			// Insert unit_safe pragma if necessary (since 1.4.1)
 			if (MainPNML2NUPN.isUnitSafenessChecking() && isSafe) {
-				ExportUtils.insertUnitSafePragma(nupnQueue, MainPNML2NUPN.PRAGMA_UNIT_SAFE_BY_BOUNDS);
+				ExportUtils.insertUnitSafePragma(nupnOut, MainPNML2NUPN.PRAGMA_UNIT_SAFE_BY_BOUNDS);
 			}
 
-			// Init data structure for places id and transitions
-			initPlacesMap();
-			initUnsafeArcsMap();
-			initTransitionsMaps();
-			initUnsafeTransMaps();
-
 			// export places
 			logger.info("Exporting places.");
-			exportPlacesIntoUnits(ap, vn, nupnQueue, psQueue);
+			report.beginPhase(ConversionReport.PHASE_PLACES);
+			exportPlacesIntoUnits(extractor, nupnOut, psOut);
+			report.setCounter(ConversionReport.COUNT_PLACES, extractor.getPlaces().size64());
+			report.setCounter(ConversionReport.COUNT_ARCS, extractor.getArcSources().size64());
+			report.setCounter(ConversionReport.COUNT_NODE_ID_BYTES, extractor.getNodeIds().byteSize());
+			rehashes.add(extractor.getNodeIds().getRehashes(), extractor.getNodeIds().getRehashNanos());
+			extractor.clear();
 
 			// export transitions
 			logger.info("Exporting transitions.");
-			exportTransitions130(ap, vn, nupnQueue);
+			report.beginPhase(ConversionReport.PHASE_TRANSITIONS);
+			exportTransitions130(nupnOut);
+			report.setCounter(ConversionReport.COUNT_TRANSITIONS, nbTransitions);
+			report.setCounter(ConversionReport.COUNT_UNSAFE_ARCS, nbUnsafeArcs);
+			rehashes.report(report);
 
 			// write labels line
-			ExportUtils.setLabelsLine(nupnQueue, labelLength, trId2NupnMap.isEmpty());
-
-			// Stop place and transition files Writers
-			PNML2NUPNUtils.stopWriters(tsQueue, psQueue);
-			tsWriter.join();
-			psWriter.join();
-			// Close channels on place and transition files
-			PNML2NUPNUtils.closeChannels(ocbTs, ocbPs);
-
-			// append contents of place and transition files to NUPN file
-			logger.info("Appending place Ids-labels mappings to NUPN file");
-			ExportUtils.appendFileContentToNUPN(outPSFile, nupnQueue, logger);
-			logger.info("Appending transition Ids-labels mappings to NUPN file");
-			ExportUtils.appendFileContentToNUPN(outTSFile, nupnQueue, logger);
-
-			// stop NUPN writer and release related resources
-			PNML2NUPNUtils.stopWriters(nupnQueue);
-			nupnWriter.join();
-			PNML2NUPNUtils.closeChannels(ocbNupn);
+			ExportUtils.setLabelsLine(nupnOut, labelLength, nbTransitions == 0L);
 
-			// Delete place and transition files
-			logger.info("Deleting place and transition Ids-labels mappings files");
-			PNML2NUPNUtils.deleteOutputFiles(outPSFile, outTSFile);
+			// write out the NUPN buffer, then append place and transition labels sections to NUPN file
+			report.beginPhase(ConversionReport.PHASE_DRAIN);
+			nupnOut.flush();
+			report.beginPhase(ConversionReport.PHASE_LABELS);
+			report.setCounter(ConversionReport.COUNT_LABEL_BYTES, labels.appendTo(nupnOut, ocbNupn, logger));
+			labels = null;
+
+			// release NUPN file
+			PNML2NUPNUtils.closeChannels(ocbNupn);
+			report.endPhase();
+			ExportUtils.reportWriters(report, nupnOut, psOut, tsOut);
+			report.setCounter(ConversionReport.COUNT_OUTPUT_BYTES, outFile.length());
 
 			// clear maps
 			clearAllCollections();
 			logger.info("See NUPN file: {}", outFile.getCanonicalPath());
-		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | InvalidSafeNetException
-				| InternalException | InvalidNetException e) {
+			return true;
+		} catch (NavExceptionHuge | XPathParseExceptionHuge | XPathEvalExceptionHuge | InvalidNetException e) {
 			emergencyStop(outFile);
 			throw new PNMLImportExportException(e);
-		} catch (InterruptedException e) {
-			emergencyStop(outFile);
-			throw e;
 		} catch (IOException e) {
 			emergencyStop(outFile);
 			throw e;
 		}
 	}
 
+	/**
+	 * Estimates the sizes of the net: from the VTD index of the document, or
+	 * from the head of the document with the streaming input engine.
+	 */
+	private NetSizes estimateSizes() throws NavExceptionHuge {
+		NetSizes sizes = vn == null ? StreamingNetExtractor.sniffNetSizes(currentInputFile)
+				: NetSizes.of(vn, net, currentInputFile.length());
+		logger.info("Estimated sizes of the net: {}", sizes);
+		return sizes;
+	}
+
+	/**
+	 * Checks the nets are P/T nets and collects their places, transitions, arcs
+	 * and NUPN units, with the streaming input engine if it is enabled, over the
+	 * VTD index of the document otherwise.
+	 * 
+	 * @param sizes
+	 *            the estimated sizes of the net, which the tables are presized
+	 *            to
+	 * @return the extractor holding the collected tables, null if the streaming
+	 *         input engine found several nets in the document
+	 * @throws InvalidPNMLTypeException
+	 *             if a net is not a P/T net
+	 */
+	private AbstractNetExtractor extractNet(NetSizes sizes) throws InvalidPNMLTypeException,
+			PNMLImportExportException, InvalidNetException, XPathParseExceptionHuge, XPathEvalExceptionHuge,
+			NavExceptionHuge, IOException {
+		logger.info("Checking it is a PT Net.");
+		if (vn == null) {
+			StreamingNetExtractor extractor = new StreamingNetExtractor(logger, options.isUsePlaceNames(),
+					options.isUseTransitionNames(), options.isPreserveNupnMix(), sizes, rehashes);
+			extractor.extract(currentInputFile);
+			if (!extractor.isPTNet()) {
+				throw notPTNetException();
+			}
+			return extractor.hasSeveralNets() ? null : extractor;
+		}
+		if (!ExportUtils.isPTNet(ap, vn, logger)) {
+			throw notPTNetException();
+		}
+		FusedNetExtractor extractor = new FusedNetExtractor(logger, options.isUsePlaceNames(),
+				options.isUseTransitionNames(), options.isPreserveNupnMix(), sizes, rehashes);
+		extractor.extract(vn, net);
+		return extractor;
+	}
+
+	private InvalidPNMLTypeException notPTNetException() throws IOException {
+		return new InvalidPNMLTypeException("The net in the document is not a P/T Net. Only P/T Nets are supported: "
+				+ this.currentInputFile.getCanonicalPath());
+	}
+
 	/**
 	 * Exports transitions into NUPN (since 1.3.0)
 	 * 
-	 * @param ap
-	 * @param vn
-	 * @param npnQueue
-	 * @param tsQueue
-	 * @throws XPathParseExceptionHuge
-	 * @throws NavExceptionHuge
-	 * @throws InterruptedException
-	 * @throws XPathEvalExceptionHuge
+	 * @param npnOut
+	 * @throws IOException
 	 */
-	private void exportTransitions130(AutoPilotHuge ap, VTDNavHuge vn, BlockingQueue<String> npnQueue)
-			throws XPathParseExceptionHuge, NavExceptionHuge, InterruptedException, XPathEvalExceptionHuge {
-		long nb = trId2NupnMap.size();
-		StringBuilder nupnsb = new StringBuilder();
-		nupnsb.append(NUPNConstants.TRANSITIONS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nb)
+	private void exportTransitions130(NUPNEmitter npnOut) throws IOException {
+		long nb = nbTransitions;
+		npnOut.append(NUPNConstants.TRANSITIONS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nb)
 				.append(NUPNConstants.WS)
-				.append(MainPNML2NUPN.getFirstTransitionNumber()).append(NUPNConstants.DOTS).append(nb - 1L + MainPNML2NUPN.getFirstTransitionNumber())
+				.append(options.getFirstTransitionNumber()).append(NUPNConstants.DOTS).append(nb - 1L + options.getFirstTransitionNumber())
 				.append(NUPNConstants.NL);
-		npnQueue.put(nupnsb.toString());
-		nupnsb.delete(0, nupnsb.length());
-
-		LongCollection allTr = new LongRBTreeSet(trId2NupnMap.values());
-
-		for (long trId : allTr) {
-			nupnsb.append(NUPNConstants.T).append(trId);
-			buildConnectedPlaces2Transition(nupnsb, trId, tr2InPlacesMap);
-			buildConnectedPlaces2Transition(nupnsb, trId, tr2OutPlacesMap);
-			nupnsb.append(NUPNConstants.NL);
-			npnQueue.put(nupnsb.toString());
-			nupnsb.delete(0, nupnsb.length());
+
+		long firstTr = options.getFirstTransitionNumber();
+		for (long trId = firstTr; trId < firstTr + nb; trId++) {
+			npnOut.append(NUPNConstants.T).append(trId);
+			buildConnectedPlaces2Transition(npnOut, trId, tr2InPlaces);
+			buildConnectedPlaces2Transition(npnOut, trId, tr2OutPlaces);
+			npnOut.append(NUPNConstants.NL);
 		}
-		nupnsb.delete(0, nupnsb.length());
-		nupnsb = null;
 	}
 
 	/**
@@ -422,26 +745,16 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 	 * @param bpnsb
 	 * @param trId
 	 */
-	private void buildConnectedPlaces2Transition(StringBuilder bpnsb, long trId,
-			Long2ObjectOpenHashMap<LongBigArrayBigList> tr2PlacesMap) {
-		LongBigArrayBigList pls;
-		long plsSize;
-		pls = tr2PlacesMap.get(trId);
-		if (pls != null) {
-			plsSize = pls.size64();
-		} else { // no place in input or output list of this transition
-			plsSize = 0L;
-		}
+	private void buildConnectedPlaces2Transition(NUPNEmitter bpnsb, long trId, TransitionAdjacency tr2Places)
+			throws IOException {
+		int plsSize = tr2Places.size(trId);
 		bpnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(plsSize);
-
-		if (plsSize > 0L) {
-			for (long plId : pls) {
-				bpnsb.append(NUPNConstants.WS).append(plId);
-			}
+		for (int i = tr2Places.offset(trId), end = i + plsSize; i < end; i++) {
+			bpnsb.append(NUPNConstants.WS).append(tr2Places.place(i));
 		}
 	}
 
-	private void mapInputArcToTransition(String targetTrId, long inscription) {
+	private void mapInputArcToTransition(int targetTrId, long inscription) {
 		LongBigArrayBigList allArcVals = tr2InAllArcsMap.get(targetTrId);
 		if (allArcVals == null) {
 			allArcVals = new LongBigArrayBigList();
@@ -450,7 +763,7 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 		tr2InAllArcsMap.put(targetTrId, allArcVals);
 	}
 
-	private void mapOutputArcToTransition(String sourceTrId, long inscription) {
+	private void mapOutputArcToTransition(int sourceTrId, long inscription) {
 		LongBigArrayBigList allArcVals = tr2OutAllArcsMap.get(sourceTrId);
 		if (allArcVals == null) {
 			allArcVals = new LongBigArrayBigList();
@@ -463,153 +776,115 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 	 * Builds transitions collections, collecting unsafe arcs and corresponding
 	 * transitions.
 	 * 
-	 * @param ap
-	 * @param vn
+	 * @param extractor
+	 *            the tables collected from the PNML
 	 */
-	private void buildTransitions(AutoPilotHuge ap, VTDNavHuge vn)
-			throws XPathParseExceptionHuge, NavExceptionHuge, InterruptedException, XPathEvalExceptionHuge {
-		String arc, src, trg, id;
+	private void buildTransitions(AbstractNetExtractor extractor) throws IOException {
+		int src, trg;
 		long count = transitionIDGen;
 		long tId, pId;
 		long arcInsc = 0;
-		boolean foundInsc;
-		LongBigArrayBigList pls = null;
 		LongBigArrayBigList arcVals = null;
-
-		ap.selectXPath(PNMLPaths.TRANSITIONS_PATH);
-		while ((ap.evalXPath()) != -1) {
-			vn.push();
-			// id = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
-			id = ExportUtils.getPNMLNodeId(vn, MainPNML2NUPN.isUseTransitionNames(), trId2NameMap);
+		String label;
+
+		transitionNupnIds = new long[extractor.getNodeIds().size()];
+		Arrays.fill(transitionNupnIds, -1L);
+		IntBigArrayBigList transitions = extractor.getTransitions();
+		int transition;
+		for (long i = 0L; i < transitions.size64(); i++) {
+			transition = transitions.getInt(i);
 			tId = count++;
-			trId2NupnMap.put(id, tId);
-			id = ExportUtils.getPNMLNodeIdOrName(id, MainPNML2NUPN.isUseTransitionNames(), trId2NameMap);
-			tsQueue.put(NUPNConstants.T_PREFX + tId + NUPNConstants.WS + id + NUPNConstants.NL);
-			labelLength = ExportUtils.updateLabelLength(id, labelLength);
-			vn.pop();
+			transitionNupnIds[transition] = tId;
+			label = extractor.getTransitionLabel(transition);
+			tsOut.append(NUPNConstants.T_PREFX).append(tId).append(NUPNConstants.WS).append(label)
+					.append(NUPNConstants.NL);
+			labelLength = ExportUtils.updateLabelLength(label, labelLength);
 		}
 
-		ap.resetXPath();
-		vn.toElement(VTDNavHuge.ROOT);
-		ap.selectXPath(PNMLPaths.ARCS_PATH);
-		while ((ap.evalXPath()) != -1) {
-			vn.push();
-			pls = null;
-			arc = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
-			src = vn.toString(vn.getAttrVal(PNMLPaths.SRC_ATTR));
-			trg = vn.toString(vn.getAttrVal(PNMLPaths.TRG_ATTR));
-
-			tId = trId2NupnMap.getLong(src);
+		IntBigArrayBigList arcSources = extractor.getArcSources();
+		IntBigArrayBigList arcTargets = extractor.getArcTargets();
+		LongBigArrayBigList arcInscriptions = extractor.getArcInscriptions();
+		long nbArcs = arcSources.size64();
+		// Presize the adjacencies: the arcs from a declared transition are its output arcs
+		long nbOutArcs = 0L;
+		for (long i = 0L; i < nbArcs; i++) {
+			if (transitionNupnIds[arcSources.getInt(i)] != -1L) {
+				nbOutArcs++;
+			}
+		}
+		tr2InPlaces.ensureCapacity(NetSizes.capacity(nbArcs - nbOutArcs));
+		tr2OutPlaces.ensureCapacity(NetSizes.capacity(nbOutArcs));
+		for (long i = 0L; i < nbArcs; i++) {
+			src = arcSources.getInt(i);
+			trg = arcTargets.getInt(i);
+			arcInsc = arcInscriptions.getLong(i);
+
+			tId = transitionNupnIds[src];
 			if (tId == -1L) { // transition is the target
-				tId = trId2NupnMap.getLong(trg);
+				tId = transitionNupnIds[trg];
 				if (tId == -1L) {
 					tId = count++;
-					trId2NupnMap.put(trg, tId);
-					String nodeId = ExportUtils.getPNMLNodeIdOrName(trg, MainPNML2NUPN.isUseTransitionNames(),
-							trId2NameMap);
-					tsQueue.put(NUPNConstants.T_PREFX + tId + NUPNConstants.WS + nodeId + NUPNConstants.NL);
+					transitionNupnIds[trg] = tId;
+					String nodeId = extractor.getTransitionLabel(trg);
+					tsOut.append(NUPNConstants.T_PREFX).append(tId).append(NUPNConstants.WS).append(nodeId)
+							.append(NUPNConstants.NL);
 					labelLength = ExportUtils.updateLabelLength(nodeId, labelLength);
 				}
-				pls = tr2InPlacesMap.get(tId);
-				if (pls == null) {
-					pls = new LongBigArrayBigList();
-					tr2InPlacesMap.put(tId, pls);
-				}
 				// associate the input place
-				pId = placesId2NupnMap.getLong(src);
-				pls.add(pId);
-				// Unsafe node ?
-				if (unsafeNodes.contains(trg)) {
-					arcInsc = unsafeArcsMap.getLong(arc);
-					if (arcInsc != -1) {
-						arcVals = tr2InUnsafeArcsMap.get(trg);
-						if (arcVals == null) {
-							arcVals = new LongBigArrayBigList();
-							tr2InUnsafeArcsMap.put(trg, arcVals);
-						}
-						arcVals.add(arcInsc);
-					}
-				}
-				// looking for inscription
-				if (vn.toElement(VTDNavHuge.FIRST_CHILD)) {
-					while (!(foundInsc = vn.matchElement(NUPNConstants.INSCRIPTION))) {
-						if (!vn.toElement(VTDNavHuge.NEXT_SIBLING)) {
-							break;
-						}
-					}
-					if (foundInsc) {
-						vn.toElement(VTDNavHuge.FIRST_CHILD);
-						while (!vn.matchElement(NUPNConstants.TEXT)) {
-							vn.toElement(VTDNavHuge.NEXT_SIBLING);
-						}
-						arcInsc = Long.parseLong(vn.toString(vn.getText()).trim());
-						// map the transition to all input arcs
-						mapInputArcToTransition(trg, arcInsc);
-						vn.toElement(VTDNavHuge.PARENT);
-					} else {
-						mapInputArcToTransition(trg, 1L);
+				pId = placeNupnIds[src];
+				tr2InPlaces.add(tId, pId);
+				// Unsafe arc ?
+				if (arcInsc > 1L) {
+					arcVals = tr2InUnsafeArcsMap.get(trg);
+					if (arcVals == null) {
+						arcVals = new LongBigArrayBigList();
+						tr2InUnsafeArcsMap.put(trg, arcVals);
 					}
-					vn.toElement(VTDNavHuge.PARENT);
-				} else {
-					mapInputArcToTransition(trg, 1L);
+					arcVals.add(arcInsc);
 				}
-
+				// map the transition to all input arcs
+				mapInputArcToTransition(trg, arcInsc);
 			} else {// transition is the source
-				pls = tr2OutPlacesMap.get(tId);
-				if (pls == null) {
-					pls = new LongBigArrayBigList();
-					tr2OutPlacesMap.put(tId, pls);
-				}
-				pId = placesId2NupnMap.getLong(trg);
-				pls.add(pId);
-				if (unsafeNodes.contains(src)) {
-					arcInsc = unsafeArcsMap.getLong(arc);
-					if (arcInsc != -1) {
-						arcVals = tr2OutUnsafeArcsMap.get(src);
-						if (arcVals == null) {
-							arcVals = new LongBigArrayBigList();
-							tr2OutUnsafeArcsMap.put(src, arcVals);
-						}
-						arcVals.add(arcInsc);
-					}
-				}
-				// looking for inscription
-				if (vn.toElement(VTDNavHuge.FIRST_CHILD)) {
-					while (!(foundInsc = vn.matchElement(NUPNConstants.INSCRIPTION))) {
-						if (!vn.toElement(VTDNavHuge.NEXT_SIBLING)) {
-							break;
-						}
+				pId = placeNupnIds[trg];
+				tr2OutPlaces.add(tId, pId);
+				if (arcInsc > 1L) {
+					arcVals = tr2OutUnsafeArcsMap.get(src);
+					if (arcVals == null) {
+						arcVals = new LongBigArrayBigList();
+						tr2OutUnsafeArcsMap.put(src, arcVals);
 					}
-					if (foundInsc) {
-						vn.toElement(VTDNavHuge.FIRST_CHILD);
-						while (!vn.matchElement(NUPNConstants.TEXT)) {
-							vn.toElement(VTDNavHuge.NEXT_SIBLING);
-						}
-						arcInsc = Long.parseLong(vn.toString(vn.getText()).trim());
-						// map the transition to all output arcs
-						mapOutputArcToTransition(src, arcInsc);
-						vn.toElement(VTDNavHuge.PARENT);
-					} else {
-						mapOutputArcToTransition(src, 1L);
-					}
-					vn.toElement(VTDNavHuge.PARENT);
-				} else {
-					mapOutputArcToTransition(src, 1L);
+					arcVals.add(arcInsc);
 				}
+				// map the transition to all output arcs
+				mapOutputArcToTransition(src, arcInsc);
 			}
-			vn.pop();
 		}
-		ap.resetXPath();
-		vn.toElement(VTDNavHuge.ROOT);
+		nbTransitions = count - transitionIDGen;
+		tr2InPlaces.compact(nbTransitions);
+		tr2OutPlaces.compact(nbTransitions);
+	}
+
+	/**
+	 * Logs the difference between the output and input valuations of a safe
+	 * transition, in debug mode only, so that its id is not materialized
+	 * otherwise.
+	 */
+	private void debugDiff(NodeIdDictionary nodeIds, int node, long diff) {
+		if (MainPNML2NUPN.isDebug()) {
+			String s = nodeIds.toString(node);
+			PNML2NUPNUtils.debug("Diff for transition {}: outVal({}) - inVal({}) = {}", logger, s, s, s, diff);
+		}
 	}
 
 	/**
 	 * Builds unsafe arcs pragma
 	 * 
-	 * @param nupnQueue
-	 * @throws InterruptedException
+	 * @param nupnOut
+	 * @param nodeIds
+	 *            the PNML ids of the transitions, for the messages
+	 * @throws IOException
 	 */
-	private void buildUnsafeArcsPragma(BlockingQueue<String> nupnQueue) throws InterruptedException {
+	private void buildUnsafeArcsPragma(NUPNEmitter nupnOut, NodeIdDictionary nodeIds) throws IOException {
 		LongBigArrayBigList arcVals = null;
 		LongArrayList minValIn = new LongArrayList(2);
 		LongArrayList minValOut = new LongArrayList(2);
@@ -625,8 +900,10 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 		nbUnsafeTrans = 0L;
 		if (unsafeTrans) {
 			StringBuilder warnMsg = new StringBuilder();
-			for (String s : tr2InUnsafeArcsMap.keySet()) {
-				arcVals = tr2InUnsafeArcsMap.get(s);
+			for (IntIterator it = tr2InUnsafeArcsMap.keySet().iterator(); it.hasNext();) {
+				int node = it.nextInt();
+				String s = nodeIds.toString(node);
+				arcVals = tr2InUnsafeArcsMap.get(node);
 				inValT = 0L;
 				outValT = 0L;
 				warnMsg.append("Transition ").append(s).append(" is unsafe because it has ").append(arcVals.size64())
@@ -641,7 +918,7 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 					inValT += v;
 				}
 				// they could also have incoming arcs with valuation = 1...
-				arcVals = tr2InAllArcsMap.get(s);
+				arcVals = tr2InAllArcsMap.get(node);
 				if (arcVals != null) {
 					long arcValsSafe = arcVals.longStream().filter(v -> v == 1L).map(x -> x).reduce(0L, (a, b) -> a + b);
 					if (arcValsSafe > 0L) {
@@ -651,10 +928,10 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 							warnMsg.append(NUPNConstants.WS).append(v);
 						});
 					}
-					tr2InAllArcsMap.remove(s);
+					tr2InAllArcsMap.remove(node);
 				}
 
-				arcVals = tr2OutUnsafeArcsMap.get(s);
+				arcVals = tr2OutUnsafeArcsMap.get(node);
 				if (arcVals != null) {
 					nbTransInOut++;
 					warnMsg.append(", ").append(arcVals.size64())
@@ -668,15 +945,15 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 						 */
 						outValT += v;
 					}
-					tr2OutUnsafeArcsMap.remove(s);
-					// tr2InAllArcsMap.remove(s);
-					// tr2OutAllArcsMap.remove(s);
+					tr2OutUnsafeArcsMap.remove(node);
+					// tr2InAllArcsMap.remove(node);
+					// tr2OutAllArcsMap.remove(node);
 				} else {
 					nbTransIn++;
 				}
 
 				// they could also have outgoing arcs with valuation = 1...
-				arcVals = tr2OutAllArcsMap.get(s);
+				arcVals = tr2OutAllArcsMap.get(node);
 				if (arcVals != null) {
 					long arcValsSafe = arcVals.longStream().filter(v -> v == 1L).map(x -> x).reduce(0L, (a, b) -> a + b);
 					if (arcValsSafe > 0L) {
@@ -686,7 +963,7 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 							warnMsg.append(NUPNConstants.WS).append(v);
 						});
 					}
-					tr2OutAllArcsMap.remove(s);
+					tr2OutAllArcsMap.remove(node);
 				}
 
 				nbUnsafeTrans++;
@@ -709,8 +986,10 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 
 			tr2InUnsafeArcsMap.clear();
 
-			for (String s : tr2OutUnsafeArcsMap.keySet()) {
-				arcVals = tr2OutUnsafeArcsMap.get(s);
+			for (IntIterator it = tr2OutUnsafeArcsMap.keySet().iterator(); it.hasNext();) {
+				int node = it.nextInt();
+				String s = nodeIds.toString(node);
+				arcVals = tr2OutUnsafeArcsMap.get(node);
 				inValT = 0L;
 				outValT = 0L;
 				warnMsg.append("Transition ").append(s).append(" is unsafe because it has ").append(arcVals.size64())
@@ -723,7 +1002,7 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 					outValT += v;
 				}
 				// they could also have outgoing arcs with valuation = 1...
-				arcVals = tr2OutAllArcsMap.get(s);
+				arcVals = tr2OutAllArcsMap.get(node);
 				if (arcVals != null) {
 					long arcValsSafe = arcVals.longStream().filter(v -> v == 1).map(x -> x).reduce(0L, (a, b) -> a + b);
 					if (arcValsSafe > 0L) {
@@ -733,10 +1012,10 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 							warnMsg.append(NUPNConstants.WS).append(v);
 						});
 					}
-					tr2OutAllArcsMap.remove(s);
+					tr2OutAllArcsMap.remove(node);
 				}
 				// they could also have incoming arcs with valuation = 1...
-				arcVals = tr2InAllArcsMap.get(s);
+				arcVals = tr2InAllArcsMap.get(node);
 				if (arcVals != null) {
 					warnMsg.append(", and ").append(arcVals.size64())
 							.append(" safe incoming arc(s) with respective valuation(s):");
@@ -747,7 +1026,7 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 							warnMsg.append(NUPNConstants.WS).append(v);
 						});
 					}
-					tr2InAllArcsMap.remove(s);
+					tr2InAllArcsMap.remove(node);
 				}
 				nbUnsafeTrans++;
 
@@ -770,28 +1049,30 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 
 			// process the rest of the transitions (safe ones) to compute min-diff and
 			// max-diff
-			for (String s : tr2InAllArcsMap.keySet()) {
-				arcVals = tr2InAllArcsMap.get(s);
+			for (IntIterator it = tr2InAllArcsMap.keySet().iterator(); it.hasNext();) {
+				int node = it.nextInt();
+				arcVals = tr2InAllArcsMap.get(node);
 				inValT = 0L;
 				outValT = 0L;
 				for (long v : arcVals) {
 					inValT += v;
 				}
-				arcVals = tr2OutAllArcsMap.get(s);
+				arcVals = tr2OutAllArcsMap.get(node);
 				if (arcVals != null) {
 					for (long v : arcVals) {
 						outValT += v;
 					}
-					tr2OutAllArcsMap.remove(s);
+					tr2OutAllArcsMap.remove(node);
 				}
 				diff = outValT - inValT;
 				PNML2NUPNUtils.setMin(diff, minAllDiff);
 				PNML2NUPNUtils.setMax(diff, maxAllDiff);
-				PNML2NUPNUtils.debug("Diff for transition {}: outVal({}) - inVal({}) = {}", logger, s, s, s, diff);
+				debugDiff(nodeIds, node, diff);
 			}
 
-			for (String s : tr2OutAllArcsMap.keySet()) {
-				arcVals = tr2OutAllArcsMap.get(s);
+			for (IntIterator it = tr2OutAllArcsMap.keySet().iterator(); it.hasNext();) {
+				int node = it.nextInt();
+				arcVals = tr2OutAllArcsMap.get(node);
 				inValT = 0L;
 				outValT = 0L;
 				for (long v : arcVals) {
@@ -800,163 +1081,116 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 				diff = outValT - inValT;
 				PNML2NUPNUtils.setMin(diff, minAllDiff);
 				PNML2NUPNUtils.setMax(diff, maxAllDiff);
-				PNML2NUPNUtils.debug("Diff for transition {}: outVal({}) - inVal({}) = {}", logger, s, s, s, diff);
+				debugDiff(nodeIds, node, diff);
 			}
 
 			// Write pragma
-			StringBuffer multArcsPrama = new StringBuffer();
-			multArcsPrama.append(MainPNML2NUPN.PRAGMA_MULTIPLE_ARCS).append(NUPNConstants.HK + nbTransIn)
-					.append(NUPNConstants.WS).append(NUPNConstants.HK + nbTransOut).append(NUPNConstants.WS)
-					.append(NUPNConstants.HK + nbTransInOut);
+			nupnOut.append(MainPNML2NUPN.PRAGMA_MULTIPLE_ARCS).append(NUPNConstants.HK).append(nbTransIn)
+					.append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbTransOut).append(NUPNConstants.WS)
+					.append(NUPNConstants.HK).append(nbTransInOut);
 
 			if (nbTransIn == 0L && nbTransInOut == 0L) {
-				multArcsPrama.append(NUPNConstants.WS).append(NUPNConstants.ONE).append(NUPNConstants.DOTS)
+				nupnOut.append(NUPNConstants.WS).append(NUPNConstants.ONE).append(NUPNConstants.DOTS)
 						.append(NUPNConstants.ZERO);
 			} else {
-				multArcsPrama.append(NUPNConstants.WS).append(minValIn.getLong(0)).append(NUPNConstants.DOTS)
+				nupnOut.append(NUPNConstants.WS).append(minValIn.getLong(0)).append(NUPNConstants.DOTS)
 						.append(maxValIn.getLong(0));
 			}
 
 			if (nbTransOut == 0L && nbTransInOut == 0L) {
-				multArcsPrama.append(NUPNConstants.WS).append(NUPNConstants.ONE).append(NUPNConstants.DOTS)
+				nupnOut.append(NUPNConstants.WS).append(NUPNConstants.ONE).append(NUPNConstants.DOTS)
 						.append(NUPNConstants.ZERO);
 			} else {
-				multArcsPrama.append(NUPNConstants.WS).append(minValOut.getLong(0)).append(NUPNConstants.DOTS)
+				nupnOut.append(NUPNConstants.WS).append(minValOut.getLong(0)).append(NUPNConstants.DOTS)
 						.append(maxValOut.getLong(0));
 			}
-			// multArcsPrama.append(NUPNConstants.WS).append(minDiff).append(NUPNConstants.DOTS).append(maxDiff);
-			multArcsPrama.append(NUPNConstants.WS).append(minAllDiff.getLong(0)).append(NUPNConstants.DOTS)
+			// nupnOut.append(NUPNConstants.WS).append(minDiff).append(NUPNConstants.DOTS).append(maxDiff);
+			nupnOut.append(NUPNConstants.WS).append(minAllDiff.getLong(0)).append(NUPNConstants.DOTS)
 					.append(maxAllDiff.getLong(0));
-			multArcsPrama.append(NUPNConstants.NL);
-			nupnQueue.put(multArcsPrama.toString());
+			nupnOut.append(NUPNConstants.NL);
 
 			// Write unsafe arcs and transitions info in signature message
-			MainPNML2NUPN.appendMesgLineToSignature("There are " + nbUnsafeArcs + " unsafe arcs with inscriptions > 1");
-			MainPNML2NUPN.appendMesgLineToSignature(
+			report.addSignatureLine("There are " + nbUnsafeArcs + " unsafe arcs with inscriptions > 1");
+			report.addSignatureLine(
 					"There are " + nbUnsafeTrans + " transitions connected to the unsafe arcs");
 		}
 	}
 
-	private void exportPlacesIntoUnits(AutoPilotHuge ap, VTDNavHuge vn, BlockingQueue<String> nupnQueue,
-			BlockingQueue<String> psQueue) throws XPathParseExceptionHuge, XPathEvalExceptionHuge, NavExceptionHuge,
-			InvalidSafeNetException, InternalException, InterruptedException, InvalidNetException, IOException {
+	private void exportPlacesIntoUnits(AbstractNetExtractor extractor, NUPNEmitter nupnOut, NUPNEmitter psOut)
+			throws IOException, InvalidNetException {
 		long iDCount = placeIDGen;
 		long nbMarkedPlaces = 0L;
-		long minMarking = 0, maxMarking = 0, mkg, totalMkg = 0;
+		long mkg;
 		unsafePlaces = false;
 		nbUnsafePlaces = 0L;
 		nbUnsafeArcs = 0L;
 		String id;
-		ap.selectXPath(PNMLPaths.COUNT_MARKED_PLACES);
-		nbMarkedPlaces = (long) ap.evalXPathToNumber();
-
-		// Check initial markings > 1. No more exit point since 1.3.0
-		// (generate.unsafe property must be removed)
-		ap.resetXPath();
-		vn.toElement(VTDNavHuge.ROOT);
-		ap.selectXPath(PNMLPaths.UNSAFE_MARKED_PLACES);
-		StringBuilder unsafePlacesId = new StringBuilder();
-		while ((ap.evalXPath()) != -1) {
-			vn.push();
-			vn.toElement(VTDNavHuge.FIRST_CHILD);
-			while (!vn.matchElement(PNMLPaths.TEXT_ELEMENT)) {
-				vn.toElement(VTDNavHuge.NEXT_SIBLING);
-			}
-			mkg = Long.parseLong(vn.toString(vn.getText()).trim());
-			if (minMarking == 0 && mkg > maxMarking && mkg > minMarking) {
-				minMarking = mkg;
-				maxMarking = mkg;
-			} else if (mkg < minMarking) {
-				minMarking = mkg;
-			} else if (mkg > maxMarking) {
-				maxMarking = mkg;
-			}
-			vn.toElement(VTDNavHuge.PARENT);
-			vn.toElement(VTDNavHuge.PARENT);
-			// id = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
-			id = ExportUtils.getPNMLNodeId(vn, MainPNML2NUPN.isUsePlaceNames(), placesId2NameMap);
-			if (id != null) {
-				unsafePlacesId.append(id + NUPNConstants.COMMAWS);
-				nbUnsafePlaces++;
-			}
-			vn.pop();
-		}
+		NodeIdDictionary nodeIds = extractor.getNodeIds();
+		IntBigArrayBigList markedPlaces = extractor.getMarkedPlaces();
+		LongBigArrayBigList markedPlaceTokens = extractor.getMarkedPlaceTokens();
+		nbMarkedPlaces = markedPlaces.size64();
 
 		// Check inscriptions > 1
-		ap.resetXPath();
-		vn.toElement(VTDNavHuge.ROOT);
-		ap.selectXPath(PNMLPaths.UNSAFE_ARCS);
-		long val;
-		String src, trg;
-		while ((ap.evalXPath()) != -1) {
-			vn.push();
-			vn.toElement(VTDNavHuge.FIRST_CHILD);
-			while (!vn.matchElement(PNMLPaths.TEXT_ELEMENT)) {
-				vn.toElement(VTDNavHuge.NEXT_SIBLING);
-			}
-			val = Long.parseLong(vn.toString(vn.getText()).trim());
-			vn.toElement(VTDNavHuge.PARENT);
-			vn.toElement(VTDNavHuge.PARENT);
-			id = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
-			if (id != null) {
-				src = vn.toString(vn.getAttrVal(PNMLPaths.SRC_ATTR));
-				unsafeNodes.add(src);
-				trg = vn.toString(vn.getAttrVal(PNMLPaths.TRG_ATTR));
-				unsafeNodes.add(trg);
-				logger.warn("Unsafe arc: {}", src + NUPNConstants.WS + id + NUPNConstants.WS + trg + NUPNConstants.WS
-						+ NUPNConstants.HK + val);
-				unsafeArcsMap.put(id, val);
-				nbUnsafeArcs++;
-			}
-			vn.pop();
+		ObjectBigArrayBigList<String> unsafeArcIds = extractor.getUnsafeArcIds();
+		LongBigArrayBigList unsafeArcIndexes = extractor.getUnsafeArcIndexes();
+		long arc;
+		for (long i = 0L; i < unsafeArcIds.size64(); i++) {
+			arc = unsafeArcIndexes.getLong(i);
+			logger.warn("Unsafe arc: {}",
+					nodeIds.toString(extractor.getArcSources().getInt(arc)) + NUPNConstants.WS + unsafeArcIds.get(i)
+							+ NUPNConstants.WS + nodeIds.toString(extractor.getArcTargets().getInt(arc))
+							+ NUPNConstants.WS + NUPNConstants.HK + extractor.getArcInscriptions().getLong(arc));
+			nbUnsafeArcs++;
 		}
 		if (nbUnsafeArcs > 0) {
 			unsafeTrans = true;
 			logger.warn("There are {} unsafe arcs in this net.", nbUnsafeArcs);
 		}
 
-		ap.resetXPath();
-		vn.toElement(VTDNavHuge.ROOT);
-
-		// Parse all the places, to have ordered ids according to order of
-		// appearance in the PNML file.
+		// Number all the places, to have ordered ids according to order of
+		// appearance in the PNML file. A duplicate PNML id leaves its first NUPN
+		// id unused.
 		long pId;
-		ap.selectXPath(PNMLPaths.PLACES_PATH);
-		while ((ap.evalXPath()) != -1) {
-			vn.push();
-			id = ExportUtils.getPNMLNodeId(vn, MainPNML2NUPN.isUsePlaceNames(), placesId2NameMap);
+		int place;
+		IntBigArrayBigList placeNodes = extractor.getPlaces();
+		BitSet numbered = new BitSet(NetSizes.capacity(placeNodes.size64()));
+		placeNupnIds = new long[nodeIds.size()];
+		Arrays.fill(placeNupnIds, -1L);
+		for (long i = 0L; i < placeNodes.size64(); i++) {
+			place = placeNodes.getInt(i);
 			pId = iDCount++;
-			placesId2NupnMap.put(id, pId);
-			vn.pop();
+			numbered.set((int) (pId - placeIDGen));
+			if (placeNupnIds[place] != -1L) {
+				numbered.clear((int) (placeNupnIds[place] - placeIDGen));
+			}
+			placeNupnIds[place] = pId;
 		}
 
-		// select initial places
-		ap.resetXPath();
-		vn.toElement(VTDNavHuge.ROOT);
-		ap.selectXPath(PNMLPaths.MARKED_PLACES);
-		List<Long> initPlaces = new ArrayList<>();
+		// select initial places. Check initial markings > 1. No more exit point
+		// since 1.3.0 (generate.unsafe property must be removed)
+		InitialMarking marking = new InitialMarking(placeIDGen, NetSizes.capacity(nbMarkedPlaces),
+				NetSizes.capacity(placeNodes.size64()));
 		StringBuilder initPlacesId = new StringBuilder();
-		while ((ap.evalXPath()) != -1) {
-			vn.push();
-			vn.toElement(VTDNavHuge.FIRST_CHILD);
-			while (!vn.matchElement(NUPNConstants.TEXT)) {
-				vn.toElement(VTDNavHuge.NEXT_SIBLING);
-			}
-			totalMkg += Long.parseLong(vn.toString(vn.getText()).trim());
-			vn.toElement(VTDNavHuge.PARENT);
-			vn.toElement(VTDNavHuge.PARENT);
-			id = ExportUtils.getPNMLNodeId(vn, MainPNML2NUPN.isUsePlaceNames(), placesId2NameMap);
-			pId = placesId2NupnMap.getLong(id);
-			initPlaces.add(pId);
+		StringBuilder unsafePlacesId = new StringBuilder();
+		for (long i = 0L; i < nbMarkedPlaces; i++) {
+			mkg = markedPlaceTokens.getLong(i);
+			place = markedPlaces.getInt(i);
+			id = nodeIds.toString(place);
+			marking.add(placeNupnIds[place], mkg);
 			initPlacesId.append(id + NUPNConstants.COMMAWS);
-			vn.pop();
+			if (mkg > 1L) {
+				unsafePlacesId.append(id + NUPNConstants.COMMAWS);
+			}
 		}
+		nbUnsafePlaces = marking.getNbUnsafe();
+		long totalMkg = marking.getTotalTokens();
+		long minMarking = marking.getMinUnsafe(), maxMarking = marking.getMaxUnsafe();
 
 		if (nbUnsafePlaces > 0) {
 			unsafePlaces = true;
-			nupnQueue.put(MainPNML2NUPN.PRAGMA_MULTIPLE_INIT_TOKEN + NUPNConstants.HK + totalMkg + NUPNConstants.WS
-					+ NUPNConstants.HK + nbUnsafePlaces + NUPNConstants.WS + minMarking + NUPNConstants.DOTS
-					+ maxMarking + NUPNConstants.NL);
+			nupnOut.append(MainPNML2NUPN.PRAGMA_MULTIPLE_INIT_TOKEN).append(NUPNConstants.HK).append(totalMkg)
+					.append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbUnsafePlaces).append(NUPNConstants.WS)
+					.append(minMarking).append(NUPNConstants.DOTS).append(maxMarking).append(NUPNConstants.NL);
 			logger.warn("There are {} unsafe initial places in this net.", nbUnsafePlaces);
 			unsafePlacesId.delete(unsafePlacesId.length() - 2, unsafePlacesId.length());
 			logger.warn("Unsafe initial places: {}", unsafePlacesId.toString());
@@ -987,41 +1221,38 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 		}
 
 		if (unsafePlaces) {
-			MainPNML2NUPN
-					.appendMesgLineToSignature("decreased to one the marking of " + nbUnsafePlaces + " initial places");
+			report.addSignatureLine("decreased to one the marking of " + nbUnsafePlaces + " initial places");
 		}
 
 		// build transitions, to be able to write unsafe arcs pragma
-		ap.resetXPath();
-		vn.toElement(VTDNavHuge.ROOT);
-		buildTransitions(ap, vn);
-		buildUnsafeArcsPragma(nupnQueue);
+		report.beginPhase(ConversionReport.PHASE_BUILD_TRANSITIONS);
+		buildTransitions(extractor);
+		report.beginPhase(ConversionReport.PHASE_UNSAFE_ARCS_PRAGMA);
+		buildUnsafeArcsPragma(nupnOut, extractor.getNodeIds());
+		report.beginPhase(ConversionReport.PHASE_UNITS);
 
 		// count all places
-		ap.selectXPath(PNMLPaths.COUNT_PLACES_PATH);
-		long nbPl = (long) ap.evalXPathToNumber();
-		final StringBuilder nupnsb = new StringBuilder();
+		long nbPl = placeNodes.size64();
 		// Write Number of places
-		nupnsb.append(NUPNConstants.PLACES).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbPl)
+		nupnOut.append(NUPNConstants.PLACES).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbPl)
 				.append(NUPNConstants.WS)
-				.append(MainPNML2NUPN.getFirstPlaceNumber()).append(NUPNConstants.DOTS).append(nbPl - 1L + MainPNML2NUPN.getFirstPlaceNumber())
+				.append(options.getFirstPlaceNumber()).append(NUPNConstants.DOTS).append(nbPl - 1L + options.getFirstPlaceNumber())
 				.append(NUPNConstants.NL);
 		// Output initial places
+		LongList initPlaces = marking.getPlaces();
 		if (initPlaces.size() != 1) {
-			nupnsb.append(NUPNConstants.INIT_PLACES).append(NUPNConstants.WS).append(NUPNConstants.HK)
+			nupnOut.append(NUPNConstants.INIT_PLACES).append(NUPNConstants.WS).append(NUPNConstants.HK)
 					.append(initPlaces.size());
-			for (Long l : initPlaces) {
-				nupnsb.append(NUPNConstants.WS).append(l);
+			for (int i = 0; i < initPlaces.size(); i++) {
+				nupnOut.append(NUPNConstants.WS).append(initPlaces.getLong(i));
 			}
 		} else {
-			nupnsb.append(NUPNConstants.INIT_PLACE).append(NUPNConstants.WS).append(initPlaces.get(0));
+			nupnOut.append(NUPNConstants.INIT_PLACE).append(NUPNConstants.WS).append(initPlaces.getLong(0));
 		}
-		nupnsb.append(NUPNConstants.NL);
+		nupnOut.append(NUPNConstants.NL);
 
-		// to write PNML places id mapping to NUPN id
-		final StringBuilder psmapping = new StringBuilder();
 		// If there is nupn toolspecific, use that info to build units
-		if (hasNUPNToolspecific && MainPNML2NUPN.isPreserveNupnMix()) {
+		if (hasNUPNToolspecific && options.isPreserveNupnMix()) {
 			logger.info("NUPN tool specific section detected in the PNML.");
 			logger.info(
 					"Mixed generation strategy requested. Will use the NUPN structure provided in that section to build units.");
@@ -1031,70 +1262,55 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 			Object2LongOpenHashMap<String> unitsIdMap = new Object2LongOpenHashMap<>();
 			unitsIdMap.defaultReturnValue(-1L);
 			long unitIDGen = 0L;
-			ap.resetXPath();
-			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.NUPN_STRUCTURE);
 
-			while ((ap.evalXPath()) != -1) {
-				vn.push();
+			for (String[] structure : extractor.getStructures()) {
 				// write number of units
-				int nbUn = Integer.valueOf(vn.toString(vn.getAttrVal(PNMLPaths.UNITS_ATTR))).intValue();
-				nupnsb.append(NUPNConstants.UNITS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbUn)
+				int nbUn = Integer.valueOf(structure[0]).intValue();
+				nupnOut.append(NUPNConstants.UNITS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbUn)
 						.append(NUPNConstants.WS).append(NUPNConstants.ZERO).append(NUPNConstants.DOTS).append(nbUn - 1)
 						.append(NUPNConstants.NL);
 				// write root unit
-				rootUn = vn.toString(vn.getAttrVal(PNMLPaths.ROOT_ATTR));
+				rootUn = structure[1];
 				long rootUnNb = unitIDGen++;
 				unitsIdMap.put(rootUn, rootUnNb);
-				nupnsb.append(NUPNConstants.ROOT_UNIT).append(NUPNConstants.WS).append(rootUnNb)
+				nupnOut.append(NUPNConstants.ROOT_UNIT).append(NUPNConstants.WS).append(rootUnNb)
 						.append(NUPNConstants.NL);
-				nupnQueue.put(nupnsb.toString());
-				nupnsb.delete(0, nupnsb.length());
-				vn.pop();
 			}
 			// write each unit
-			ap.resetXPath();
-			vn.toElement(VTDNavHuge.ROOT);
-			ap.selectXPath(PNMLPaths.NUPN_UNIT);
-			String places = "", subunits = "";
-			String[] elemId;
+			String places, subunits, s;
 			String unitSId;
 			long unitLId;
 			long plId;
 			LongList placesIntId = new LongArrayList();
 			LongSortedSet faultyIds = new LongAVLTreeSet();
 			boolean doubleCheck;
-			while ((ap.evalXPath()) != -1) {
-				vn.push();
-				unitSId = vn.toString(vn.getAttrVal(PNMLPaths.ID_ATTR));
+			for (String[] unit : extractor.getUnits()) {
+				unitSId = unit[0];
 				unitLId = unitsIdMap.getLong(unitSId);
 				if (unitLId == -1L) {
 					unitLId = unitIDGen++;
 					unitsIdMap.put(unitSId, unitLId);
 				}
-				nupnsb.append(NUPNConstants.U).append(unitLId);
+				nupnOut.append(NUPNConstants.U).append(unitLId);
 				// places
-				vn.toElement(VTDNavHuge.FIRST_CHILD);
-				if (vn.getText() != -1) {
-					places = vn.toString(vn.getText()).trim();
-				}
+				places = unit[1];
 				if (!places.isEmpty()) {
-					elemId = places.split(NUPNConstants.WS);
 					String mappingId;
-					for (String s : elemId) {
-						plId = placesId2NupnMap.getLong(s);
+					// walk the places of the unit, without splitting a line of millions of them
+					for (int start = 0, end; start < places.length(); start = end + 1) {
+						end = ExportUtils.elementEnd(places, start);
+						s = places.substring(start, end);
+						place = nodeIds.find(s);
+						plId = place == -1 ? -1L : placeNupnIds[place];
 						if (plId != -1L) {
 							placesIntId.add(plId);
-							mappingId = ExportUtils.getPNMLNodeIdOrName(s, MainPNML2NUPN.isUsePlaceNames(),
-									placesId2NameMap);
-							psmapping.append(NUPNConstants.P_PREFX).append(plId).append(NUPNConstants.WS)
+							mappingId = extractor.getPlaceLabel(place);
+							psOut.append(NUPNConstants.P_PREFX).append(plId).append(NUPNConstants.WS)
 									.append(mappingId).append(NUPNConstants.NL);
-							psQueue.put(psmapping.toString());
 							labelLength = ExportUtils.updateLabelLength(mappingId, labelLength);
-							psmapping.delete(0, psmapping.length());
 						}
 					}
-					nupnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(placesIntId.size());
+					nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK).append(placesIntId.size());
 					if (placesIntId.size() > 1) {
 						// calculate arithmetic progression of the nupn Ids to check if they are
 						// incremental in the unit
@@ -1115,49 +1331,45 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 									"List of consecutive places IDs not being in arithmetic progression in unit {} ({}): {}",
 									unitSId, unitLId, faultyIds.toString());
 							logger.error("Consequently, the NUPN output for units will not be syntax-compliant.");
-							placesIntId.longStream().forEach(i -> nupnsb.append(NUPNConstants.WS).append(i));
+							for (int i = 0; i < placesIntId.size(); i++) {
+								nupnOut.append(NUPNConstants.WS).append(placesIntId.getLong(i));
+							}
 							faultyIds.clear();
 						} else {
-							nupnsb.append(NUPNConstants.WS).append(placesIntId.getLong(0)).append(NUPNConstants.DOTS)
+							nupnOut.append(NUPNConstants.WS).append(placesIntId.getLong(0)).append(NUPNConstants.DOTS)
 									.append(placesIntId.getLong(placesIntId.size() - 1));
 						}
 					} else {
-						nupnsb.append(NUPNConstants.WS).append(placesIntId.getLong(0)).append(NUPNConstants.DOTS)
+						nupnOut.append(NUPNConstants.WS).append(placesIntId.getLong(0)).append(NUPNConstants.DOTS)
 								.append(placesIntId.getLong(0));
 					}
 				} else {
-					nupnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO)
+					nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO)
 							.append(NUPNConstants.WS).append(NUPNConstants.ONE).append(NUPNConstants.DOTS)
 							.append(NUPNConstants.ZERO);
 				}
 				// subunits
-				vn.toElement(VTDNavHuge.NEXT_SIBLING);
-				if (vn.getText() != -1) {
-					subunits = vn.toString(vn.getText()).trim();
-				}
+				subunits = unit[2];
 				if (!subunits.isEmpty()) {
-					elemId = subunits.split(NUPNConstants.WS);
-					nupnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(elemId.length);
-					for (String s : elemId) {
+					nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK)
+							.append(ExportUtils.countElements(subunits));
+					for (int start = 0, end; start < subunits.length(); start = end + 1) {
+						end = ExportUtils.elementEnd(subunits, start);
+						s = subunits.substring(start, end);
 						unitLId = unitsIdMap.getLong(s);
 						if (unitLId == -1L) {
 							unitLId = unitIDGen++;
 							unitsIdMap.put(s, unitLId);
 						}
-						nupnsb.append(NUPNConstants.WS).append(unitLId);
+						nupnOut.append(NUPNConstants.WS).append(unitLId);
 					}
 				} else {
-					nupnsb.append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO);
+					nupnOut.append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO);
 				}
-				nupnsb.append(NUPNConstants.NL);
-				nupnQueue.put(nupnsb.toString());
-				nupnsb.delete(0, nupnsb.length());
+				nupnOut.append(NUPNConstants.NL);
 				placesIntId.clear();
-				subunits = "";
-				places = "";
-				vn.toElement(VTDNavHuge.PARENT);
-				vn.pop();
 			}
+			report.setCounter(ConversionReport.COUNT_UNITS, unitIDGen);
 		} else {
 			if (hasNUPNToolspecific) {
 				logger.info("NUPN tool specific section was detected in the PNML.");
@@ -1167,67 +1379,66 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 			}
 			// Write the number of Units. Check case there is just one place.
 			if (nbPl > 1) {
-				nupnsb.append(NUPNConstants.UNITS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbPl + 1)
+				nupnOut.append(NUPNConstants.UNITS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbPl + 1)
 						.append(NUPNConstants.WS).append(NUPNConstants.ZERO).append(NUPNConstants.DOTS).append(nbPl)
 						.append(NUPNConstants.NL);
 			} else {
-				nupnsb.append(NUPNConstants.UNITS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbPl)
+				nupnOut.append(NUPNConstants.UNITS).append(NUPNConstants.WS).append(NUPNConstants.HK).append(nbPl)
 						.append(NUPNConstants.WS).append(NUPNConstants.ZERO).append(NUPNConstants.DOTS).append(nbPl - 1)
 						.append(NUPNConstants.NL);
 			}
+			report.setCounter(ConversionReport.COUNT_UNITS, nbPl > 1 ? nbPl + 1 : nbPl);
 
 			// Root unit declaration - id is N - 1. Check case there is just one
 			// place.
 			if (nbPl > 1) {
-				nupnsb.append(NUPNConstants.ROOT_UNIT).append(NUPNConstants.WS).append(nbPl).append(NUPNConstants.NL);
+				nupnOut.append(NUPNConstants.ROOT_UNIT).append(NUPNConstants.WS).append(nbPl).append(NUPNConstants.NL);
 			} else {
-				nupnsb.append(NUPNConstants.ROOT_UNIT).append(NUPNConstants.WS).append(nbPl - 1)
+				nupnOut.append(NUPNConstants.ROOT_UNIT).append(NUPNConstants.WS).append(nbPl - 1)
 						.append(NUPNConstants.NL);
 			}
-			nupnQueue.put(nupnsb.toString());
-			nupnsb.delete(0, nupnsb.length());
 
 			// One place per unit, keep track of their PNML id in ts file
 			// First the initial places
-			long count = 0L;
-			for (Long l : initPlaces) {
-				nupnsb.append(NUPNConstants.U).append(count).append(NUPNConstants.WS).append(NUPNConstants.HK)
+			long count = 0L, l;
+			for (int i = 0; i < initPlaces.size(); i++) {
+				l = initPlaces.getLong(i);
+				nupnOut.append(NUPNConstants.U).append(count).append(NUPNConstants.WS).append(NUPNConstants.HK)
 						.append(NUPNConstants.ONE).append(NUPNConstants.WS).append(l).append(NUPNConstants.DOTS)
 						.append(l).append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO)
 						.append(NUPNConstants.NL);
-				nupnQueue.put(nupnsb.toString());
 				count++;
-				nupnsb.delete(0, nupnsb.length());
 			}
 
-			// Then the rest
-			List<Long> otherPlaces = placesId2NupnMap.values().longStream().filter(v -> !initPlaces.contains(v)).sorted()
-					.collect(ArrayList::new, ArrayList::add, ArrayList::addAll);
-			for (Long nupnId : otherPlaces) {
-				nupnsb.append(NUPNConstants.U).append(count).append(NUPNConstants.WS).append(NUPNConstants.HK)
+			// Then the rest, in increasing order of their ids
+			long nupnId;
+			for (int i = numbered.nextSetBit(0); i >= 0; i = numbered.nextSetBit(i + 1)) {
+				nupnId = placeIDGen + i;
+				if (marking.isMarked(nupnId)) {
+					continue;
+				}
+				nupnOut.append(NUPNConstants.U).append(count).append(NUPNConstants.WS).append(NUPNConstants.HK)
 						.append(NUPNConstants.ONE).append(NUPNConstants.WS).append(nupnId).append(NUPNConstants.DOTS)
 						.append(nupnId).append(NUPNConstants.WS).append(NUPNConstants.HK).append(NUPNConstants.ZERO)
 						.append(NUPNConstants.NL);
-				nupnQueue.put(nupnsb.toString());
-				nupnsb.delete(0, nupnsb.length());
 				count++;
 			}
 
 			// / Root Unit N and its subunits. Check case there is just one
 			// place.
 			if (nbPl > 1) {
-				nupnsb.append(NUPNConstants.U).append(nbPl).append(NUPNConstants.WS).append(NUPNConstants.HK)
+				nupnOut.append(NUPNConstants.U).append(nbPl).append(NUPNConstants.WS).append(NUPNConstants.HK)
 						.append(NUPNConstants.ZERO).append(NUPNConstants.WS).append(NUPNConstants.ONE)
 						.append(NUPNConstants.DOTS).append(NUPNConstants.ZERO).append(NUPNConstants.WS)
 						.append(NUPNConstants.HK).append(nbPl);
 				for (count = 0L; count < nbPl; count++) {
-					nupnsb.append(NUPNConstants.WS).append(count);
+					nupnOut.append(NUPNConstants.WS).append(count);
 				}
 			} else if (nbPl == 1) {
 				// DO NOTHING, already handled above.
 				logger.warn("I encountered the case where there is just one place in the net.");
 			} else { // FIXME This case should not happen.
-				nupnsb.append(NUPNConstants.U).append(nbPl).append(NUPNConstants.WS).append(NUPNConstants.HK)
+				nupnOut.append(NUPNConstants.U).append(nbPl).append(NUPNConstants.WS).append(NUPNConstants.HK)
 						.append(NUPNConstants.ZERO).append(NUPNConstants.WS).append(NUPNConstants.ONE)
 						.append(NUPNConstants.DOTS).append(NUPNConstants.ZERO).append(NUPNConstants.WS)
 						.append(NUPNConstants.HK).append(NUPNConstants.ZERO);
@@ -1236,33 +1447,35 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 						"This violates the rules stating that root unit must have at least 2 sub-units, if it does not contain any place.");
 				throw new InvalidNetException("No place in the net! See error messages above.");
 			}
-			nupnsb.append(NUPNConstants.NL);
-			nupnQueue.put(nupnsb.toString());
-			nupnsb.delete(0, nupnsb.length());
+			nupnOut.append(NUPNConstants.NL);
 		}
-		ap.resetXPath();
-		vn.toElement(VTDNavHuge.ROOT);
 
 		// one-shot writing of place id-label mappings in 2 cases
 		// - no nupn in the pnml file
 		// - nupn in the pnml file but no mixed (or native) generation strategy enabled
-		if (!hasNUPNToolspecific || (hasNUPNToolspecific && !MainPNML2NUPN.isPreserveNupnMix())) {
-			Object2LongLinkedOpenHashMap<String> sortedMap = placesId2NupnMap.object2LongEntrySet().stream()
-					.sorted(Map.Entry.comparingByValue())
-					.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue,
-							(oldValue, newValue) -> oldValue, Object2LongLinkedOpenHashMap::new));
-			
-			sortedMap.forEach((pnmlId, nupnId) -> {
-				final String nupnLabel = ExportUtils.getPNMLNodeIdOrName(pnmlId, MainPNML2NUPN.isUsePlaceNames(),
-						placesId2NameMap);
-				try {
-					logger.trace("Outputing mapping between nupn place id {} and its label {}", nupnId, nupnLabel);
-					psQueue.put(NUPNConstants.P_PREFX + nupnId + NUPNConstants.WS + nupnLabel + NUPNConstants.NL);
-					labelLength = ExportUtils.updateLabelLength(nupnLabel, labelLength);
-				} catch (InterruptedException e) {
-					logger.error("Error while writing places id-label mappings: {}", e.getMessage(), e);
+		if (!hasNUPNToolspecific || (hasNUPNToolspecific && !options.isPreserveNupnMix())) {
+			report.beginPhase(ConversionReport.PHASE_PLACE_LABELS);
+			// places by NUPN id, a duplicate PNML id keeping its last NUPN id
+			int[] placeOfNupnId = new int[(int) nbPl];
+			Arrays.fill(placeOfNupnId, -1);
+			for (int node = 0; node < placeNupnIds.length; node++) {
+				if (placeNupnIds[node] != -1L) {
+					placeOfNupnId[(int) (placeNupnIds[node] - placeIDGen)] = node;
+				}
+			}
+			String nupnLabel;
+			long nupnId;
+			for (int i = 0; i < placeOfNupnId.length; i++) {
+				if (placeOfNupnId[i] == -1) {
+					continue;
 				}
-			});
+				nupnId = placeIDGen + i;
+				nupnLabel = extractor.getPlaceLabel(placeOfNupnId[i]);
+				logger.trace("Outputing mapping between nupn place id {} and its label {}", nupnId, nupnLabel);
+				psOut.append(NUPNConstants.P_PREFX).append(nupnId).append(NUPNConstants.WS).append(nupnLabel)
+						.append(NUPNConstants.NL);
+				labelLength = ExportUtils.updateLabelLength(nupnLabel, labelLength);
+			}
 		}
 	}
 
@@ -1276,87 +1489,47 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 	}
 
 	/**
-	 * Initializes internal data structures for transitions.
+	 * Initializes internal data structures for transitions, presized to the
+	 * transitions collected by the extractor.
 	 */
-	private void initTransitionsMaps() {
-		transitionIDGen = MainPNML2NUPN.getFirstTransitionNumber();
-		if (trId2NupnMap == null) {
-			trId2NupnMap = new Object2LongOpenHashMap<String>();
-			trId2NupnMap.defaultReturnValue(-1L);
-		}
-		if (tr2InPlacesMap == null) {
-			tr2InPlacesMap = new Long2ObjectOpenHashMap<>();
-			tr2InPlacesMap.defaultReturnValue(null);
-		}
-		if (tr2OutPlacesMap == null) {
-			tr2OutPlacesMap = new Long2ObjectOpenHashMap<>();
-			tr2OutPlacesMap.defaultReturnValue(null);
-		}
-		if (tr2InAllArcsMap == null) {
-			tr2InAllArcsMap = new Object2ObjectOpenHashMap<String, LongBigArrayBigList>();
-			tr2InAllArcsMap.defaultReturnValue(null);
-		}
-		if (tr2OutAllArcsMap == null) {
-			tr2OutAllArcsMap = new Object2ObjectOpenHashMap<String, LongBigArrayBigList>();
-			tr2OutAllArcsMap.defaultReturnValue(null);
-		}
-		if (trId2NameMap == null) {
-			trId2NameMap = new Object2ObjectOpenHashMap<String, String>();
-			trId2NameMap.defaultReturnValue("");
-		}
+	private void initTransitionsMaps(AbstractNetExtractor extractor) {
+		int nbTr = NetSizes.capacity(extractor.getTransitions().size64());
+		transitionIDGen = options.getFirstTransitionNumber();
+		tr2InPlaces = new TransitionAdjacency(transitionIDGen);
+		tr2OutPlaces = new TransitionAdjacency(transitionIDGen);
+		tr2InAllArcsMap = rehashes.newInt2ObjectMap(nbTr);
+		tr2InAllArcsMap.defaultReturnValue(null);
+		tr2OutAllArcsMap = rehashes.newInt2ObjectMap(nbTr);
+		tr2OutAllArcsMap.defaultReturnValue(null);
 	}
 
 	/**
-	 * Initializes the data structure for unsafe transitions.
+	 * Initializes the data structure for unsafe transitions, presized to the
+	 * unsafe arcs collected by the extractor.
 	 */
-	private void initUnsafeTransMaps() {
-		if (tr2InUnsafeArcsMap == null) {
-			tr2InUnsafeArcsMap = new Object2ObjectOpenHashMap<String, LongBigArrayBigList>();
-			tr2InUnsafeArcsMap.defaultReturnValue(null);
-		}
-		if (tr2OutUnsafeArcsMap == null) {
-			tr2OutUnsafeArcsMap = new Object2ObjectOpenHashMap<String, LongBigArrayBigList>();
-			tr2OutUnsafeArcsMap.defaultReturnValue(null);
-		}
-
+	private void initUnsafeTransMaps(AbstractNetExtractor extractor) {
+		int nbUnsafe = NetSizes.capacity(
+				Math.min(extractor.getUnsafeArcIds().size64(), extractor.getTransitions().size64()));
+		tr2InUnsafeArcsMap = rehashes.newInt2ObjectMap(nbUnsafe);
+		tr2InUnsafeArcsMap.defaultReturnValue(null);
+		tr2OutUnsafeArcsMap = rehashes.newInt2ObjectMap(nbUnsafe);
+		tr2OutUnsafeArcsMap.defaultReturnValue(null);
 	}
 
 	/**
 	 * Initializes internal data structures for places.
 	 */
 	private void initPlacesMap() {
-		placeIDGen = MainPNML2NUPN.getFirstPlaceNumber();
-		if (placesId2NupnMap == null) {
-			placesId2NupnMap = new Object2LongOpenHashMap<String>();
-			placesId2NupnMap.defaultReturnValue(-1L);
-		}
-		if (placesId2NameMap == null) {
-			placesId2NameMap = new Object2ObjectOpenHashMap<String, String>();
-			placesId2NameMap.defaultReturnValue("");
-		}
-	}
-
-	/**
-	 * Initializes internal data structures for arcs.
-	 */
-	private void initUnsafeArcsMap() {
-		if (unsafeArcsMap == null) {
-			unsafeArcsMap = new Object2LongOpenHashMap<>();
-			unsafeArcsMap.defaultReturnValue(-1);
-		}
-		if (unsafeNodes == null) {
-			unsafeNodes = new ObjectOpenHashSet<>();
-		}
+		placeIDGen = options.getFirstPlaceNumber();
 	}
 
 	/**
 	 * Emergency stop.
 	 * 
 	 * @param outFile
-	 * @throws InterruptedException
 	 * @throws IOException
 	 */
-	private void emergencyStop(File outFile) throws InterruptedException, IOException {
+	private void emergencyStop(File outFile) throws IOException {
 		stop(outFile);
 		logger.error("Emergency stop. Cancelled the translation and released opened resources.");
 	}
@@ -1365,33 +1538,41 @@ public final class PNML2NUPNExporterImpl implements PNML2NUPNExporter {
 	 * Stops NUPN writers and releases resources
 	 * 
 	 * @param outFile
-	 * @throws InterruptedException
 	 * @throws IOException
 	 */
-	private void stop(File outFile) throws InterruptedException, IOException {
-		PNML2NUPNUtils.cancelWriters(nupnQueue, tsQueue, psQueue);
-		PNML2NUPNUtils.cancelWriter(uaQueue);
-		PNML2NUPNUtils.closeChannels(ocbNupn, ocbTs, ocbPs);
+	private void stop(File outFile) throws IOException {
+		PNML2NUPNUtils.discardOutputs(nupnOut, uaOut);
+		PNML2NUPNUtils.closeChannels(ocbNupn);
 		PNML2NUPNUtils.closeChannel(ocbUA);
-		PNML2NUPNUtils.deleteOutputFiles(outFile, outTSFile, outPSFile);
+		PNML2NUPNUtils.deleteOutputFiles(outFile);
 		PNML2NUPNUtils.deleteOutputFile(outUAFile);
+		if (labels != null) {
+			labels.cancel();
+		}
 	}
 
 	/**
 	 * Clears all internal data structures for places and transitions.
 	 */
 	private void clearAllCollections() {
-		placesId2NupnMap.clear();
-		placesId2NameMap.clear();
-		trId2NupnMap.clear();
-		trId2NameMap.clear();
-		tr2InPlacesMap.clear();
-		tr2OutPlacesMap.clear();
-		unsafeArcsMap.clear();
+		placeNupnIds = null;
+		transitionNupnIds = null;
+		tr2InPlaces = null;
+		tr2OutPlaces = null;
 		tr2InUnsafeArcsMap.clear();
 		tr2OutUnsafeArcsMap.clear();
 		tr2InAllArcsMap.clear();
 		tr2OutAllArcsMap.clear();
-		unsafeNodes.clear();
+	}
+
+	private static final class NetWorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pnml2nupn-net-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
 	}
 }
@@ -45,21 +45,13 @@ public final class PNMLPaths {
 	
 	public static final String PLACE_NAMES_PATH =  PLACES_PATH + "/" + NAME_ELEMENT + "/" + TEXT_ELEMENT; 
 	
-	public static final String MARKED_PLACES = PLACES_PATH + "/initialMarking[text > 0]";
-	
-	public static final String UNSAFE_MARKED_PLACES = PLACES_PATH + "/initialMarking[text > 1]";
-	
-	
-	public static final String COUNT_MARKED_PLACES = "count(" + MARKED_PLACES + ")";
-	
-	public static final String PLACES_PATH_EXCEPT_MKG = PAGES_PATH + "/child::place[not(child::initialMarking)]" 
-			+ " | " + PAGES_PATH  + "/child::place[child::initialMarking[text <= 0]]";
+	public static final String INITIAL_MARKINGS = PLACES_PATH + "/initialMarking";
 	
 	public static final String TRANSITIONS_PATH = PAGES_PATH + "/transition";
 	
 	public static final String ARCS_PATH = PAGES_PATH + "/arc";
 	
-	public static final String UNSAFE_ARCS = ARCS_PATH + "/inscription[text > 1]";
+	public static final String INSCRIPTIONS = ARCS_PATH + "/inscription";
 
 	public static final String COUNT_PLACES_PATH = "count(" + PLACES_PATH + ")";
 
@@ -94,5 +86,45 @@ public final class PNMLPaths {
 	public static final String ROOT_ATTR = "root";
 	
 	public static final String SAFE_ATTR = "safe";
+	
+	public static final String PNML_ELEMENT = "pnml";
+	
+	public static final String NET_ELEMENT = "net";
+	
+	public static final String PAGE_ELEMENT = "page";
+	
+	public static final String PLACE_ELEMENT = "place";
+	
+	public static final String TRANSITION_ELEMENT = "transition";
+	
+	public static final String ARC_ELEMENT = "arc";
+	
+	public static final String INITIAL_MARKING_ELEMENT = "initialMarking";
+	
+	public static final String INSCRIPTION_ELEMENT = "inscription";
+	
+	public static final String TOOLSPECIFIC_ELEMENT = "toolspecific";
+	
+	public static final String SIZE_ELEMENT = "size";
+	
+	public static final String STRUCTURE_ELEMENT = "structure";
+	
+	public static final String UNIT_ELEMENT = "unit";
+	
+	public static final String NUPN_TOOL = "nupn";
+
+	/**
+	 * Restricts a query to one net of the document.
+	 * 
+	 * @param path
+	 *            a query over the nets of the document
+	 * @param net
+	 *            position of the net among the nets of the document, from 1, or
+	 *            0 for all the nets
+	 * @return the query over that net only
+	 */
+	public static String ofNet(String path, int net) {
+		return net == 0 ? path : path.replace(NETS_PATH, NETS_PATH + "[" + net + "]");
+	}
 
 }
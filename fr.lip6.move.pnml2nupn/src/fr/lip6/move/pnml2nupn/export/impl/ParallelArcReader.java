@@ -0,0 +1,268 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ximpleware.extended.NavExceptionHuge;
+import com.ximpleware.extended.VTDNavHuge;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Object2LongMap;
+
+/**
+ * Resolves the arcs of a net on several threads, over its VTD index.
+ * <p>
+ * The token indexes of the arc elements are split into contiguous ranges. Each
+ * range is read by its own worker with an independent clone of the navigator:
+ * the <code>source</code> and <code>target</code> attributes are read from the
+ * tokens following the element, and looked up in the transition and place ids
+ * maps, which are only read at that time. The resolved arcs are then handed to
+ * an {@link ArcHandler} on the calling thread, in document order, so that the
+ * result is the same as a sequential walk.
+ * </p>
+ * <p>
+ * Arcs connected to no known transition are not resolved by the workers: they
+ * are handed back with their token index, so that the caller deals with them
+ * in order (e.g. by adding the missing transition, which a later arc may
+ * refer to).
+ * </p>
+ */
+public final class ParallelArcReader {
+
+	/**
+	 * Below this number of arcs per worker, fewer workers are used.
+	 */
+	public static final int MIN_ARCS_PER_WORKER = 1 << 15;
+
+	private static final byte UNRESOLVED = 0;
+	private static final byte INPUT = 1;
+	private static final byte OUTPUT = 2;
+
+	private final VTDNavHuge vn;
+	private final Object2LongMap<String> transitions;
+	private final Object2LongMap<String> places;
+	private final int workers;
+
+	/**
+	 * Handles the arcs, in document order.
+	 */
+	public interface ArcHandler {
+		/**
+		 * @param tId
+		 *            NUPN id of the transition
+		 * @param pId
+		 *            NUPN id of the place, -1 if unknown
+		 * @param input
+		 *            true if the place is an input of the transition
+		 */
+		void resolved(long tId, long pId, boolean input);
+
+		/**
+		 * @param arcToken
+		 *            token index of an arc element, whose source and target are
+		 *            not known transitions
+		 * @throws NavExceptionHuge
+		 * @throws IOException
+		 */
+		void unresolved(int arcToken) throws NavExceptionHuge, IOException;
+	}
+
+	/**
+	 * @param vn
+	 *            the navigator, cloned for each worker
+	 * @param transitions
+	 *            NUPN ids of the transitions, by PNML id, with -1 as default
+	 *            return value
+	 * @param places
+	 *            NUPN ids of the places, by PNML id, with -1 as default return
+	 *            value
+	 * @param workers
+	 *            maximum number of workers, 0 for the number of available
+	 *            processors
+	 */
+	public ParallelArcReader(VTDNavHuge vn, Object2LongMap<String> transitions, Object2LongMap<String> places,
+			int workers) {
+		this.vn = vn;
+		this.transitions = transitions;
+		this.places = places;
+		this.workers = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @param nbArcs
+	 *            number of arcs to read
+	 * @return the number of workers that read these arcs
+	 */
+	public int workersFor(int nbArcs) {
+		return Math.max(1, Math.min(workers, nbArcs / MIN_ARCS_PER_WORKER));
+	}
+
+	/**
+	 * Reads the arcs, then hands them to the handler in the order of their
+	 * token indexes.
+	 * 
+	 * @param arcTokens
+	 *            token indexes of the arc elements, in document order
+	 * @param handler
+	 * @throws NavExceptionHuge
+	 * @throws IOException
+	 *             if the handler fails
+	 * @throws InterruptedException
+	 */
+	public void read(IntList arcTokens, ArcHandler handler)
+			throws NavExceptionHuge, IOException, InterruptedException {
+		final int nbArcs = arcTokens.size();
+		final int[] tokens = arcTokens.toIntArray();
+		final byte[] kinds = new byte[nbArcs];
+		final long[] tIds = new long[nbArcs];
+		final long[] pIds = new long[nbArcs];
+		final int nbWorkers = workersFor(nbArcs);
+
+		if (nbWorkers == 1) {
+			resolve(vn, tokens, 0, nbArcs, kinds, tIds, pIds);
+		} else {
+			final int step = (nbArcs + nbWorkers - 1) / nbWorkers;
+			List<Callable<Void>> tasks = new ArrayList<>(nbWorkers - 1);
+			for (int from = step; from < nbArcs; from += step) {
+				final int start = from;
+				final int end = Math.min(nbArcs, from + step);
+				final VTDNavHuge clone = vn.cloneNav();
+				tasks.add(() -> {
+					resolve(clone, tokens, start, end, kinds, tIds, pIds);
+					return null;
+				});
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(tasks.size(), new ReaderFactory());
+			try {
+				List<Future<Void>> futures = new ArrayList<>(tasks.size());
+				for (Callable<Void> task : tasks) {
+					futures.add(pool.submit(task));
+				}
+				// the first range is read by the calling thread
+				resolve(vn, tokens, 0, Math.min(nbArcs, step), kinds, tIds, pIds);
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof NavExceptionHuge) {
+					throw (NavExceptionHuge) cause;
+				}
+				throw new IllegalStateException(cause);
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+
+		for (int i = 0; i < nbArcs; i++) {
+			switch (kinds[i]) {
+			case INPUT:
+				handler.resolved(tIds[i], pIds[i], true);
+				break;
+			case OUTPUT:
+				handler.resolved(tIds[i], pIds[i], false);
+				break;
+			default:
+				handler.unresolved(tokens[i]);
+			}
+		}
+	}
+
+	/**
+	 * Looks up an attribute of an element by token index, without moving the
+	 * cursor of the navigator.
+	 * 
+	 * @param nav
+	 * @param elementToken
+	 *            token index of the element
+	 * @param name
+	 *            name of the attribute
+	 * @return the value of the attribute, null if the element does not have it
+	 * @throws NavExceptionHuge
+	 */
+	public static String getAttrVal(VTDNavHuge nav, int elementToken, String name) throws NavExceptionHuge {
+		final int tokenCount = nav.getTokenCount();
+		int t = elementToken + 1;
+		while (t < tokenCount) {
+			int type = nav.getTokenType(t);
+			if (type == VTDNavHuge.TOKEN_ATTR_NAME) {
+				if (nav.matchRawTokenString(t, name)) {
+					return nav.toString(t + 1);
+				}
+			} else if (type != VTDNavHuge.TOKEN_ATTR_NS) {
+				break;
+			}
+			t += 2;
+		}
+		return null;
+	}
+
+	private void resolve(VTDNavHuge nav, int[] tokens, int from, int to, byte[] kinds, long[] tIds, long[] pIds)
+			throws NavExceptionHuge {
+		final int tokenCount = nav.getTokenCount();
+		for (int i = from; i < to; i++) {
+			int src = -1, trg = -1;
+			int t = tokens[i] + 1;
+			while (t < tokenCount) {
+				int type = nav.getTokenType(t);
+				if (type == VTDNavHuge.TOKEN_ATTR_NAME) {
+					if (nav.matchRawTokenString(t, PNMLPaths.SRC_ATTR)) {
+						src = t + 1;
+					} else if (nav.matchRawTokenString(t, PNMLPaths.TRG_ATTR)) {
+						trg = t + 1;
+					}
+				} else if (type != VTDNavHuge.TOKEN_ATTR_NS) {
+					break;
+				}
+				t += 2;
+			}
+			String source = src != -1 ? nav.toString(src) : null;
+			long tId = transitions.getLong(source);
+			if (tId != -1L) {
+				kinds[i] = OUTPUT;
+				tIds[i] = tId;
+				pIds[i] = places.getLong(trg != -1 ? nav.toString(trg) : null);
+				continue;
+			}
+			tId = transitions.getLong(trg != -1 ? nav.toString(trg) : null);
+			if (tId != -1L) {
+				kinds[i] = INPUT;
+				tIds[i] = tId;
+				pIds[i] = places.getLong(source);
+			} else {
+				kinds[i] = UNRESOLVED;
+			}
+		}
+	}
+
+	private static final class ReaderFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pnml2nupn-arcs-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+
+/**
+ * Counts the rehashes of the hash tables of a conversion, and the time they
+ * take, to tell whether the tables were presized right (see
+ * {@link NetSizes}). The hash maps it creates report their rehashes to it.
+ * <p>
+ * It belongs to one conversion, and is not thread-safe.
+ * </p>
+ */
+public final class RehashCounter {
+
+	private long count;
+	private long nanos;
+
+	/**
+	 * Records a rehash.
+	 * 
+	 * @param start
+	 *            {@link System#nanoTime()} when the rehash started
+	 */
+	public void record(long start) {
+		count++;
+		nanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Records the rehashes of a table which counts its own, such as
+	 * {@link NodeIdDictionary}.
+	 */
+	public void add(long rehashes, long rehashNanos) {
+		count += rehashes;
+		nanos += rehashNanos;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Sets the rehash counters of a report.
+	 */
+	public void report(ConversionReport report) {
+		report.setCounter(ConversionReport.COUNT_REHASHES, count);
+		report.setCounter(ConversionReport.COUNT_REHASH_NS, nanos);
+	}
+
+	/**
+	 * @param expected
+	 *            the expected number of entries
+	 * @return a map presized for this number of entries, whose rehashes are
+	 *         counted
+	 */
+	public <K> Object2LongOpenHashMap<K> newObject2LongMap(int expected) {
+		return new Object2LongOpenHashMap<K>(expected) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void rehash(int newN) {
+				long start = System.nanoTime();
+				super.rehash(newN);
+				record(start);
+			}
+		};
+	}
+
+	/**
+	 * @see #newObject2LongMap(int)
+	 */
+	public <K, V> Object2ObjectOpenHashMap<K, V> newObject2ObjectMap(int expected) {
+		return new Object2ObjectOpenHashMap<K, V>(expected) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void rehash(int newN) {
+				long start = System.nanoTime();
+				super.rehash(newN);
+				record(start);
+			}
+		};
+	}
+
+	/**
+	 * @see #newObject2LongMap(int)
+	 */
+	public <V> Int2ObjectOpenHashMap<V> newInt2ObjectMap(int expected) {
+		return new Int2ObjectOpenHashMap<V>(expected) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void rehash(int newN) {
+				long start = System.nanoTime();
+				super.rehash(newN);
+				record(start);
+			}
+		};
+	}
+}
@@ -0,0 +1,439 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+
+import fr.lip6.move.pnml2nupn.exceptions.InvalidNetException;
+import fr.lip6.move.pnml2nupn.exceptions.PNMLImportExportException;
+import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
+
+/**
+ * Streaming extraction engine. It reads the PNML document forward only with a
+ * StAX pull parser and fills the same tables as {@link FusedNetExtractor},
+ * without building the VTD index of the document. Memory is therefore bounded
+ * by the tables of the net, not by the size of the document.
+ * <p>
+ * The type of the nets is checked as they are encountered: the extraction
+ * stops at the first net which is not a P/T net (see {@link #isPTNet()}).
+ * </p>
+ */
+public final class StreamingNetExtractor extends AbstractNetExtractor {
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+	private boolean ptNet;
+	/* A second net was found: the extraction stopped there */
+	private boolean severalNets;
+
+	/**
+	 * @see AbstractNetExtractor#AbstractNetExtractor(Logger, boolean, boolean,
+	 *      boolean, NetSizes, RehashCounter)
+	 */
+	public StreamingNetExtractor(Logger journal, boolean usePlaceNames, boolean useTransitionNames,
+			boolean collectUnits, NetSizes sizes, RehashCounter rehashes) {
+		super(journal, usePlaceNames, useTransitionNames, collectUnits, sizes, rehashes);
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// PNML documents have no DTD; do not resolve anything outside the document
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Reads the head of a PNML document, up to the start tag of its first net,
+	 * to reject documents which are not P/T nets before reading them whole.
+	 * 
+	 * @param inFile
+	 *            the PNML document
+	 * @return the type of the first net, or null if the head of the document
+	 *         has no net or is not well-formed, which the reading of the whole
+	 *         document then reports
+	 */
+	public static String sniffNetType(File inFile) {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(inFile), PNML2NUPNUtils.BUFFERSIZE)) {
+			XMLStreamReader reader;
+			synchronized (XML_INPUT_FACTORY) {
+				reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+			}
+			try {
+				reader.nextTag();
+				if (!PNMLPaths.PNML_ELEMENT.equals(reader.getLocalName())) {
+					return null;
+				}
+				while (toNextChild(reader)) {
+					if (PNMLPaths.NET_ELEMENT.equals(reader.getLocalName())) {
+						return reader.getAttributeValue(null, PNMLPaths.TYPE_ATTR);
+					}
+					skipElement(reader);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException | IOException e) {
+			// left to the reading of the whole document
+		}
+		return null;
+	}
+
+	/**
+	 * @param netType
+	 *            the type of a net, as returned by {@link #sniffNetType(File)}
+	 * @return false if the net is known not to be a P/T net
+	 */
+	public static boolean maybePTNet(String netType) {
+		return netType == null || netType.endsWith(PNMLPaths.PTNET_TYPE);
+	}
+
+	/**
+	 * Reads the head of a PNML document, up to the first node or arc of its
+	 * first page, for the NUPN <code>size</code> element which the NUPN tools
+	 * write there. There is no index to count the nodes without reading the
+	 * whole document.
+	 * 
+	 * @param inFile
+	 *            the PNML document
+	 * @return the sizes of the NUPN <code>size</code> element,
+	 *         {@link NetSizes#UNKNOWN} if the head of the document has none
+	 */
+	public static NetSizes sniffNetSizes(File inFile) {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(inFile), PNML2NUPNUtils.BUFFERSIZE)) {
+			XMLStreamReader reader;
+			synchronized (XML_INPUT_FACTORY) {
+				reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+			}
+			try {
+				reader.nextTag();
+				if (PNMLPaths.PNML_ELEMENT.equals(reader.getLocalName()) && toChild(reader, PNMLPaths.NET_ELEMENT)
+						&& toChild(reader, PNMLPaths.PAGE_ELEMENT)) {
+					String name;
+					while (toNextChild(reader)) {
+						name = reader.getLocalName();
+						if (PNMLPaths.PLACE_ELEMENT.equals(name) || PNMLPaths.TRANSITION_ELEMENT.equals(name)
+								|| PNMLPaths.ARC_ELEMENT.equals(name)) {
+							break;
+						}
+						if (PNMLPaths.TOOLSPECIFIC_ELEMENT.equals(name)
+								&& PNMLPaths.NUPN_TOOL.equals(reader.getAttributeValue(null, PNMLPaths.TOOL_ATTR))
+								&& toChild(reader, PNMLPaths.SIZE_ELEMENT)) {
+							NetSizes sizes = NetSizes.nupnSize(reader.getAttributeValue(null, PNMLPaths.PLACES_ATTR),
+									reader.getAttributeValue(null, PNMLPaths.TRANS_ATTR),
+									reader.getAttributeValue(null, PNMLPaths.ARCS_ATTR), inFile.length());
+							return sizes != null ? sizes : NetSizes.UNKNOWN;
+						}
+						skipElement(reader);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException | IOException e) {
+			// left to the reading of the whole document
+		}
+		return NetSizes.UNKNOWN;
+	}
+
+	/**
+	 * Moves the reader to the start tag of the first child of the current
+	 * element with this name, skipping the children before it.
+	 * 
+	 * @return false if there is no such child
+	 */
+	private static boolean toChild(XMLStreamReader reader, String name) throws XMLStreamException {
+		while (toNextChild(reader)) {
+			if (name.equals(reader.getLocalName())) {
+				return true;
+			}
+			skipElement(reader);
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the PNML document once, from the beginning to the end (or to the
+	 * first net which is not a P/T net, or to the second net: the nets of a
+	 * document with several nets are exported apart, over its VTD index).
+	 * 
+	 * @param inFile
+	 *            the PNML document
+	 * @throws PNMLImportExportException
+	 *             if the document cannot be read or is not well-formed
+	 * @throws InvalidNetException
+	 *             if an arc inscription is not an integer
+	 */
+	public void extract(File inFile) throws PNMLImportExportException, InvalidNetException {
+		logger.info("Streaming places, transitions, arcs and NUPN tool specific section in a single pass.");
+		ptNet = true;
+		severalNets = false;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(inFile), PNML2NUPNUtils.BUFFERSIZE)) {
+			XMLStreamReader reader;
+			synchronized (XML_INPUT_FACTORY) {
+				reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+			}
+			try {
+				extractDocument(reader);
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException | IOException e) {
+			throw new PNMLImportExportException(e);
+		}
+		if (ptNet && !severalNets) {
+			endOfExtraction();
+		}
+	}
+
+	/**
+	 * @return false if a net which is not a P/T net was found in the document
+	 */
+	public boolean isPTNet() {
+		return ptNet;
+	}
+
+	/**
+	 * @return true if the document has several nets, in which case the
+	 *         extraction stopped at the second one
+	 */
+	public boolean hasSeveralNets() {
+		return severalNets;
+	}
+
+	private void extractDocument(XMLStreamReader reader) throws XMLStreamException, InvalidNetException {
+		reader.nextTag();
+		if (!PNMLPaths.PNML_ELEMENT.equals(reader.getLocalName())) {
+			return;
+		}
+		boolean netFound = false;
+		while (ptNet && toNextChild(reader)) {
+			if (PNMLPaths.NET_ELEMENT.equals(reader.getLocalName())) {
+				if (netFound) {
+					severalNets = true;
+					return;
+				}
+				netFound = true;
+				extractNet(reader);
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private void extractNet(XMLStreamReader reader) throws XMLStreamException, InvalidNetException {
+		String netType = reader.getAttributeValue(null, PNMLPaths.TYPE_ATTR);
+		logger.info("Discovered net type: {}", netType);
+		if (netType == null || !netType.endsWith(PNMLPaths.PTNET_TYPE)) {
+			ptNet = false;
+			return;
+		}
+		while (toNextChild(reader)) {
+			if (PNMLPaths.PAGE_ELEMENT.equals(reader.getLocalName())) {
+				extractPage(reader);
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private void extractPage(XMLStreamReader reader) throws XMLStreamException, InvalidNetException {
+		String name;
+		while (toNextChild(reader)) {
+			name = reader.getLocalName();
+			if (PNMLPaths.PLACE_ELEMENT.equals(name)) {
+				extractPlace(reader);
+			} else if (PNMLPaths.TRANSITION_ELEMENT.equals(name)) {
+				extractTransition(reader);
+			} else if (PNMLPaths.ARC_ELEMENT.equals(name)) {
+				extractArc(reader);
+			} else if (PNMLPaths.TOOLSPECIFIC_ELEMENT.equals(name)) {
+				extractToolSpecific(reader);
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private void extractPlace(XMLStreamReader reader) throws XMLStreamException {
+		int id = addPlace(node(reader.getAttributeValue(null, PNMLPaths.ID_ATTR)));
+		boolean nameFound = false;
+		String name, text;
+		while (toNextChild(reader)) {
+			name = reader.getLocalName();
+			if (usePlaceNames && !nameFound && PNMLPaths.NAME_ELEMENT.equals(name)) {
+				nameFound = true;
+				text = textOf(reader);
+				if (text != null) {
+					addPlaceName(id, text);
+				}
+			} else if (PNMLPaths.INITIAL_MARKING_ELEMENT.equals(name)) {
+				text = textOf(reader);
+				if (text != null) {
+					addMarking(id, text);
+				}
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private void extractTransition(XMLStreamReader reader) throws XMLStreamException {
+		int id = addTransition(node(reader.getAttributeValue(null, PNMLPaths.ID_ATTR)));
+		boolean nameFound = false;
+		String text;
+		while (toNextChild(reader)) {
+			if (useTransitionNames && !nameFound && PNMLPaths.NAME_ELEMENT.equals(reader.getLocalName())) {
+				nameFound = true;
+				text = textOf(reader);
+				if (text != null) {
+					addTransitionName(id, text);
+				}
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	private void extractArc(XMLStreamReader reader) throws XMLStreamException, InvalidNetException {
+		String id = reader.getAttributeValue(null, PNMLPaths.ID_ATTR);
+		String src = reader.getAttributeValue(null, PNMLPaths.SRC_ATTR);
+		String trg = reader.getAttributeValue(null, PNMLPaths.TRG_ATTR);
+		long inscription = 1L;
+		boolean inscriptionFound = false;
+		String text;
+		while (toNextChild(reader)) {
+			if (!inscriptionFound && PNMLPaths.INSCRIPTION_ELEMENT.equals(reader.getLocalName())) {
+				inscriptionFound = true;
+				text = textOf(reader);
+				if (text != null) {
+					text = text.trim();
+					try {
+						inscription = Long.parseLong(text);
+					} catch (NumberFormatException e) {
+						throw new InvalidNetException("Inscription of arc " + id + " is not an integer: " + text);
+					}
+				}
+			} else {
+				skipElement(reader);
+			}
+		}
+		long arc = addArc(node(src), node(trg), inscription);
+		if (inscription > 1L && id != null) {
+			addUnsafeArc(id, arc);
+		}
+	}
+
+	private void extractToolSpecific(XMLStreamReader reader) throws XMLStreamException {
+		if (!PNMLPaths.NUPN_TOOL.equals(reader.getAttributeValue(null, PNMLPaths.TOOL_ATTR))) {
+			skipElement(reader);
+			return;
+		}
+		addNUPNToolSpecific(reader.getAttributeValue(null, PNMLPaths.VERSION_ATTR));
+		while (toNextChild(reader)) {
+			if (collectUnits && PNMLPaths.STRUCTURE_ELEMENT.equals(reader.getLocalName())) {
+				addStructure(reader.getAttributeValue(null, PNMLPaths.UNITS_ATTR),
+						reader.getAttributeValue(null, PNMLPaths.ROOT_ATTR));
+				while (toNextChild(reader)) {
+					if (PNMLPaths.UNIT_ELEMENT.equals(reader.getLocalName())) {
+						extractUnit(reader);
+					} else {
+						skipElement(reader);
+					}
+				}
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	/**
+	 * Records a unit as its id, the text of its places and the text of its
+	 * subunits (first and second children, as in the NUPN grammar).
+	 */
+	private void extractUnit(XMLStreamReader reader) throws XMLStreamException {
+		String id = reader.getAttributeValue(null, PNMLPaths.ID_ATTR);
+		String places = "", subunits = "";
+		int child = 0;
+		while (toNextChild(reader)) {
+			if (child == 0) {
+				places = reader.getElementText();
+			} else if (child == 1) {
+				subunits = reader.getElementText();
+			} else {
+				skipElement(reader);
+			}
+			child++;
+		}
+		addUnit(id, places, subunits);
+	}
+
+	/**
+	 * Returns the content of the first text child element of the current
+	 * element, or null if there is none. The reader is left on the end tag of
+	 * the current element.
+	 */
+	private static String textOf(XMLStreamReader reader) throws XMLStreamException {
+		String text = null;
+		while (toNextChild(reader)) {
+			if (text == null && PNMLPaths.TEXT_ELEMENT.equals(reader.getLocalName())) {
+				text = reader.getElementText();
+			} else {
+				skipElement(reader);
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * Moves the reader to the next child element of the current element.
+	 * 
+	 * @return true if the reader is on the start tag of that child, false if it
+	 *         is on the end tag of the current element
+	 */
+	private static boolean toNextChild(XMLStreamReader reader) throws XMLStreamException {
+		int event;
+		do {
+			event = reader.next();
+		} while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT);
+		return event == XMLStreamConstants.START_ELEMENT;
+	}
+
+	/**
+	 * Moves the reader to the end tag of the current element, ignoring its
+	 * contents.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		int event;
+		while (depth > 0) {
+			event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
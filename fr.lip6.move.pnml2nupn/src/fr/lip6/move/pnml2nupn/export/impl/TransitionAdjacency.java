@@ -0,0 +1,126 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.export.impl;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/**
+ * Places connected to the transitions on one side (input or output), in
+ * compressed sparse row form: the NUPN ids of the places connected to the
+ * transition numbered <code>first + i</code> are
+ * <code>places[offsets[i]] .. places[offsets[i + 1] - 1]</code>, in the order
+ * their arcs were added.
+ * <p>
+ * Pairs are first appended as they come, then {@link #compact(long)} sorts
+ * them by transition with a stable counting sort. It replaces one list per
+ * transition in a map from transition ids.
+ * </p>
+ */
+public final class TransitionAdjacency {
+
+	private final long firstTransition;
+	/* Append phase: transition index and place id of each pair */
+	private IntArrayList pendingTransitions;
+	private LongArrayList pendingPlaces;
+	/* Compacted form */
+	private int[] offsets;
+	private long[] places;
+
+	/**
+	 * @param firstTransition
+	 *            the NUPN id of the first transition
+	 */
+	public TransitionAdjacency(long firstTransition) {
+		this.firstTransition = firstTransition;
+		this.pendingTransitions = new IntArrayList();
+		this.pendingPlaces = new LongArrayList();
+	}
+
+	/**
+	 * Makes room for this number of pairs, so that adding them does not grow
+	 * the lists.
+	 * 
+	 * @param nbPairs
+	 *            the expected number of pairs
+	 */
+	public void ensureCapacity(int nbPairs) {
+		pendingTransitions.ensureCapacity(nbPairs);
+		pendingPlaces.ensureCapacity(nbPairs);
+	}
+
+	/**
+	 * Connects a place to a transition. Must be called before
+	 * {@link #compact(long)}.
+	 * 
+	 * @param trId
+	 *            NUPN id of the transition
+	 * @param plId
+	 *            NUPN id of the place
+	 */
+	public void add(long trId, long plId) {
+		pendingTransitions.add(Math.toIntExact(trId - firstTransition));
+		pendingPlaces.add(plId);
+	}
+
+	/**
+	 * Groups the pairs added so far by transition, keeping for each transition
+	 * the order in which its places were added.
+	 * 
+	 * @param nbTransitions
+	 *            the number of transitions, numbered from the first transition
+	 *            id on
+	 */
+	public void compact(long nbTransitions) {
+		int nbTr = Math.toIntExact(nbTransitions);
+		int nbPairs = pendingTransitions.size();
+		offsets = new int[nbTr + 1];
+		for (int i = 0; i < nbPairs; i++) {
+			offsets[pendingTransitions.getInt(i) + 1]++;
+		}
+		for (int t = 0; t < nbTr; t++) {
+			offsets[t + 1] += offsets[t];
+		}
+		int[] next = new int[nbTr];
+		System.arraycopy(offsets, 0, next, 0, nbTr);
+		places = new long[nbPairs];
+		for (int i = 0; i < nbPairs; i++) {
+			places[next[pendingTransitions.getInt(i)]++] = pendingPlaces.getLong(i);
+		}
+		pendingTransitions = null;
+		pendingPlaces = null;
+	}
+
+	/**
+	 * @return the number of places connected to this transition
+	 */
+	public int size(long trId) {
+		int t = (int) (trId - firstTransition);
+		return offsets[t + 1] - offsets[t];
+	}
+
+	/**
+	 * @return the index in {@link #place(int)} of the first place connected to
+	 *         this transition
+	 */
+	public int offset(long trId) {
+		return offsets[(int) (trId - firstTransition)];
+	}
+
+	/**
+	 * @return the NUPN id of the place at this index
+	 */
+	public long place(int index) {
+		return places[index];
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fr.lip6.move.pnml2nupn.MainPNML2NUPN;
+
+/**
+ * Thin client of the {@link ConversionServer}. It only opens a connection to
+ * the server, so that it starts much faster than the tool itself.
+ * <p>
+ * From the command line:
+ * <code>java -Dserver.port=&lt;port&gt; -cp pnml2nupn.jar fr.lip6.move.pnml2nupn.server.ConversionClient file.pnml ...</code>.
+ * Each file is converted by the server with the per-request options set as
+ * system properties (e.g. <code>-Duse.place.names=true</code>), and the answer
+ * of the server is printed for each file.
+ * </p>
+ */
+public final class ConversionClient implements Closeable {
+
+	private final Socket socket;
+	private final BufferedReader in;
+	private final BufferedWriter out;
+
+	/**
+	 * Connects to the server listening on the loopback address.
+	 * 
+	 * @param port
+	 *            the port of the server
+	 * @throws IOException
+	 */
+	public ConversionClient(int port) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Asks the server to convert a PNML file.
+	 * 
+	 * @param inFile
+	 *            the PNML file
+	 * @param outFile
+	 *            the NUPN file, null for the default one
+	 * @param options
+	 *            the per-request options, by name
+	 * @return the answer of the server
+	 * @throws IOException
+	 */
+	public String convert(File inFile, File outFile, Map<String, String> options) throws IOException {
+		StringBuilder req = new StringBuilder(ConversionServer.CONVERT).append(ConversionServer.SEP)
+				.append(inFile.getCanonicalPath()).append(ConversionServer.SEP);
+		if (outFile != null) {
+			req.append(outFile.getCanonicalPath());
+		}
+		for (Map.Entry<String, String> opt : options.entrySet()) {
+			req.append(ConversionServer.SEP).append(opt.getKey()).append(MainPNML2NUPN.EQ).append(opt.getValue());
+		}
+		return request(req.toString());
+	}
+
+	/**
+	 * Asks the server to stop.
+	 * 
+	 * @return the answer of the server
+	 * @throws IOException
+	 */
+	public String shutdown() throws IOException {
+		return request(ConversionServer.SHUTDOWN);
+	}
+
+	private String request(String line) throws IOException {
+		out.write(line);
+		out.newLine();
+		out.flush();
+		String answer = in.readLine();
+		if (answer == null) {
+			throw new IOException("Connection closed by the server.");
+		}
+		return answer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * @param args
+	 *            the PNML files to convert, or <code>shutdown</code> to stop the
+	 *            server
+	 */
+	public static void main(String[] args) {
+		String port = System.getProperty(MainPNML2NUPN.SERVER_PORT);
+		if (port == null || args.length < 1) {
+			System.err.println("Usage: java -D" + MainPNML2NUPN.SERVER_PORT
+					+ "=<port> [-D<option>=<value> ...] -cp pnml2nupn.jar " + ConversionClient.class.getName()
+					+ " <file.pnml> ... | " + ConversionServer.SHUTDOWN);
+			System.exit(2);
+		}
+		Map<String, String> options = new LinkedHashMap<>();
+		String val;
+		for (String opt : ConversionServer.REQUEST_OPTIONS) {
+			val = System.getProperty(opt);
+			if (val != null) {
+				options.put(opt, val);
+			}
+		}
+		boolean failed = false;
+		String answer;
+		try (ConversionClient client = new ConversionClient(Integer.parseInt(port.trim()))) {
+			if (args.length == 1 && ConversionServer.SHUTDOWN.equals(args[0])) {
+				System.out.println(client.shutdown());
+				return;
+			}
+			for (String f : args) {
+				answer = client.convert(new File(f), null, options);
+				failed |= !answer.startsWith(ConversionServer.OK);
+				System.out.println(f + ConversionServer.SEP + answer);
+			}
+		} catch (IOException | NumberFormatException e) {
+			System.err.println("Could not reach the conversion server: " + e.getMessage());
+			System.exit(2);
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,339 @@
+/**
+ *  Copyright 2014-2019 Université Paris Nanterre and Sorbonne Université,
+ * 							CNRS, LIP6
+ *
+ *  All rights reserved.   This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  which accompanies this distribution, and is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Project leader / Initial Contributor:
+ *    Lom Messan Hillah - <lom-messan.hillah@lip6.fr>
+ */
+package fr.lip6.move.pnml2nupn.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.lip6.move.pnml2nupn.MainPNML2NUPN;
+import fr.lip6.move.pnml2nupn.exceptions.EarlyStopException;
+import fr.lip6.move.pnml2nupn.exceptions.InvalidPNMLTypeException;
+import fr.lip6.move.pnml2nupn.exceptions.PNMLImportExportException;
+import fr.lip6.move.pnml2nupn.export.ConversionOptions;
+import fr.lip6.move.pnml2nupn.export.ConversionReport;
+import fr.lip6.move.pnml2nupn.export.PNML2NUPNExporter;
+import fr.lip6.move.pnml2nupn.export.PNML2NUPNFactory;
+import fr.lip6.move.pnml2nupn.utils.PNML2NUPNUtils;
+
+/**
+ * Conversion daemon. It listens on a loopback socket and runs the conversion
+ * requests it receives on a pool of workers which stay up between requests,
+ * so that conversions do not pay for the start of the JVM and the loading of
+ * the tool.
+ * <p>
+ * The protocol is line-based, in UTF-8. A connection may send several
+ * requests, one per line, each answered by one line. Fields are separated by
+ * tabs:
+ * </p>
+ * <ul>
+ * <li><code>convert &lt;input&gt; [&lt;output&gt; [&lt;option&gt;=&lt;value&gt; ...]]</code>:
+ * converts the PNML file at the absolute input path into the output path (by
+ * default the input path with the <code>.nupn</code> extension). Options are
+ * named as the system properties of the command line, and override the
+ * options the server was started with for this request only. Answered by
+ * <code>ok &lt;conversion ms&gt; &lt;total ms&gt; &lt;signature&gt;</code> or
+ * <code>error &lt;conversion ms&gt; &lt;total ms&gt; &lt;message&gt;</code>. The
+ * total time includes the wait for a free worker.</li>
+ * <li><code>ping</code>: answered by <code>ok</code>.</li>
+ * <li><code>shutdown</code>: answered by <code>ok</code>, then the server
+ * stops.</li>
+ * </ul>
+ */
+public final class ConversionServer {
+
+	public static final String CONVERT = "convert";
+	public static final String PING = "ping";
+	public static final String SHUTDOWN = "shutdown";
+	public static final String OK = "ok";
+	public static final String ERROR = "error";
+	public static final String SEP = "\t";
+	public static final String NUPN_EXT = ".nupn";
+	/**
+	 * Options a request may set.
+	 */
+	public static final String[] REQUEST_OPTIONS = { MainPNML2NUPN.HAS_UNSAFE_ARCS,
+			MainPNML2NUPN.PRESERVE_NUPN_MIX, MainPNML2NUPN.PRESERVE_NUPN_NATIVE, MainPNML2NUPN.USE_PLACE_NAMES,
+			MainPNML2NUPN.USE_TRANSITION_NAMES, MainPNML2NUPN.FIRST_PLACE_NUMBER,
+			MainPNML2NUPN.FIRST_TRANSITION_NUMBER, MainPNML2NUPN.STREAMING_INPUT, MainPNML2NUPN.INMEMORY_LABELS,
+			MainPNML2NUPN.METRICS_REPORT, MainPNML2NUPN.ARC_WORKERS,
+			MainPNML2NUPN.WRITER_BUFFERS, MainPNML2NUPN.SMALL_FILE_SIZE, MainPNML2NUPN.TRUST_NUPN_SIZE };
+	private static final String SIGNATURE_SEP = "; ";
+
+	private final ServerSocket serverSocket;
+	private final ExecutorService workers;
+	private final ExecutorService connections;
+	private final ConversionOptions options;
+	private final Logger log;
+
+	/**
+	 * Binds the server to the loopback address.
+	 * 
+	 * @param port
+	 *            the port to listen to, 0 for any free port
+	 * @param nbWorkers
+	 *            number of conversions run at the same time
+	 * @param options
+	 *            options of the conversions, unless a request overrides them
+	 * @param log
+	 * @throws IOException
+	 *             if the port cannot be bound
+	 */
+	public ConversionServer(int port, int nbWorkers, ConversionOptions options, Logger log) throws IOException {
+		this.serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		this.workers = Executors.newFixedThreadPool(nbWorkers, new DaemonFactory("pnml2nupn-worker-"));
+		this.connections = Executors.newCachedThreadPool(new DaemonFactory("pnml2nupn-connection-"));
+		this.options = options;
+		this.log = log;
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until the server is shut down.
+	 * 
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		log.info("Conversion server listening on {}:{}.", serverSocket.getInetAddress().getHostAddress(), getPort());
+		try {
+			while (!serverSocket.isClosed()) {
+				Socket socket = serverSocket.accept();
+				connections.execute(() -> handle(socket));
+			}
+		} catch (SocketException e) {
+			if (!serverSocket.isClosed()) {
+				throw e;
+			}
+		} finally {
+			shutdown();
+		}
+		log.info("Conversion server stopped.");
+	}
+
+	/**
+	 * Stops accepting connections and requests. Running conversions are
+	 * interrupted.
+	 */
+	public void shutdown() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			PNML2NUPNUtils.printStackTrace(e);
+		}
+		workers.shutdownNow();
+		connections.shutdownNow();
+	}
+
+	private void handle(Socket socket) {
+		try (Socket s = socket;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				BufferedWriter out = new BufferedWriter(
+						new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				out.write(process(line));
+				out.newLine();
+				out.flush();
+				if (SHUTDOWN.equals(line)) {
+					shutdown();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Connection closed: {}", e.getMessage());
+			PNML2NUPNUtils.printStackTrace(e);
+		}
+	}
+
+	/**
+	 * @return the answer to a request line
+	 */
+	private String process(String line) {
+		String[] fields = line.split(SEP);
+		switch (fields[0]) {
+		case CONVERT:
+			return convert(fields);
+		case PING:
+		case SHUTDOWN:
+			return OK;
+		default:
+			return ERROR + SEP + 0 + SEP + 0 + SEP + "Unknown request: " + clean(fields[0]);
+		}
+	}
+
+	private String convert(String[] fields) {
+		long received = System.nanoTime();
+		if (fields.length < 2 || fields[1].isEmpty()) {
+			return ERROR + SEP + 0 + SEP + 0 + SEP + "Missing input file.";
+		}
+		final File inFile = new File(fields[1]);
+		final File outFile = new File(fields.length > 2 && !fields[2].isEmpty() ? fields[2]
+				: PNML2NUPNUtils.extractBaseName(fields[1]) + NUPN_EXT);
+		ConversionOptions.Builder builder = options.toBuilder();
+		boolean unsafeArcsOnly = false;
+		String[] opt;
+		for (int i = 3; i < fields.length; i++) {
+			opt = fields[i].split("=", 2);
+			if (opt.length != 2 || !setOption(builder, opt[0], opt[1].trim())) {
+				return ERROR + SEP + 0 + SEP + 0 + SEP + "Invalid option: " + clean(fields[i]);
+			}
+			if (MainPNML2NUPN.HAS_UNSAFE_ARCS.equals(opt[0])) {
+				unsafeArcsOnly = Boolean.parseBoolean(opt[1].trim());
+			}
+		}
+		final ConversionOptions requestOptions = builder.build();
+		final boolean checkOnly = unsafeArcsOnly;
+		final long[] duration = new long[1];
+		String status = OK, result;
+		try {
+			Future<ConversionReport> f = workers.submit(() -> {
+				long start = System.nanoTime();
+				try {
+					return convert(inFile, outFile, requestOptions, checkOnly);
+				} finally {
+					duration[0] = System.nanoTime() - start;
+				}
+			});
+			result = String.join(SIGNATURE_SEP, f.get().getSignatureLines());
+		} catch (ExecutionException e) {
+			status = ERROR;
+			result = String.valueOf(e.getCause().getMessage());
+			log.error("Failed on {}: {}", inFile.getPath(), result);
+			PNML2NUPNUtils.printStackTrace(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			status = ERROR;
+			result = "Server shutting down.";
+		}
+		return status + SEP + toMillis(duration[0]) + SEP + toMillis(System.nanoTime() - received) + SEP
+				+ clean(result);
+	}
+
+	private static ConversionReport convert(File inFile, File outFile, ConversionOptions options,
+			boolean unsafeArcsOnly) throws PNMLImportExportException, InterruptedException, IOException,
+			InvalidPNMLTypeException, EarlyStopException {
+		PNML2NUPNExporter pe = PNML2NUPNFactory.instance().createExporter();
+		Logger jr = LoggerFactory.getLogger(pe.getClass().getCanonicalName());
+		if (unsafeArcsOnly) {
+			return pe.hasUnsafeArcs(inFile, outFile, options, jr);
+		}
+		return pe.export2NUPN(inFile, outFile, options, jr);
+	}
+
+	/**
+	 * @return false if the option is unknown or its value is invalid
+	 */
+	private static boolean setOption(ConversionOptions.Builder builder, String name, String value) {
+		try {
+			switch (name) {
+			case MainPNML2NUPN.HAS_UNSAFE_ARCS:
+				break;
+			case MainPNML2NUPN.PRESERVE_NUPN_MIX:
+				builder.preserveNupnMix(Boolean.parseBoolean(value));
+				break;
+			case MainPNML2NUPN.PRESERVE_NUPN_NATIVE:
+				builder.preserveNupnNative(Boolean.parseBoolean(value));
+				break;
+			case MainPNML2NUPN.USE_PLACE_NAMES:
+				builder.usePlaceNames(Boolean.parseBoolean(value));
+				break;
+			case MainPNML2NUPN.USE_TRANSITION_NAMES:
+				builder.useTransitionNames(Boolean.parseBoolean(value));
+				break;
+			case MainPNML2NUPN.TRUST_NUPN_SIZE:
+				builder.trustNupnSize(Boolean.parseBoolean(value));
+				break;
+			case MainPNML2NUPN.STREAMING_INPUT:
+				builder.streamingInput(Boolean.parseBoolean(value));
+				break;
+			case MainPNML2NUPN.INMEMORY_LABELS:
+				builder.inMemoryLabels(Boolean.parseBoolean(value));
+				break;
+			case MainPNML2NUPN.METRICS_REPORT:
+				builder.metricsReport(Boolean.parseBoolean(value));
+				break;
+			case MainPNML2NUPN.FIRST_PLACE_NUMBER:
+				builder.firstPlaceNumber(Long.parseLong(value));
+				break;
+			case MainPNML2NUPN.FIRST_TRANSITION_NUMBER:
+				builder.firstTransitionNumber(Long.parseLong(value));
+				break;
+			case MainPNML2NUPN.ARC_WORKERS:
+				builder.arcWorkers(Integer.parseInt(value));
+				break;
+			case MainPNML2NUPN.WRITER_BUFFERS:
+				builder.writerBuffers(Integer.parseInt(value));
+				break;
+			case MainPNML2NUPN.SMALL_FILE_SIZE:
+				builder.smallFileSize(Integer.parseInt(value));
+				break;
+			default:
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private static long toMillis(long nanos) {
+		return nanos / 1_000_000L;
+	}
+
+	/**
+	 * Keeps a message on a single field.
+	 */
+	private static String clean(String msg) {
+		return msg.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private static final class DaemonFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -18,21 +18,18 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.file.Files;
 
 import javax.activation.MimetypesFileTypeMap;
 import javax.xml.bind.ValidationException;
 
 import org.slf4j.Logger;
 
+import com.ximpleware.extended.IByteBuffer;
 import com.ximpleware.extended.ParseExceptionHuge;
 import com.ximpleware.extended.VTDGenHuge;
+import com.ximpleware.extended.XMLBuffer;
 import com.ximpleware.extended.XMLMemMappedBuffer;
 
 import fr.lip6.move.pnml2nupn.MainPNML2NUPN;
@@ -41,7 +38,7 @@ import fr.lip6.move.pnml2nupn.exceptions.InvalidFileException;
 import fr.lip6.move.pnml2nupn.exceptions.InvalidFileTypeException;
 import fr.lip6.move.pnml2nupn.exceptions.PNMLImportExportException;
 import fr.lip6.move.pnml2nupn.export.impl.NUPNConstants;
-import fr.lip6.move.pnml2nupn.export.impl.NUPNWriter;
+import fr.lip6.move.pnml2nupn.export.impl.NUPNEmitter;
 import fr.lip6.move.pnml2nupn.export.impl.OutChannelBean;
 import it.unimi.dsi.fastutil.longs.LongAVLTreeSet;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
@@ -103,90 +100,19 @@ public final class PNML2NUPNUtils {
 		closeOutChannel(cb);
 	}
 
-
-	/**
-	 * Writes output to file using Java NIO API. Buffer size is 8K and choped
-	 * contents size is 6K.
-	 * 
-	 * @param file
-	 *            destination file
-	 * @param output
-	 *            the string to write there
-	 * @throws IOException
-	 * @see {@link #chopString(String, int)}
-	 */
-	public static synchronized void writeToChannel(OutChannelBean ocb, String output) throws IOException {
-
-		ByteBuffer bytebuf;
-		bytebuf = ByteBuffer.allocateDirect(BUFFERSIZE);
-		List<byte[]> contents = chopString(output, CONTENTSSIZE);
-		for (byte[] cont : contents) {
-			bytebuf.put(cont);
-			bytebuf.flip();
-			ocb.getFc().write(bytebuf);
-			bytebuf.clear();
-		}
-
-	}
-
-	/**
-	 * @see #writeToChannel(OutChannelBean, String)
-	 */
-	public static synchronized void writeToChannel(OutChannelBean ocb, String output, ByteBuffer bytebuf,
-			final List<byte[]> contents) throws IOException {
-		final List<byte[]> contents2 = chopString(output, CONTENTSSIZE, contents);
-		for (byte[] cont : contents2) {
-			bytebuf.put(cont);
-			bytebuf.flip();
-			ocb.getFc().write(bytebuf);
-			bytebuf.clear();
-		}
-	}
-
 	/**
-	 * Chops a string into chunks of len long.
+	 * Drops the pending bytes of output emitters, without writing them.
 	 * 
-	 * @param src
-	 *            the string to chop
-	 * @param len
-	 *            the length of each chunk
-	 * @return the list of chunks
+	 * @param emitters
 	 */
-	public static synchronized List<byte[]> chopString(String src, int len) {
-		List<byte[]> res = new ArrayList<byte[]>();
-		if (src.length() > len) {
-			int iterations = (int) Math.ceil((double) src.length() / (double) len);
-
-			for (int i = 0; i < iterations; i++) {
-				res.add(src.substring(i * len, Math.min(src.length(), (i + 1) * len)).getBytes(
-						Charset.forName(FILE_ENCODING)));
+	public static final void discardOutputs(NUPNEmitter... emitters) {
+		for (NUPNEmitter em : emitters) {
+			if (em != null) {
+				em.discard();
 			}
-		} else {
-			res.add(src.getBytes(Charset.forName(FILE_ENCODING)));
 		}
-		return res;
 	}
 
-	/**
-	 * @see #chopString(String, int)
-	 * @param src
-	 * @param len
-	 * @param contents
-	 * @return
-	 */
-	public static synchronized List<byte[]> chopString(String src, int len, final List<byte[]> contents) {
-		if (src.length() > len) {
-			int iterations = (int) Math.ceil((double) src.length() / (double) len);
-
-			for (int i = 0; i < iterations; i++) {
-				contents.add(src.substring(i * len, Math.min(src.length(), (i + 1) * len)).getBytes(
-						Charset.forName(FILE_ENCODING)));
-			}
-		} else {
-			contents.add(src.getBytes(Charset.forName(FILE_ENCODING)));
-		}
-		return contents;
-	}
 
 	/**
 	 * Checks the basic external expected characteristics of a PNML document.
@@ -299,91 +225,33 @@ public final class PNML2NUPNUtils {
 		return path.substring(0, dotPos);
 	}
 	
-	/**
-	 * Initializes and returns and blocking queue.
-	 * @return
-	 */
-	public static final BlockingQueue<String> initQueue() {
-		BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
-		return queue;
-	}
-	
-	/**
-	 * Creates and starts a new thread.
-	 * @param ocb
-	 * @param queue
-	 * @return the started thread
-	 */
-	public static final Thread startWriter(OutChannelBean ocb, BlockingQueue<String> queue) {
-		Thread t = new Thread(new NUPNWriter(ocb, queue));
-		t.start();
-		return t;
+	public static final void insertCreatorPragma(NUPNEmitter nupnOut) throws IOException {
+		insertPragma(MainPNML2NUPN.getPragmaCreator() + NUPNConstants.NL, nupnOut);
 	}
 	
-	/**
-	 * Cancels writers in case of emergency stop.
-	 * 
-	 * @param bpnQueue
-	 * @param tsQueue
-	 * @param psQueue
-	 * @throws InterruptedException
-	 */
-	@SafeVarargs
-	public static final void cancelWriters(BlockingQueue<String>...queues) throws InterruptedException {
-		for (BlockingQueue<String> q: queues) {
-			PNML2NUPNUtils.cancelWriter(q);
-		}
+	public static final void insertPragma(String pragma, NUPNEmitter nupnOut) throws IOException {
+		nupnOut.append(pragma);
 	}
 	
-	/**
-	 * Cancel a writer by sending a cancellation message to it.
-	 * 
-	 * @param queue
-	 * @throws InterruptedException
-	 */
-	public static final void cancelWriter(BlockingQueue<String> queue) throws InterruptedException {
-		if (queue != null) {
-			queue.put(NUPNConstants.CANCEL);
-		}
-	}
-	/**
-	 * Normal stop of writers.
-	 * 
-	 * @param queues the set of queues to the writers
-	 * @throws InterruptedException
-	 */
-	@SafeVarargs
-	public static final void stopWriters(BlockingQueue<String>...queues) throws InterruptedException {
-		for (BlockingQueue<String> q : queues) {
-			PNML2NUPNUtils.stopWriter(q);
-		}
+	public static final VTDGenHuge openXMLStream(File inFile) throws PNMLImportExportException {
+		return openXMLStream(inFile, false);
 	}
-	
+
 	/**
-	 * Normal stop of a writer.
+	 * Parses a PNML document into a VTD index.
 	 * 
-	 * @param queue
-	 * @throws InterruptedException
+	 * @param inFile
+	 *            the PNML document
+	 * @param inHeap
+	 *            true to read the document into a heap array, for small
+	 *            documents, false to memory-map it
+	 * @return the parser holding the index
+	 * @throws PNMLImportExportException
 	 */
-	public static final void stopWriter(BlockingQueue<String> queue) throws InterruptedException {
-		if (queue != null)
-			queue.put(NUPNConstants.STOP);
-	}
-	
-	public static final void insertCreatorPragma(BlockingQueue<String> nupnQueue) throws InterruptedException {
-		insertPragma(MainPNML2NUPN.getPragmaCreator() + NUPNConstants.NL, nupnQueue);
-	}
-	
-	public static final void insertPragma(String pragma, BlockingQueue<String> nupnQueue) throws InterruptedException {
-		nupnQueue.put(pragma);
-	}
-	
-	public static final VTDGenHuge openXMLStream(File inFile) throws PNMLImportExportException {
-		XMLMemMappedBuffer xb = new XMLMemMappedBuffer();
+	public static final VTDGenHuge openXMLStream(File inFile, boolean inHeap) throws PNMLImportExportException {
 		VTDGenHuge vg = new VTDGenHuge();
 		try {
-			xb.readFile(inFile.getCanonicalPath());
-			vg.setDoc(xb);
+			vg.setDoc(readXMLBuffer(inFile, inHeap));
 			vg.parse(true);
 		} catch (ParseExceptionHuge | IOException e) {
 			throw new PNMLImportExportException(e);
@@ -391,6 +259,28 @@ public final class PNML2NUPNUtils {
 		return vg;
 	}
 	
+	/**
+	 * Reads a PNML document for the VTD parser.
+	 * 
+	 * @param inFile
+	 *            the PNML document
+	 * @param inHeap
+	 *            true to read the document into a heap array, for small
+	 *            documents, false to memory-map it
+	 * @throws IOException
+	 * @throws ParseExceptionHuge
+	 *             if the document is too large for the heap array
+	 */
+	public static final IByteBuffer readXMLBuffer(File inFile, boolean inHeap)
+			throws IOException, ParseExceptionHuge {
+		if (inHeap) {
+			return new XMLBuffer(Files.readAllBytes(inFile.toPath()));
+		}
+		XMLMemMappedBuffer xb = new XMLMemMappedBuffer();
+		xb.readFile(inFile.getCanonicalPath());
+		return xb;
+	}
+
 	public static final void setMin(long newNb, LongArrayList minHolder) {
 		if (minHolder.isEmpty()) {
 			minHolder.add(newNb);